@@ -0,0 +1,129 @@
+package io.mionick.imageviewer;
+
+import android.view.MotionEvent;
+
+import io.mionick.imageviewer.gestures.TransformApplier;
+import io.mionick.imageviewer.gestures.TransformGestureDetector;
+
+/**
+ * Routes touches on the image of a {@link CustomCanvas}: pan, pinch and rotate always, dragging
+ * corners in deform mode and dragging handles in mesh mode. A whole gesture, from the first
+ * finger down to the last one up, is one undo step.
+ */
+public class CanvasTouchHandler {
+    private final CustomCanvas customCanvas;
+    private final TransformApplier transformApplier;
+    private final TransformGestureDetector transformGestureDetector;
+    private final DeformTouchHandler deformTouchHandler = new DeformTouchHandler();
+    private final MeshTouchHandler meshTouchHandler = new MeshTouchHandler();
+    private boolean deformMode = false;
+    private boolean deformOngoing = false;
+    private boolean meshMode = false;
+
+    public CanvasTouchHandler(CustomCanvas customCanvas) {
+        this.customCanvas = customCanvas;
+        transformApplier = new TransformApplier(customCanvas);
+        transformGestureDetector = new TransformGestureDetector(transformApplier);
+    }
+
+    public TransformApplier getTransformApplier() {
+        return transformApplier;
+    }
+
+    /**
+     * In deform mode a finger that goes down on a corner handle moves that corner, and single
+     * finger drags no longer pan.
+     */
+    public void setDeformMode(boolean deformMode) {
+        this.deformMode = deformMode;
+        transformApplier.setTranslationEnabled(!deformMode);
+    }
+
+    public void setMeshMode(boolean meshMode) {
+        this.meshMode = meshMode;
+    }
+
+    public void onTouchEvent(MotionEvent motionEvent) {
+        // Event times are uptimeMillis, the same monotonic clock as System.nanoTime().
+        customCanvas.markInput(motionEvent.getEventTime() * 1_000_000L);
+        if (motionEvent.getActionMasked() == MotionEvent.ACTION_DOWN) {
+            customCanvas.beginTransformGesture();
+        }
+        if (deformMode) {
+            deformTouchHandler.onTouchEvent(motionEvent);
+        }
+        if (meshMode && !deformOngoing) {
+            meshTouchHandler.onTouchEvent(motionEvent);
+        }
+        transformGestureDetector.onTouchEvent(motionEvent);
+        if (motionEvent.getActionMasked() == MotionEvent.ACTION_UP
+                || motionEvent.getActionMasked() == MotionEvent.ACTION_CANCEL) {
+            customCanvas.endTransformGesture();
+        }
+    }
+
+    // Dragging a single finger that went down on a corner handle moves that corner.
+    private class DeformTouchHandler {
+
+        int touchTolerance = 50;
+        int cornerIndex = 0;
+        final float[] corners = new float[8];
+
+        void onTouchEvent(MotionEvent event) {
+            switch (event.getActionMasked()) {
+                case MotionEvent.ACTION_DOWN:
+                    customCanvas.getCornersInScreenSpace(corners);
+                    for (int i = 0; i < 4; i++) {
+                        if (Math.abs(event.getX() - corners[2 * i]) < touchTolerance && (Math.abs(event.getY() - corners[2 * i + 1]) < touchTolerance)) {
+                            deformOngoing = true;
+                            cornerIndex = i;
+                        }
+                    }
+                    break;
+                case MotionEvent.ACTION_MOVE:
+                    if (deformOngoing && event.getPointerCount() == 1) {
+                        customCanvas.getCornersInScreenSpace(corners);
+                        corners[2 * cornerIndex] = event.getX();
+                        corners[2 * cornerIndex + 1] = event.getY();
+                        customCanvas.setDeformation(corners);
+                    }
+                    break;
+                case MotionEvent.ACTION_POINTER_DOWN:
+                case MotionEvent.ACTION_UP:
+                case MotionEvent.ACTION_CANCEL:
+                    deformOngoing = false;
+                    break;
+            }
+        }
+    }
+
+    // Dragging a single finger that went down on a mesh handle moves that handle, anywhere else pans.
+    private class MeshTouchHandler {
+
+        int handle = -1;
+
+        void onTouchEvent(MotionEvent event) {
+            switch (event.getActionMasked()) {
+                case MotionEvent.ACTION_DOWN:
+                    handle = customCanvas.findMeshHandle(event.getX(), event.getY(), CustomCanvas.MESH_TOUCH_TOLERANCE);
+                    if (handle >= 0) {
+                        transformApplier.setTranslationEnabled(false);
+                    }
+                    break;
+                case MotionEvent.ACTION_MOVE:
+                    if (handle >= 0 && event.getPointerCount() == 1) {
+                        customCanvas.moveMeshHandle(handle, event.getX(), event.getY());
+                    }
+                    break;
+                case MotionEvent.ACTION_POINTER_DOWN:
+                case MotionEvent.ACTION_UP:
+                case MotionEvent.ACTION_CANCEL:
+                    if (handle >= 0) {
+                        handle = -1;
+                        transformApplier.setTranslationEnabled(!deformMode);
+                    }
+                    break;
+            }
+        }
+    }
+}
@@ -4,54 +4,185 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
 import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.RectF;
+import android.os.Trace;
 import android.util.DisplayMetrics;
+import android.view.Choreographer;
 import android.view.View;
 import android.view.WindowManager;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.mionick.imageviewer.adjust.ColorAdjustments;
+import io.mionick.imageviewer.adjust.CurveBaker;
+import io.mionick.imageviewer.edges.EdgeOverlay;
+import io.mionick.imageviewer.geometry.Homography;
+import io.mionick.imageviewer.gestures.ImageTransform;
+import io.mionick.imageviewer.gestures.TransformHistory;
+import io.mionick.imageviewer.gestures.TransformTarget;
+import io.mionick.imageviewer.image.AnimatedImage;
+import io.mionick.imageviewer.image.LodPyramid;
+import io.mionick.imageviewer.image.TiledImage;
+import io.mionick.imageviewer.layers.ImageLayer;
+import io.mionick.imageviewer.memory.MemoryBudget;
+import io.mionick.imageviewer.metrics.Metrics;
+import io.mionick.imageviewer.overlay.GridOverlay;
+import io.mionick.imageviewer.render.ImageSurfaceView;
+import io.mionick.imageviewer.warp.HandleIndex;
+import io.mionick.imageviewer.warp.MeshWarp;
 import lombok.Getter;
 
 @Getter
-public class CustomCanvas extends View {
+public class CustomCanvas extends View implements TransformTarget, MemoryBudget.Holder {
+    /**
+     * Floats written by {@link #saveTransform}, see {@link ImageTransform#save}.
+     */
+    public static final int TRANSFORM_STATE_SIZE = ImageTransform.STATE_SIZE;
+    public static final int HISTORY_STEPS = 100;
+    private static final int LOD_MAX_BYTES = 32 * 1024 * 1024;
+    public static final int MESH_HANDLES_PER_SIDE = 8;
+    public static final float MESH_TOUCH_TOLERANCE = 50;
+    // The transform is computed by the homography engine and mirrored into matrix for drawing.
     private final Matrix matrix;
+    private final Homography homography = new Homography();
+    private final Homography screenToImage = new Homography();
+    private final float[] matrixValues = new float[Homography.SIZE];
+    private final float[] viewportCorners = new float[8];
+    private final float[] visibleCorners = new float[8];
+    private final RectF visibleRect = new RectF();
+    private final RectF imageRect = new RectF();
     private Bitmap bitmap;
-
-    private float x = 0, y = 0, w, h, rotation = 0;
-    private float mScaleFactor = 1.0f;
-    private float[] polyToPoly = new float[8];
+    private TiledImage tiledImage;
+    private LodPyramid lodPyramid;
+    // Frames come and go on every vsync of playback, so they are drawn without levels of detail.
+    private AnimatedImage animatedImage;
+    // Asked for once a reduced bitmap is zoomed into further than it was when reduced, and
+    // magnified past its own resolution. Zero when nothing was reduced since the last request.
+    private Runnable onResolutionNeeded;
+    private float reducedAtScale;
+    // Carry the colour adjustments, so only the image is drawn through them. The curve paint
+    // draws the curve-baked copy and leaves the levels out of its matrix.
+    private final Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint curvePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint overlayPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private ColorAdjustments colorAdjustments = ColorAdjustments.NONE;
+    private final float[] colorMatrixValues = new float[ColorAdjustments.MATRIX_SIZE];
+    private final ColorMatrix colorMatrix = new ColorMatrix();
+    // A levels curve baked into a copy of the bitmap; until it is ready, and for tiled and animated
+    // images, the image shows with linear black and white points but no gamma.
+    private final CurveBaker curveBaker = new CurveBaker();
+    private final int[] curve = new int[256];
+    // The copy is baked from the level of detail being drawn, not the full bitmap.
+    private Bitmap curveBitmap, curveSource;
+    // Set by a memory trim: the curve is not baked again until the image or adjustments change.
+    private boolean curveTrimmed;
+
+    private float w, h;
+    private final ImageTransform imageTransform = new ImageTransform();
+    // Undo steps of the image transform, a whole gesture per step.
+    private final TransformHistory history = new TransformHistory(HISTORY_STEPS, TRANSFORM_STATE_SIZE);
+    private final float[] gestureStartState = new float[TRANSFORM_STATE_SIZE];
+    private final float[] historyState = new float[TRANSFORM_STATE_SIZE];
+    private final float[] restoredState = new float[TRANSFORM_STATE_SIZE];
+    private boolean gestureStarted;
+    // Reused by the draw and gesture paths so that a frame allocates nothing.
+    private final float[] screenCorners = new float[8];
     private boolean deformHandlesVisible;
     private boolean gridVisible;
+    private final GridOverlay grid = new GridOverlay();
+    private EdgeOverlay edgeOverlay;
+    private boolean edgesVisible;
+    // Reference layers over the image, bottom first, and the one gestures drive (-1: the image).
+    private List<ImageLayer> layers = new ArrayList<>();
+    private int activeLayer = -1;
+    // Everything below and above the active layer, pre-composited so a frame draws three bitmaps.
+    private Bitmap staticBelow, staticAbove;
+    private Canvas staticBelowCanvas, staticAboveCanvas;
+    private volatile boolean staticLayersDirty = true;
+    private MeshWarp meshWarp;
+    private float[] meshHandlesOnScreen;
+    private final HandleIndex meshHandleIndex = new HandleIndex(2 * MESH_TOUCH_TOLERANCE);
+    private boolean meshHandleIndexStale = true;
+    private final float[] touchPoint = new float[2];
+    private final Paint handlePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
     private Paint paint = new Paint();
     float r = 10;
-    int numberOfDotsPerLine = 4;
+
+    // When set, the image, grid and handles are drawn on its render thread instead of in onDraw.
+    private ImageSurfaceView renderer;
+    private ImageSurfaceView.Scene publishedScene;
+
+    private final Choreographer.FrameCallback frameCallback = this::doFrame;
+    private boolean matrixDirty;
+    private boolean frameScheduled;
+    // Coalescing counters: running totals, and what the last completed frame needed.
+    private long matrixRebuilds, redraws, transformFrames;
+    private int lastFrameMatrixRebuilds, lastFrameRedraws;
+    private int frameMatrixRebuilds, frameRedraws;
+    // Time of the oldest input not shown yet, in System.nanoTime() terms; 0 when none.
+    private long pendingInputNanos;
 
 
     public CustomCanvas(Context context) {
         super(context);
         matrix = new Matrix();
         paint.setColor(Color.MAGENTA);
+        grid.setDotRadius(r);
+        handlePaint.setColor(Color.CYAN);
+        handlePaint.setStrokeCap(Paint.Cap.ROUND);
+        handlePaint.setStrokeWidth(2 * r);
     }
 
     protected void onDraw(Canvas canvas) {
-        if (bitmap != null) {
-            canvas.setMatrix(matrix);
-            canvas.drawBitmap(bitmap, 0, 0, null);
-            canvas.setMatrix(null);
+        if (drawsOnRenderer()) return;
+        long start = System.nanoTime();
+        Trace.beginSection("draw");
+        drawFrame(canvas);
+        Trace.endSection();
+        Metrics.DRAW.record(Metrics.micros(start));
+        if (pendingInputNanos != 0) {
+            Metrics.TOUCH_TO_FRAME.record(Metrics.micros(pendingInputNanos));
+            pendingInputNanos = 0;
+        }
+    }
+
+    /**
+     * Notes a touch event, so the latency to the frame showing its effect is measured. Takes the
+     * event time in nanoseconds of {@link android.os.SystemClock#uptimeMillis()}, which shares
+     * its clock with {@link System#nanoTime()}.
+     */
+    public void markInput(long eventTimeNanos) {
+        if (renderer != null && drawsOnRenderer()) {
+            renderer.markInput(eventTimeNanos);
+        } else if (pendingInputNanos == 0) {
+            pendingInputNanos = eventTimeNanos;
+        }
+    }
+
+    private void drawFrame(Canvas canvas) {
+        redraws++;
+        frameRedraws++;
+        ensureMatrix();
+        if (hasImage()) {
+            if (layers.isEmpty()) {
+                drawImage(canvas);
+            } else {
+                drawLayers(canvas);
+            }
 
             if (gridVisible) {
-                float[] gridCoords = getGridCoords();
-                matrix.mapPoints(gridCoords);
-                paint.setColor(Color.MAGENTA);
-                for (int i = 0; i < gridCoords.length/2; i++) {
-                    float x = gridCoords[2 * i];
-                    float y = gridCoords[2 * i + 1];
-                    canvas.drawCircle(x, y, r, paint);
-                }
+                homography.invert(screenToImage);
+                grid.draw(canvas, homography, screenToImage, w, h, getWidth(), getHeight(), getEffectiveScale());
             }
 
             if (deformHandlesVisible) {
-                float[] handles = getCornersInScreenSpace();
+                float[] handles = getCornersInScreenSpace(screenCorners);
                 paint.setColor(Color.RED);
                 for (int i = 0; i < 4; i++) {
                     float x = handles[2 * i];
@@ -60,27 +191,445 @@ public class CustomCanvas extends View {
                 }
             }
 
+            if (meshWarp != null) {
+                homography.mapPoints(meshHandlesOnScreen, meshWarp.getHandles());
+                canvas.drawPoints(meshHandlesOnScreen, handlePaint);
+            }
+
+        }
+    }
+
+    private void drawImage(Canvas canvas) {
+        canvas.save();
+        canvas.concat(matrix);
+        if (meshWarp != null) {
+            drawMesh(canvas);
+        } else if (tiledImage != null) {
+            drawTiles(canvas);
+        } else if (animatedImage != null) {
+            Bitmap frame = animatedImage.getCurrentFrame();
+            if (frame != null) canvas.drawBitmap(frame, null, imageRect, bitmapPaint);
+        } else {
+            float scale = getEffectiveScale() * w / bitmap.getWidth();
+            if (reducedAtScale > 0 && getEffectiveScale() > reducedAtScale && scale > 1
+                    && onResolutionNeeded != null) {
+                reducedAtScale = 0;
+                post(onResolutionNeeded);
+            }
+            Bitmap source = bitmapFor(scale);
+            canvas.drawBitmap(source, null, imageRect, paintFor(source));
+        }
+        // Edges are cached per bitmap, and the frame bitmaps are reused for different frames.
+        if (edgesVisible && edgeOverlay != null && animatedImage == null) {
+            drawEdges(canvas);
+        }
+        canvas.restore();
+    }
+
+    private void drawLayers(Canvas canvas) {
+        if (staticLayersDirty || staticAbove == null
+                || staticAbove.getWidth() != getWidth() || staticAbove.getHeight() != getHeight()) {
+            rebuildStaticLayers();
+        }
+        if (activeLayer < 0) {
+            drawImage(canvas);
+        } else {
+            canvas.drawBitmap(staticBelow, 0, 0, null);
+            layers.get(activeLayer).draw(canvas);
+        }
+        canvas.drawBitmap(staticAbove, 0, 0, null);
+    }
+
+    private void rebuildStaticLayers() {
+        staticLayersDirty = false;
+        if (staticAbove == null || staticAbove.getWidth() != getWidth() || staticAbove.getHeight() != getHeight()) {
+            releaseStaticLayers();
+            staticBelow = Bitmap.createBitmap(Math.max(1, getWidth()), Math.max(1, getHeight()), Bitmap.Config.ARGB_8888);
+            staticAbove = Bitmap.createBitmap(Math.max(1, getWidth()), Math.max(1, getHeight()), Bitmap.Config.ARGB_8888);
+            staticBelowCanvas = new Canvas(staticBelow);
+            staticAboveCanvas = new Canvas(staticAbove);
+        }
+        staticBelow.eraseColor(Color.TRANSPARENT);
+        staticAbove.eraseColor(Color.TRANSPARENT);
+        if (activeLayer >= 0) {
+            drawImage(staticBelowCanvas);
+            for (int i = 0; i < activeLayer; i++) {
+                layers.get(i).draw(staticBelowCanvas);
+            }
+        }
+        for (int i = activeLayer + 1; i < layers.size(); i++) {
+            layers.get(i).draw(staticAboveCanvas);
+        }
+    }
+
+    private void releaseStaticLayers() {
+        if (staticBelow != null) {
+            staticBelow.recycle();
+            staticAbove.recycle();
+            staticBelow = staticAbove = null;
+            staticBelowCanvas = staticAboveCanvas = null;
+        }
+    }
+
+    /**
+     * Shares {@code layers} with this view, so they can outlive it across configuration changes.
+     * The image becomes the active target again.
+     */
+    public void setLayers(List<ImageLayer> layers) {
+        this.layers = layers;
+        for (ImageLayer layer : layers) {
+            layer.setOnChanged(() -> onLayerChanged(layer));
         }
+        setActiveLayer(-1);
     }
 
-    public float[] getCornersInScreenSpace() {
-        float[] corners = getUnTransformedCorners();
-        matrix.mapPoints(corners);
-        return corners;
+    /**
+     * Adds {@code layer} on top and makes it the active one.
+     */
+    public void addLayer(ImageLayer layer) {
+        layers.add(layer);
+        layer.setOnChanged(() -> onLayerChanged(layer));
+        setActiveLayer(layers.size() - 1);
+    }
+
+    public void removeLayer(int index) {
+        layers.remove(index).setOnChanged(null);
+        if (layers.isEmpty()) releaseStaticLayers();
+        setActiveLayer(-1);
+    }
+
+    /**
+     * Picks what gestures and deformation apply to: a layer index, or -1 for the image.
+     */
+    public void setActiveLayer(int index) {
+        activeLayer = index;
+        staticLayersDirty = true;
+        requestFrame();
+    }
+
+    /**
+     * The image or the active layer, whichever the gestures should drive.
+     */
+    public TransformTarget getActiveTarget() {
+        return activeLayer < 0 ? this : layers.get(activeLayer);
+    }
+
+    // Changes to the active layer redraw it live, anything else also recomposites the rest.
+    private void onLayerChanged(ImageLayer layer) {
+        if (activeLayer < 0 || layers.get(activeLayer) != layer) {
+            staticLayersDirty = true;
+        }
+        requestFrame();
+    }
+
+    /**
+     * Run when a reduced copy of the bitmap is zoomed back into past its own resolution, so the
+     * full image can be brought back.
+     */
+    public void setOnResolutionNeeded(Runnable onResolutionNeeded) {
+        this.onResolutionNeeded = onResolutionNeeded;
+    }
+
+    /**
+     * Swaps in a lower resolution copy of the bitmap shown, keeping the image size and transform.
+     */
+    public void reduceBitmap(Bitmap reduced) {
+        if (bitmap == null) return;
+        setSourceBitmap(reduced);
+        // Reducing is itself a trim, see trimMemory.
+        curveTrimmed = true;
+        reducedAtScale = getEffectiveScale();
+        imageChanged();
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        long bytes = lodPyramid != null ? lodPyramid.getLevelBytes() : 0;
+        if (curveBitmap != null) bytes += curveBitmap.getAllocationByteCount();
+        if (tiledImage != null) bytes += tiledImage.getTileBytes();
+        if (staticAbove != null) {
+            bytes += staticBelow.getAllocationByteCount() + staticAbove.getAllocationByteCount();
+        }
+        return bytes;
+    }
+
+    /**
+     * Drops what is rebuilt on demand: tiles, level-of-detail copies, the curve-baked copy and
+     * the layer caches. The bitmap itself belongs to whoever set it. The curve-baked copy stays
+     * gone until the image or the adjustments change; black and white points still apply.
+     */
+    @Override
+    public void trimMemory(MemoryBudget.Level level) {
+        if (tiledImage != null) {
+            tiledImage.trimTiles(level == MemoryBudget.Level.TRIM_CACHES ? (int) tiledImage.getTileBytes() / 2 : 0);
+        }
+        if (level != MemoryBudget.Level.TRIM_CACHES) {
+            if (bitmap != null) setSourceBitmap(bitmap);
+            curveTrimmed = true;
+            releaseStaticLayers();
+            imageChanged();
+        }
+    }
+
+    /**
+     * Redraws after the pixels of the image changed, for instance a tile or an overlay finished
+     * loading. Safe to call from any thread.
+     */
+    public void invalidateImage() {
+        staticImageChanged();
+        if (renderer != null) renderer.requestRender();
+        postInvalidate();
+    }
+
+    // Main thread counterpart of invalidateImage, coalesced with any transform change to one frame.
+    private void imageChanged() {
+        staticImageChanged();
+        requestFrame();
+    }
+
+    // The image is only in the layer cache, under the active layer, while a layer is active.
+    private void staticImageChanged() {
+        if (activeLayer >= 0) staticLayersDirty = true;
+    }
+
+    /**
+     * Moves drawing of the image, grid and corner handles onto {@code renderer}'s render thread.
+     * Mesh warp, edges, layers, animations and colour adjustments are not drawn there; while any
+     * of them is on, drawing falls back to this view.
+     */
+    public void setRenderer(ImageSurfaceView renderer) {
+        this.renderer = renderer;
+        publishedScene = null;
+        requestTransformUpdate();
+    }
+
+    private boolean drawsOnRenderer() {
+        return renderer != null && meshWarp == null && !edgesVisible && layers.isEmpty()
+                && animatedImage == null && colorAdjustments.isIdentity();
+    }
+
+    // Hands the renderer this frame's matrix, and the scene when it changed. Nothing is locked:
+    // the matrix goes through a triple buffer and the scene is immutable.
+    private void publishFrame() {
+        boolean onRenderer = drawsOnRenderer();
+        Bitmap bitmap = onRenderer ? this.bitmap : null;
+        TiledImage tiledImage = onRenderer ? this.tiledImage : null;
+        if (publishedScene == null || !publishedScene.matches(bitmap, tiledImage, w, h,
+                gridVisible, grid.getStyle(), grid.getDivisions(), deformHandlesVisible)) {
+            publishedScene = new ImageSurfaceView.Scene(bitmap, tiledImage, w, h,
+                    gridVisible, grid.getStyle(), grid.getDivisions(), deformHandlesVisible, r);
+            renderer.publishScene(publishedScene);
+        }
+        renderer.publishTransform(matrixValues);
+    }
+
+    /**
+     * Draws the image through {@code adjustments} from the next frame on. The linear part is one
+     * filter on the image paint, rebuilt only here; a levels curve is baked in the background.
+     * Tiled and animated images cannot be baked, they get the black and white points but no
+     * gamma, see {@link #canBakeCurve}.
+     */
+    public void setColorAdjustments(ColorAdjustments adjustments) {
+        if (adjustments.equals(colorAdjustments)) return;
+        boolean curveChanged = adjustments.black != colorAdjustments.black
+                || adjustments.white != colorAdjustments.white || adjustments.gamma != colorAdjustments.gamma;
+        colorAdjustments = adjustments;
+        bitmapPaint.setColorFilter(colorFilterFor(adjustments, false));
+        curvePaint.setColorFilter(adjustments.hasCurve() ? colorFilterFor(adjustments, true) : null);
+        if (curveChanged) {
+            releaseCurve();
+            curveTrimmed = false;
+        }
+        imageChanged();
+    }
+
+    /**
+     * Whether a levels gamma shows on the current image; it does for a plain bitmap only.
+     */
+    public boolean canBakeCurve() {
+        return bitmap != null && tiledImage == null && animatedImage == null;
+    }
+
+    private ColorMatrixColorFilter colorFilterFor(ColorAdjustments adjustments, boolean curveBaked) {
+        if (adjustments.isIdentity()) return null;
+        adjustments.getMatrix(colorMatrixValues, curveBaked);
+        colorMatrix.set(colorMatrixValues);
+        return new ColorMatrixColorFilter(colorMatrix);
+    }
+
+    private Paint paintFor(Bitmap source) {
+        return source != null && source == curveBitmap ? curvePaint : bitmapPaint;
+    }
+
+    // The bitmap to draw at this scale: the curve-baked copy of the level when there is one. A
+    // copy of another level keeps showing while the one drawn is baked, and nothing is baked
+    // while a coarser level is still being built.
+    private Bitmap bitmapFor(float scale) {
+        Bitmap level = lodPyramid.levelFor(scale);
+        if (!colorAdjustments.hasCurve() || curveTrimmed) return level;
+        if (curveSource != level && !lodPyramid.isBuilding()) {
+            curveSource = level;
+            colorAdjustments.getCurve(curve);
+            curveBaker.bake(level, curve, baked -> {
+                if (curveBitmap != null) curveBitmap.recycle();
+                curveBitmap = baked;
+                invalidateImage();
+            });
+        }
+        return curveBitmap != null ? curveBitmap : level;
+    }
+
+    private void releaseCurve() {
+        curveBaker.cancel();
+        if (curveBitmap != null) {
+            curveBitmap.recycle();
+            curveBitmap = null;
+        }
+        curveSource = null;
+    }
+
+    private void drawEdges(Canvas canvas) {
+        Bitmap edges = edgeOverlay.edgesFor(tiledImage != null ? tiledImage.getPreview() : bitmap);
+        if (edges == null) return;
+        if (meshWarp != null) {
+            canvas.drawBitmapMesh(edges, meshWarp.getMeshWidth(), meshWarp.getMeshHeight(),
+                    meshWarp.getVertices(), 0, null, 0, overlayPaint);
+        } else {
+            canvas.drawBitmap(edges, null, imageRect, overlayPaint);
+        }
+    }
+
+    // Tiled images are warped through their preview, the mesh has no notion of tiles.
+    private void drawMesh(Canvas canvas) {
+        Bitmap source;
+        if (tiledImage != null) {
+            source = tiledImage.getPreview();
+        } else if (animatedImage != null) {
+            source = animatedImage.getCurrentFrame();
+            if (source == null) return;
+        } else {
+            source = bitmapFor(getEffectiveScale() * w / bitmap.getWidth());
+        }
+        canvas.drawBitmapMesh(source, meshWarp.getMeshWidth(), meshWarp.getMeshHeight(),
+                meshWarp.getVertices(), 0, null, 0, paintFor(source));
+    }
+
+    public boolean isMeshWarpEnabled() {
+        return meshWarp != null;
+    }
+
+    /**
+     * Switches between the plain image and one warped through a grid of draggable handles.
+     */
+    public void setMeshWarpEnabled(boolean enabled) {
+        if (enabled && meshWarp == null) {
+            setMeshWarp(new MeshWarp(w, h, MESH_HANDLES_PER_SIDE, MESH_HANDLES_PER_SIDE));
+        } else if (!enabled) {
+            setMeshWarp(null);
+        } else {
+            imageChanged();
+        }
     }
 
-    private float[] getUnTransformedCorners() {
-        float x = 0, y = 0;
-        return new float[]{x, y,
-                x + w, y,
-                x, y + h,
-                x + w, y + h
-        };
+    /**
+     * The mesh warp while it is on. Its handles move in place, so holding on to it keeps them
+     * across configuration changes.
+     */
+    public MeshWarp getMeshWarp() {
+        return meshWarp;
+    }
+
+    /**
+     * Warps the image through {@code meshWarp}, kept from an earlier view of the same image, or
+     * switches the warp off for null.
+     */
+    public void setMeshWarp(MeshWarp meshWarp) {
+        this.meshWarp = meshWarp;
+        meshHandlesOnScreen = meshWarp != null ? new float[2 * meshWarp.getHandleCount()] : null;
+        meshHandleIndexStale = true;
+        imageChanged();
+    }
+
+    /**
+     * The mesh handle within {@code tolerance} pixels of a screen point, or -1.
+     */
+    public int findMeshHandle(float screenX, float screenY, float tolerance) {
+        if (meshWarp == null) return -1;
+        ensureMatrix();
+        if (meshHandleIndexStale) {
+            homography.mapPoints(meshHandlesOnScreen, meshWarp.getHandles());
+            meshHandleIndex.rebuild(meshHandlesOnScreen, meshWarp.getHandleCount(), getWidth(), getHeight());
+            meshHandleIndexStale = false;
+        }
+        return meshHandleIndex.nearest(screenX, screenY, tolerance);
+    }
+
+    /**
+     * Drags a mesh handle to a screen point; only the mesh cells around it are recomputed.
+     */
+    public void moveMeshHandle(int handle, float screenX, float screenY) {
+        ensureMatrix();
+        if (!homography.invert(screenToImage)) return;
+        touchPoint[0] = screenX;
+        touchPoint[1] = screenY;
+        screenToImage.mapPoints(touchPoint, touchPoint);
+        meshWarp.moveHandle(handle, touchPoint[0], touchPoint[1]);
+        meshHandleIndex.move(handle, screenX, screenY);
+        staticImageChanged();
+        requestFrame();
+    }
+
+    public boolean hasImage() {
+        return bitmap != null || tiledImage != null || animatedImage != null;
+    }
+
+    private void drawTiles(Canvas canvas) {
+        homography.invert(screenToImage);
+        viewportCorners[2] = viewportCorners[6] = getWidth();
+        viewportCorners[5] = viewportCorners[7] = getHeight();
+        screenToImage.mapPoints(visibleCorners, 0, viewportCorners, 0, 4);
+        visibleRect.set(visibleCorners[0], visibleCorners[1], visibleCorners[0], visibleCorners[1]);
+        for (int i = 1; i < 4; i++) {
+            visibleRect.union(visibleCorners[2 * i], visibleCorners[2 * i + 1]);
+        }
+        if (visibleRect.intersect(imageRect)) {
+            tiledImage.draw(canvas, visibleRect, TiledImage.sampleSizeForScale(getEffectiveScale()), bitmapPaint);
+        }
+    }
+
+    /**
+     * How many screen pixels one image pixel currently covers, ignoring rotation.
+     */
+    public float getEffectiveScale() {
+        ensureMatrix();
+        float determinant = homography.get(Matrix.MSCALE_X) * homography.get(Matrix.MSCALE_Y)
+                - homography.get(Matrix.MSKEW_X) * homography.get(Matrix.MSKEW_Y);
+        return (float) Math.sqrt(Math.abs(determinant));
+    }
+
+    /**
+     * Writes the four image corners, as mapped onto the screen, into {@code out} and returns it.
+     */
+    public float[] getCornersInScreenSpace(float[] out) {
+        if (activeLayer >= 0) return layers.get(activeLayer).getCornersInScreenSpace(out);
+        ensureMatrix();
+        homography.mapPoints(out, 0, imageTransform.getUntransformedCorners(), 0, 4);
+        return out;
+    }
+
+    /**
+     * Copies the current image to screen transform, as nine row-major values, into {@code out}.
+     */
+    public void getImageToScreen(float[] out) {
+        ensureMatrix();
+        homography.getValues(out);
     }
 
     public void resetImageTransform() {
-        rotation = 0;
-        polyToPoly = getUnTransformedCorners();
+        imageTransform.resetDeformation();
+        if (meshWarp != null) {
+            meshWarp.reset(w, h);
+        }
 
 
         DisplayMetrics displayMetrics = new DisplayMetrics();
@@ -90,90 +639,339 @@ public class CustomCanvas extends View {
 
         float hs = displayMetrics.heightPixels;
         float ws = displayMetrics.widthPixels;
-        float wi = bitmap.getWidth();
-        float hi = bitmap.getHeight();
+        float wi = w;
+        float hi = h;
         float rs = ws / hs;
         float ri = wi / hi;
 
-        mScaleFactor = rs > ri ? hs / hi : ws / wi;
+        imageTransform.setMScaleFactor(rs > ri ? hs / hi : ws / wi);
+
 
+        imageTransform.setPosition((int) ((ws - wi) / 2), (int) ((hs - hi) / 2));
 
-        y = (int) ((hs - hi) / 2);
-        x = (int) ((ws - wi) / 2);
+        requestTransformUpdate();
+    }
 
-        refreshMatrixTransform();
+    @Override
+    public float getX() {
+        return imageTransform.getX();
+    }
 
-        this.invalidate();
+    @Override
+    public float getY() {
+        return imageTransform.getY();
+    }
+
+    @Override
+    public float getMScaleFactor() {
+        return imageTransform.getMScaleFactor();
+    }
+
+    @Override
+    public float getRotation() {
+        return imageTransform.getRotation();
     }
 
     public void setRotation(float rotation) {
-        this.rotation = rotation;
-        refreshMatrixTransform();
-        this.invalidate();
+        imageTransform.setRotation(rotation);
+        requestTransformUpdate();
     }
 
     public void setPosition(float x, float y) {
-        this.x = x;
-        this.y = y;
-        refreshMatrixTransform();
-        this.invalidate();
+        imageTransform.setPosition(x, y);
+        requestTransformUpdate();
     }
 
     public void setMScaleFactor(float mScaleFactor) {
-        this.mScaleFactor = mScaleFactor;
-        this.invalidate();
+        imageTransform.setMScaleFactor(mScaleFactor);
+        requestTransformUpdate();
+    }
+
+    public void setDeformation(float[] newCornerPositionsTransformed) {
+        if (activeLayer >= 0) {
+            layers.get(activeLayer).setDeformation(newCornerPositionsTransformed);
+            return;
+        }
+        imageTransform.setDeformation(newCornerPositionsTransformed);
+        requestTransformUpdate();
     }
 
-    public synchronized void setDeformation(float[] newCornerPositionsTransformed) {
-        polyToPoly = newCornerPositionsTransformed;
-        matrix.reset();
-        matrix.setPolyToPoly(getUnTransformedCorners(), 0, newCornerPositionsTransformed, 0, 4);
-        rotation = 0;
-        mScaleFactor = 1;
-        x = 0;
-        y = 0;
-        this.invalidate();
+
+    public void saveTransform(float[] out, int offset) {
+        imageTransform.save(out, offset);
+    }
+
+    /**
+     * Puts back a transform captured by {@link #saveTransform} for the same image.
+     */
+    public void restoreTransform(float[] in, int offset) {
+        imageTransform.restore(in, offset);
+        requestTransformUpdate();
     }
 
+    /**
+     * Marks the start of a gesture. However many changes it makes, {@link #endTransformGesture}
+     * records at most one undo step for it.
+     */
+    public void beginTransformGesture() {
+        saveTransform(gestureStartState, 0);
+        gestureStarted = true;
+    }
+
+    public void endTransformGesture() {
+        if (!gestureStarted) return;
+        gestureStarted = false;
+        saveTransform(historyState, 0);
+        if (!Arrays.equals(historyState, gestureStartState)) {
+            history.record(gestureStartState, 0);
+        }
+    }
+
+    /**
+     * Records the current transform as an undo step, before a change made outside a gesture.
+     */
+    public void recordTransform() {
+        saveTransform(historyState, 0);
+        history.record(historyState, 0);
+    }
+
+    public boolean undoTransform() {
+        saveTransform(historyState, 0);
+        if (!history.undo(historyState, restoredState, 0)) return false;
+        restoreTransform(restoredState, 0);
+        return true;
+    }
+
+    public boolean redoTransform() {
+        saveTransform(historyState, 0);
+        if (!history.redo(historyState, restoredState, 0)) return false;
+        restoreTransform(restoredState, 0);
+        return true;
+    }
 
     public void setDeformHandlesVisible(boolean deformMode) {
         this.deformHandlesVisible = deformMode;
-        this.invalidate();
+        requestFrame();
     }
 
     public void setGridVisible(boolean gridVisible) {
         this.gridVisible = gridVisible;
-        this.invalidate();
+        requestFrame();
+    }
+
+    /**
+     * The overlay computing edges for {@link #setEdgesVisible}; it outlives the view so its
+     * per-image cache survives configuration changes.
+     */
+    public void setEdgeOverlay(EdgeOverlay edgeOverlay) {
+        this.edgeOverlay = edgeOverlay;
+        requestFrame();
+    }
+
+    public void setEdgesVisible(boolean edgesVisible) {
+        this.edgesVisible = edgesVisible;
+        imageChanged();
+    }
+
+    public void setGridStyle(GridOverlay.Style style) {
+        grid.setStyle(style);
+        requestFrame();
+    }
+
+    /**
+     * Grid cells across the image width, see {@link GridOverlay#setDivisions}.
+     */
+    public void setGridDivisions(int divisions) {
+        grid.setDivisions(divisions);
+        requestFrame();
     }
 
     public void setBitmap(Bitmap bitmap) {
-        this.bitmap = bitmap;
-        this.w = bitmap.getWidth();
-        this.h = bitmap.getHeight();
+        stopAnimation();
+        releaseTiledImage();
+        setSourceBitmap(bitmap);
+        setImageSize(bitmap.getWidth(), bitmap.getHeight());
+
+        history.clear();
+        this.resetImageTransform();
+    }
+
+    /**
+     * Shows an image that is decoded tile by tile as it becomes visible, in place of a bitmap.
+     */
+    public void setTiledImage(TiledImage tiledImage) {
+        stopAnimation();
+        releaseTiledImage();
+        setSourceBitmap(null);
+        this.tiledImage = tiledImage;
+        setImageSize(tiledImage.getWidth(), tiledImage.getHeight());
+        tiledImage.setOnTileLoaded(this::invalidateImage);
+
+        history.clear();
+        this.resetImageTransform();
+    }
+
+    /**
+     * Shows a low resolution stand-in for an image of {@code width} x {@code height} pixels. The
+     * preview is stretched to the full image size so the real image can later be swapped in with
+     * {@link #replaceBitmap} or {@link #replaceTiledImage} without disturbing the transform.
+     */
+    public void setPreview(Bitmap preview, int width, int height) {
+        stopAnimation();
+        releaseTiledImage();
+        setSourceBitmap(preview);
+        setImageSize(width, height);
+
+        history.clear();
+        this.resetImageTransform();
+    }
+
+    public void replaceBitmap(Bitmap bitmap) {
+        if (bitmap.getWidth() != w || bitmap.getHeight() != h) {
+            setBitmap(bitmap);
+            return;
+        }
+        stopAnimation();
+        releaseTiledImage();
+        setSourceBitmap(bitmap);
+        imageChanged();
+    }
+
+    public void replaceTiledImage(TiledImage tiledImage) {
+        if (tiledImage.getWidth() != w || tiledImage.getHeight() != h) {
+            setTiledImage(tiledImage);
+            return;
+        }
+        stopAnimation();
+        releaseTiledImage();
+        setSourceBitmap(null);
+        this.tiledImage = tiledImage;
+        tiledImage.setOnTileLoaded(this::invalidateImage);
+        imageChanged();
+    }
 
+    /**
+     * Shows and plays an animation. It keeps playing until another image replaces it or the view
+     * is detached, but stays owned by the caller, who releases it.
+     */
+    public void setAnimatedImage(AnimatedImage animatedImage) {
+        stopAnimation();
+        releaseTiledImage();
+        setSourceBitmap(null);
+        this.animatedImage = animatedImage;
+        setImageSize(animatedImage.getWidth(), animatedImage.getHeight());
+        // A new frame only changes pixels, so it shares the vsync with any transform change.
+        animatedImage.start(this::imageChanged);
+
+        history.clear();
         this.resetImageTransform();
-        refreshMatrixTransform();
-        this.invalidate();
+    }
+
+    private void stopAnimation() {
+        if (animatedImage == null) return;
+        animatedImage.stop();
+        animatedImage = null;
+    }
+
+    private void setImageSize(float w, float h) {
+        this.w = w;
+        this.h = h;
+        imageRect.set(0, 0, w, h);
+        imageTransform.setImageSize(w, h);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
+        frameScheduled = false;
+        if (animatedImage != null) animatedImage.stop();
+        releaseCurve();
+        releaseStaticLayers();
+        // The image itself may outlive this view across a configuration change, its levels don't.
+        if (lodPyramid != null) {
+            lodPyramid.recycle();
+            lodPyramid = null;
+        }
+    }
+
+    private void setSourceBitmap(Bitmap bitmap) {
+        if (lodPyramid != null) {
+            lodPyramid.recycle();
+            lodPyramid = null;
+        }
+        releaseCurve();
+        curveTrimmed = false;
+        // Rebuilding the levels of the same bitmap, as a trim does, keeps a pending reduce.
+        if (bitmap != this.bitmap) reducedAtScale = 0;
+        this.bitmap = bitmap;
+        if (bitmap != null) {
+            // A full pyramid adds a third of the source, the fixed cap bounds that for huge bitmaps.
+            lodPyramid = new LodPyramid(bitmap, Math.min(bitmap.getAllocationByteCount() / 3, LOD_MAX_BYTES));
+            lodPyramid.setOnLevelBuilt(this::invalidateImage);
+        }
+    }
+
+    private void releaseTiledImage() {
+        if (tiledImage == null) return;
+        TiledImage released = tiledImage;
+        tiledImage = null;
+        if (renderer != null) {
+            // The render thread may be drawing it, it is recycled there once it no longer is.
+            publishFrame();
+            renderer.recycleLater(released);
+        } else {
+            released.recycle();
+        }
+    }
+
+    /**
+     * Marks the matrix stale. It is rebuilt once on the next vsync however many translate, scale,
+     * rotate and deform changes arrive before then, or earlier if something needs it right away.
+     */
+    private void requestTransformUpdate() {
+        matrixDirty = true;
+        staticImageChanged();
+        requestFrame();
+    }
+
+    private void requestFrame() {
+        if (!frameScheduled) {
+            frameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+        }
+    }
+
+    private void doFrame(long frameTimeNanos) {
+        frameScheduled = false;
+        Metrics.MATRIX_REBUILDS.record(frameMatrixRebuilds);
+        lastFrameMatrixRebuilds = frameMatrixRebuilds;
+        lastFrameRedraws = frameRedraws;
+        frameMatrixRebuilds = 0;
+        frameRedraws = 0;
+        transformFrames++;
+        ensureMatrix();
+        if (renderer != null) {
+            publishFrame();
+            if (drawsOnRenderer()) return;
+        }
+        invalidate();
+    }
+
+    private void ensureMatrix() {
+        if (matrixDirty) {
+            refreshMatrixTransform();
+        }
     }
 
     private void refreshMatrixTransform() {
-        matrix.reset();
-        matrix.setPolyToPoly(getUnTransformedCorners(), 0, polyToPoly, 0, 4);
-        matrix.postRotate(rotation, w / 2, h / 2);
-        matrix.postScale(mScaleFactor, mScaleFactor, w / 2, h / 2);
-        matrix.postTranslate(x, y);
-    }
-
-    private float[] getGridCoords() {
-        float spacing = w / (numberOfDotsPerLine - 1f);
-        int lines = 1 + (int) (h / spacing);
-        float[] gridCoords = new float[2 * numberOfDotsPerLine * lines];
-        for (int i = 0; i < gridCoords.length / 2; i ++) {
-            gridCoords[2 * i] = (i % numberOfDotsPerLine) * spacing;
-            //noinspection IntegerDivisionInFloatingPointContext, intentional to get which row we are rendering
-            gridCoords[2 * i + 1] = (i / numberOfDotsPerLine) * spacing;
-        }
-        return gridCoords;
+        matrixDirty = false;
+        meshHandleIndexStale = true;
+        matrixRebuilds++;
+        frameMatrixRebuilds++;
+        imageTransform.compose(homography);
+        homography.getValues(matrixValues);
+        matrix.setValues(matrixValues);
     }
 
 }
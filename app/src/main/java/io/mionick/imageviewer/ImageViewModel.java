@@ -0,0 +1,306 @@
+package io.mionick.imageviewer;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.DisplayMetrics;
+
+import androidx.lifecycle.ViewModel;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.mionick.imageviewer.adjust.ColorAdjustments;
+import io.mionick.imageviewer.browse.ImageCollection;
+import io.mionick.imageviewer.browse.NeighbourPrefetcher;
+import io.mionick.imageviewer.edges.EdgeOverlay;
+import io.mionick.imageviewer.gallery.ThumbnailGenerator;
+import io.mionick.imageviewer.image.AnimatedImage;
+import io.mionick.imageviewer.image.ImageCache;
+import io.mionick.imageviewer.image.ImageLoader;
+import io.mionick.imageviewer.image.TiledImage;
+import io.mionick.imageviewer.layers.ImageLayer;
+import io.mionick.imageviewer.memory.MemoryBudget;
+import io.mionick.imageviewer.warp.MeshWarp;
+
+/**
+ * Holds the decoded image and the loader producing it outside the Activity, so a configuration
+ * change hands the new Activity the image that is already in memory instead of decoding it again.
+ */
+public class ImageViewModel extends ViewModel implements ImageLoader.Callback, MemoryBudget.Holder {
+    private static final long DISK_CACHE_BYTES = 64 * 1024 * 1024;
+    private ImageLoader imageLoader;
+    private ImageLoader.Callback listener;
+    private Bitmap bitmap;
+    private TiledImage tiledImage;
+    private AnimatedImage animatedImage;
+    private int width, height;
+    private final ExecutorService collectionQueries = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private ImageCollection collection;
+    private NeighbourPrefetcher prefetcher;
+    private Runnable onCollectionChanged;
+    private ThumbnailGenerator thumbnailGenerator;
+    private final EdgeOverlay edgeOverlay = new EdgeOverlay();
+    private final List<ImageLayer> layers = new ArrayList<>();
+    private MeshWarp meshWarp;
+    private final MemoryBudget memoryBudget = new MemoryBudget(MemoryBudget.defaultBudget());
+    // Longest side of the screen, what the image is reduced to under memory pressure.
+    private int screenMaxSide;
+    private boolean reduced;
+    private ColorAdjustments colorAdjustments = ColorAdjustments.NONE;
+    private OnImageReducedListener onImageReduced;
+
+    public ImageLoader getImageLoader(Context context, int tileCacheBytes) {
+        if (imageLoader == null) {
+            Context appContext = context.getApplicationContext();
+            ImageCache cache = new ImageCache(new File(appContext.getCacheDir(), "decoded"),
+                    ImageCache.defaultMemoryBudget(), DISK_CACHE_BYTES);
+            imageLoader = new ImageLoader(appContext.getContentResolver(), appContext.getResources(), tileCacheBytes, cache);
+            // Half the memory tier, the other half keeps the current and recent images.
+            prefetcher = new NeighbourPrefetcher(imageLoader, cache.getMemoryBudget() / 2);
+            DisplayMetrics displayMetrics = appContext.getResources().getDisplayMetrics();
+            screenMaxSide = Math.max(displayMetrics.widthPixels, displayMetrics.heightPixels);
+            memoryBudget.register(cache);
+            memoryBudget.register(edgeOverlay);
+            memoryBudget.register(this);
+        }
+        return imageLoader;
+    }
+
+    /**
+     * Results are forwarded to the listener while one is attached, and kept here either way.
+     */
+    public void setListener(ImageLoader.Callback listener) {
+        this.listener = listener;
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public interface OnImageReducedListener {
+        void onImageReduced(Bitmap reduced);
+    }
+
+    /**
+     * Told when memory pressure replaced the image with a copy no sharper than the screen.
+     */
+    public void setOnImageReduced(OnImageReducedListener onImageReduced) {
+        this.onImageReduced = onImageReduced;
+    }
+
+    /**
+     * Decodes the full image again if it was reduced, for instance because it is being zoomed into.
+     */
+    public void restoreFullResolution() {
+        if (!reduced) return;
+        reduced = false;
+        imageLoader.reloadFull(this);
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        long bytes = bitmap != null ? bitmap.getAllocationByteCount() : 0;
+        if (animatedImage != null) bytes += animatedImage.getFrameBytes();
+        return bytes;
+    }
+
+    @Override
+    public void trimMemory(MemoryBudget.Level level) {
+        if (level != MemoryBudget.Level.REDUCE_IMAGE || bitmap == null || reduced) return;
+        Bitmap smaller = MemoryBudget.reduce(bitmap, screenMaxSide);
+        if (smaller == null) return;
+        // A reload still in flight would only undo this. A load of another image carries on.
+        imageLoader.cancelReload();
+        bitmap = smaller;
+        reduced = true;
+        if (onImageReduced != null) onImageReduced.onImageReduced(smaller);
+    }
+
+    public void load(Uri uri) {
+        imageLoader.load(uri, this);
+    }
+
+    public ThumbnailGenerator getThumbnailGenerator(Context context) {
+        if (thumbnailGenerator == null) {
+            Context appContext = context.getApplicationContext();
+            thumbnailGenerator = new ThumbnailGenerator(appContext.getContentResolver(),
+                    new File(appContext.getFilesDir(), "thumbnails.atlas"));
+        }
+        return thumbnailGenerator;
+    }
+
+    public ColorAdjustments getColorAdjustments() {
+        return colorAdjustments;
+    }
+
+    public void setColorAdjustments(ColorAdjustments colorAdjustments) {
+        this.colorAdjustments = colorAdjustments;
+    }
+
+    public EdgeOverlay getEdgeOverlay() {
+        return edgeOverlay;
+    }
+
+    /**
+     * The reference layers over the image, shared with the canvas showing them.
+     */
+    public List<ImageLayer> getLayers() {
+        return layers;
+    }
+
+    /**
+     * The mesh warp of the canvas while it is on, handed to the next canvas with its handles
+     * where they were dragged.
+     */
+    public MeshWarp getMeshWarp() {
+        return meshWarp;
+    }
+
+    public void setMeshWarp(MeshWarp meshWarp) {
+        this.meshWarp = meshWarp;
+    }
+
+    public void loadLayer(Uri uri, ImageLoader.LayerCallback callback) {
+        imageLoader.loadLayer(uri, callback);
+    }
+
+    public ImageCollection getCollection() {
+        return collection;
+    }
+
+    /**
+     * Run on the main thread once the folder of a picked image has been looked up.
+     */
+    public void setOnCollectionChanged(Runnable onCollectionChanged) {
+        this.onCollectionChanged = onCollectionChanged;
+    }
+
+    /**
+     * Looks up the folder of {@code picked} in the background, for {@link #browse} to move
+     * through. Until it is found the collection holds only the picked image.
+     */
+    public void loadCollection(Context context, Uri picked) {
+        prefetcher.cancelAll();
+        ImageCollection single = ImageCollection.single(picked);
+        collection = single;
+        ContentResolver contentResolver = context.getApplicationContext().getContentResolver();
+        collectionQueries.execute(() -> {
+            ImageCollection found = ImageCollection.query(contentResolver, picked);
+            mainHandler.post(() -> {
+                if (collection == single) {
+                    collection = found;
+                    prefetcher.update(found, 1);
+                    if (onCollectionChanged != null) onCollectionChanged.run();
+                }
+            });
+        });
+    }
+
+    /**
+     * Loads the image {@code step} positions away in the current folder and prefetches past it.
+     * Returns the image now shown, or null when there is nothing in that direction.
+     */
+    public Uri browse(int step) {
+        if (collection == null) return null;
+        Uri uri = collection.move(step);
+        if (uri == null) return null;
+        load(uri);
+        prefetcher.update(collection, step);
+        return uri;
+    }
+
+    /**
+     * Loads a bundled image at the size of the screen, which is all it is ever shown at.
+     */
+    public void loadResource(int resId) {
+        imageLoader.loadResource(resId, screenMaxSide, this);
+    }
+
+    /**
+     * Shows the retained image on a freshly created canvas. Returns false when there is nothing
+     * retained yet.
+     */
+    public boolean restoreInto(CustomCanvas customCanvas) {
+        if (animatedImage != null) {
+            customCanvas.setAnimatedImage(animatedImage);
+            return true;
+        }
+        if (tiledImage != null) {
+            customCanvas.setTiledImage(tiledImage);
+            return true;
+        }
+        if (bitmap != null) {
+            customCanvas.setPreview(bitmap, width, height);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void onPreview(Bitmap preview, int width, int height) {
+        this.bitmap = preview;
+        this.tiledImage = null;
+        this.reduced = false;
+        this.width = width;
+        this.height = height;
+        if (listener != null) listener.onPreview(preview, width, height);
+        releaseAnimation();
+        memoryBudget.checkBudget();
+    }
+
+    @Override
+    public void onBitmap(Bitmap bitmap) {
+        this.bitmap = bitmap;
+        this.reduced = false;
+        if (listener != null) listener.onBitmap(bitmap);
+        memoryBudget.checkBudget();
+    }
+
+    @Override
+    public void onTiledImage(TiledImage tiledImage) {
+        this.bitmap = null;
+        this.tiledImage = tiledImage;
+        if (listener != null) {
+            listener.onTiledImage(tiledImage);
+        }
+        releaseAnimation();
+    }
+
+    @Override
+    public void onAnimation(AnimatedImage animation) {
+        AnimatedImage previous = animatedImage;
+        this.bitmap = null;
+        this.tiledImage = null;
+        this.reduced = false;
+        this.animatedImage = animation;
+        if (listener != null) listener.onAnimation(animation);
+        if (previous != null) previous.release();
+        memoryBudget.checkBudget();
+    }
+
+    // After the listener has moved the canvas off it, so no frame of it is drawn any more.
+    private void releaseAnimation() {
+        if (animatedImage == null) return;
+        animatedImage.release();
+        animatedImage = null;
+    }
+
+    @Override
+    protected void onCleared() {
+        collectionQueries.shutdownNow();
+        if (prefetcher != null) prefetcher.cancelAll();
+        if (thumbnailGenerator != null) thumbnailGenerator.shutdown();
+        edgeOverlay.release();
+        if (imageLoader != null) imageLoader.shutdown();
+        if (tiledImage != null) tiledImage.recycle();
+        releaseAnimation();
+    }
+}
@@ -2,36 +2,74 @@ package io.mionick.imageviewer;
 
 import static io.mionick.imageviewer.ui.ButtonId.*;
 
+import android.Manifest;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.content.res.ColorStateList;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.LayerDrawable;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
-import android.provider.MediaStore;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.os.Environment;
+import android.util.DisplayMetrics;
 import android.util.Log;
-import android.view.GestureDetector;
 import android.view.MotionEvent;
-import android.view.ScaleGestureDetector;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.view.ViewGroup.LayoutParams;
+import android.view.ViewTreeObserver;
 import android.view.animation.Animation;
 import android.view.animation.Transformation;
+import android.widget.CheckBox;
+import android.widget.ProgressBar;
+import android.widget.RadioGroup;
 import android.widget.RelativeLayout;
+import android.widget.SeekBar;
+import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.lifecycle.ViewModelProvider;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 
-import io.mionick.imageviewer.gestures.RotationGestureDetector;
+import io.mionick.imageviewer.adjust.ColorAdjustments;
+import io.mionick.imageviewer.browse.ImageCollection;
+import io.mionick.imageviewer.edges.EdgeOverlay;
+import io.mionick.imageviewer.export.WarpExporter;
+import io.mionick.imageviewer.gallery.ThumbnailStripView;
+import io.mionick.imageviewer.geometry.Homography;
+import io.mionick.imageviewer.gestures.TransformApplier;
+import io.mionick.imageviewer.gestures.TransformTarget;
+import io.mionick.imageviewer.image.AnimatedImage;
+import io.mionick.imageviewer.image.ImageLoader;
+import io.mionick.imageviewer.image.TiledImage;
+import io.mionick.imageviewer.layers.ImageLayer;
+import io.mionick.imageviewer.metrics.Metrics;
+import io.mionick.imageviewer.metrics.MetricsOverlayView;
+import io.mionick.imageviewer.metrics.StartupTimer;
+import io.mionick.imageviewer.overlay.GridOverlay;
+import io.mionick.imageviewer.render.ImageSurfaceView;
+import io.mionick.imageviewer.trace.TouchRecorder;
 import io.mionick.imageviewer.ui.ButtonId;
 import io.mionick.imageviewer.ui.ButtonInfo;
 
@@ -39,37 +77,132 @@ public class MainActivity extends AppCompatActivity {
 
     private static final int MENU_DISPLAYED_MARGIN = 0;
     public static final int PICK_IMAGE = 1;
+    private static final int REQUEST_MEDIA_PERMISSION = 2;
+    private static final int PICK_LAYER = 3;
+    private static final float NEW_LAYER_OPACITY = 0.5f;
     public static final String TAG = "LOOKHERE";
 
     private String imageUri;
     private CustomCanvas customCanvas;
-    // Scale variables
-    private ScaleGestureDetector scaleGestureDetector;
-    private GestureDetector gestureDetector;
-    private RotationGestureDetector rotationGestureDetector;
+    private ImageSurfaceView imageSurfaceView;
+    private MetricsOverlayView metricsOverlay;
+    // Only the first activity of a process times its start, later ones are not cold starts.
+    private static boolean processStarted;
+    private StartupTimer startupTimer;
+    private boolean firstFrameDrawn;
+    private CanvasTouchHandler canvasTouchHandler;
+    private TransformApplier transformApplier;
+    // Only set while touch tracing is switched on, see TouchRecorder.
+    private TouchRecorder touchRecorder;
     private boolean rotationDisabled = false;
     private boolean menuVisible = true;
     private ViewGroup topLevelMenu;
     private final Map<ButtonId, ButtonInfo> menuButtons = new LinkedHashMap<>();
     private boolean deformMode = false;
     private boolean showGrid = false;
-    boolean deformOngoing = false;
+    private GridOverlay.Style gridStyle = GridOverlay.Style.DOTS;
+    private int gridDivisions = 3;
+    private boolean showEdges = false;
+    private boolean meshMode = false;
+    private ImageViewModel imageViewModel;
+    private WarpExporter warpExporter;
+    private ProgressBar exportProgress;
+    private ThumbnailStripView thumbnailStrip;
+    // Transform saved before the process was killed, applied once the image is decoded again.
+    private float[] pendingTransform;
+    private final ImageLoader.Callback canvasLoadCallback = new ImageLoader.Callback() {
+        @Override
+        public void onPreview(Bitmap preview, int width, int height) {
+            customCanvas.setPreview(preview, width, height);
+            onFirstImage();
+            if (pendingTransform != null) {
+                customCanvas.restoreTransform(pendingTransform, 0);
+                pendingTransform = null;
+            }
+        }
+
+        @Override
+        public void onBitmap(Bitmap bitmap) {
+            customCanvas.replaceBitmap(bitmap);
+        }
+
+        @Override
+        public void onTiledImage(TiledImage tiledImage) {
+            customCanvas.replaceTiledImage(tiledImage);
+        }
+
+        @Override
+        public void onAnimation(AnimatedImage animation) {
+            customCanvas.setAnimatedImage(animation);
+            onFirstImage();
+            if (pendingTransform != null) {
+                customCanvas.restoreTransform(pendingTransform, 0);
+                pendingTransform = null;
+            }
+        }
+    };
 
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        if (!processStarted) {
+            processStarted = true;
+            startupTimer = new StartupTimer(Process.getStartUptimeMillis(), SystemClock::uptimeMillis);
+        }
+        markStartup(StartupTimer.Phase.CREATE);
+        Trace.beginSection("onCreate");
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        markStartup(StartupTimer.Phase.CONTENT_VIEW);
 
         RelativeLayout mainLayout = findViewById(R.id.root);
         topLevelMenu = findViewById(R.id.menu);
+        exportProgress = findViewById(R.id.exportProgress);
+        thumbnailStrip = findViewById(R.id.thumbnailStrip);
         customCanvas = new CustomCanvas(this);
         mainLayout.addView(customCanvas, 1);
-        customCanvas.setBitmap(BitmapFactory.decodeResource(getResources(), R.drawable.mionick_logo_lg));
+        if (ImageSurfaceView.isRenderThreadEnabled()) {
+            // Below the canvas, which then only draws what the render thread doesn't.
+            imageSurfaceView = new ImageSurfaceView(this);
+            mainLayout.addView(imageSurfaceView, 1);
+            customCanvas.setRenderer(imageSurfaceView);
+        }
+        imageViewModel = new ViewModelProvider(this, new ViewModelProvider.NewInstanceFactory()).get(ImageViewModel.class);
+        imageViewModel.getImageLoader(this, tileCacheBytes());
+        imageViewModel.setListener(canvasLoadCallback);
+        boolean restored = imageViewModel.restoreInto(customCanvas);
+        customCanvas.setEdgeOverlay(imageViewModel.getEdgeOverlay());
+        imageViewModel.getEdgeOverlay().setOnUpdated(customCanvas::invalidateImage);
+        customCanvas.setLayers(imageViewModel.getLayers());
+        if (restored) customCanvas.setMeshWarp(imageViewModel.getMeshWarp());
+        imageViewModel.getMemoryBudget().register(customCanvas);
+        imageViewModel.setOnImageReduced(customCanvas::reduceBitmap);
+        customCanvas.setOnResolutionNeeded(imageViewModel::restoreFullResolution);
+        metricsOverlay = new MetricsOverlayView(this);
+        metricsOverlay.setMemoryBudget(imageViewModel.getMemoryBudget());
+        metricsOverlay.setVisibility(View.GONE);
+        mainLayout.addView(metricsOverlay, new RelativeLayout.LayoutParams(
+                LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT));
+        thumbnailStrip.setGenerator(imageViewModel.getThumbnailGenerator(this));
+        imageViewModel.getThumbnailGenerator(this).setOnThumbnailReady(thumbnailStrip::invalidate);
+        thumbnailStrip.setOnThumbnailClickListener(position ->
+                showNeighbour(position - imageViewModel.getCollection().getIndex()));
+        imageViewModel.setOnCollectionChanged(this::showCollection);
+        if (imageViewModel.getCollection() != null) {
+            showCollection();
+        }
+        if (restored) {
+            onFirstImage();
+        } else if (savedInstanceState == null || savedInstanceState.getString("imageUri") == null) {
+            // Decoded in the background, the window background stands in until it arrives.
+            imageViewModel.loadResource(R.drawable.mionick_logo_lg);
+        }
 
-        scaleGestureDetector = new ScaleGestureDetector(this, new ScaleListener());
-        gestureDetector = new GestureDetector(this, new GestureListener());
-        rotationGestureDetector = new RotationGestureDetector(new RotationListener());
+        canvasTouchHandler = new CanvasTouchHandler(customCanvas);
+        transformApplier = canvasTouchHandler.getTransformApplier();
+        if (TouchRecorder.isEnabled()) {
+            touchRecorder = TouchRecorder.start(new File(getFilesDir(), "touch-trace.bin"));
+        }
 
 
         // Building Menu
@@ -86,17 +219,28 @@ public class MainActivity extends AppCompatActivity {
                 LOCK_ROTATION.toString(),
                 view -> {
                     rotationDisabled = !rotationDisabled;
-                    view.setBackgroundTintList(ColorStateList.valueOf(getColor(!rotationDisabled ? R.color.colorPrimary : R.color.colorAccent)));
+                    transformApplier.setRotationEnabled(!rotationDisabled);
+                    setButtonActive(LOCK_ROTATION, rotationDisabled);
                 }));
         menuButtons.put(RESET_TRANSFORM, new ButtonInfo(android.R.drawable.ic_menu_revert,
                 RESET_TRANSFORM.toString(),
-                view -> customCanvas.resetImageTransform()));
+                view -> {
+                    customCanvas.recordTransform();
+                    customCanvas.resetImageTransform();
+                }));
+        menuButtons.put(UNDO, new ButtonInfo(android.R.drawable.ic_media_rew,
+                UNDO.toString(),
+                view -> customCanvas.undoTransform()));
+        menuButtons.put(REDO, new ButtonInfo(android.R.drawable.ic_media_ff,
+                REDO.toString(),
+                view -> customCanvas.redoTransform()));
 
         menuButtons.put(DEFORM, new ButtonInfo(android.R.drawable.ic_menu_directions,
                 DEFORM.toString(),
                 view -> {
                     deformMode = !deformMode;
-                    view.setBackgroundTintList(ColorStateList.valueOf(getColor(!deformMode ? R.color.colorPrimary : R.color.colorAccent)));
+                    canvasTouchHandler.setDeformMode(deformMode);
+                    setButtonActive(DEFORM, deformMode);
                     customCanvas.setDeformHandlesVisible(deformMode);
                 }));
 
@@ -104,14 +248,74 @@ public class MainActivity extends AppCompatActivity {
                 SHOW_GRID.toString(),
                 view -> {
                     showGrid = !showGrid;
-                    view.setBackgroundTintList(ColorStateList.valueOf(getColor(!showGrid ? R.color.colorPrimary : R.color.colorAccent)));
+                    setButtonActive(SHOW_GRID, showGrid);
                     customCanvas.setGridVisible(showGrid);
                 }));
+
+        menuButtons.put(GRID_OPTIONS, new ButtonInfo(android.R.drawable.ic_menu_preferences,
+                GRID_OPTIONS.toString(),
+                view -> showGridOptions()));
+
+        menuButtons.put(EDGES, new ButtonInfo(android.R.drawable.ic_menu_edit,
+                EDGES.toString(),
+                view -> {
+                    setEdgesVisible(true);
+                    showEdgeOptions();
+                }));
+
+        menuButtons.put(ADJUST_COLORS, new ButtonInfo(android.R.drawable.ic_menu_view,
+                ADJUST_COLORS.toString(),
+                view -> showColorOptions()));
+
+        menuButtons.put(MESH_WARP, new ButtonInfo(android.R.drawable.ic_menu_crop,
+                MESH_WARP.toString(),
+                view -> setMeshMode(!meshMode)));
+
+        menuButtons.put(EXPORT, new ButtonInfo(android.R.drawable.ic_menu_save,
+                EXPORT.toString(),
+                view -> {
+                    if (warpExporter != null && warpExporter.isRunning()) {
+                        warpExporter.cancel();
+                    } else {
+                        startExport();
+                    }
+                }));
+
+        menuButtons.put(PREVIOUS_IMAGE, new ButtonInfo(android.R.drawable.ic_media_previous,
+                PREVIOUS_IMAGE.toString(),
+                view -> showNeighbour(-1)));
+
+        menuButtons.put(NEXT_IMAGE, new ButtonInfo(android.R.drawable.ic_media_next,
+                NEXT_IMAGE.toString(),
+                view -> showNeighbour(1)));
+
+        menuButtons.put(ADD_LAYER, new ButtonInfo(android.R.drawable.ic_menu_add,
+                ADD_LAYER.toString(),
+                view -> {
+                    Intent intent = new Intent();
+                    intent.setType("image/*");
+                    intent.setAction(Intent.ACTION_GET_CONTENT);
+                    startActivityForResult(Intent.createChooser(intent, "Select Layer"), PICK_LAYER);
+                }));
+
+        menuButtons.put(LAYERS, new ButtonInfo(android.R.drawable.ic_dialog_map,
+                LAYERS.toString(),
+                view -> showLayers()));
+
+        menuButtons.put(METRICS, new ButtonInfo(android.R.drawable.ic_menu_info_details,
+                METRICS.toString(),
+                view -> {
+                    if (metricsOverlay.getVisibility() != View.VISIBLE) {
+                        setMetricsVisible(true);
+                    } else {
+                        showMetricsOptions();
+                    }
+                }));
 //
 //        menuButtons.put(TEST, new ButtonInfo(android.R.drawable.ic_secure,
 //                TEST.toString(),
 //                view -> {
-//                    float[] cornersInScreenSpace = customCanvas.getCornersInScreenSpace();
+//                    float[] cornersInScreenSpace = customCanvas.getCornersInScreenSpace(new float[8]);
 //                    cornersInScreenSpace[0] += 100;
 //                    customCanvas.setDeformation(cornersInScreenSpace);
 //                }));
@@ -145,12 +349,55 @@ public class MainActivity extends AppCompatActivity {
                     }
                 }));
 
+        setColorAdjustments(imageViewModel.getColorAdjustments());
+
+        // The buttons themselves are only built once the first frame is on screen.
+        getWindow().getDecorView().getViewTreeObserver().addOnDrawListener(firstFrameListener);
+        Trace.endSection();
+    }
+
+    private final ViewTreeObserver.OnDrawListener firstFrameListener = new ViewTreeObserver.OnDrawListener() {
+        @Override
+        public void onDraw() {
+            if (firstFrameDrawn) return;
+            firstFrameDrawn = true;
+            markStartup(StartupTimer.Phase.FIRST_FRAME);
+            // Views can't be added or listeners removed in the middle of a draw.
+            topLevelMenu.post(() -> {
+                getWindow().getDecorView().getViewTreeObserver().removeOnDrawListener(this);
+                buildMenu();
+            });
+        }
+    };
+
+    private void buildMenu() {
+        Trace.beginSection("buildMenu");
         menuButtons.values().forEach(buttonInfo -> {
             FloatingActionButton buttonView = createMenuButton(buttonInfo);
             buttonInfo.setView(buttonView);
             topLevelMenu.addView(buttonView);
         });
+        Trace.endSection();
+        markStartup(StartupTimer.Phase.MENU_BUILT);
+    }
+
+    // Drops the placeholder icon from the window background once there is an image over it.
+    private void onFirstImage() {
+        Drawable background = getWindow().getDecorView().getBackground();
+        if (background instanceof LayerDrawable) {
+            Drawable icon = ((LayerDrawable) background.mutate()).findDrawableByLayerId(R.id.placeholderIcon);
+            if (icon != null) icon.setAlpha(0);
+        }
+        markStartup(StartupTimer.Phase.FIRST_IMAGE);
+    }
 
+    private void markStartup(StartupTimer.Phase phase) {
+        if (startupTimer == null || !startupTimer.mark(phase)) return;
+        Log.i(TAG, startupTimer.toString());
+        Metrics.STARTUP_FIRST_FRAME.record(startupTimer.getTimeToFirstFrame());
+        Metrics.STARTUP_INTERACTIVE.record(startupTimer.getTimeToInteractive());
+        reportFullyDrawn();
+        startupTimer = null;
     }
 
 
@@ -160,101 +407,457 @@ public class MainActivity extends AppCompatActivity {
             data.getData();
             Uri selectedImage = data.getData();
             loadImageFromUri(selectedImage);
+            if (selectedImage != null) {
+                loadCollection();
+            }
+        } else if (requestCode == PICK_LAYER && data != null && data.getData() != null) {
+            imageViewModel.loadLayer(data.getData(), bitmap -> {
+                ImageLayer layer = new ImageLayer(bitmap, NEW_LAYER_OPACITY);
+                layer.fitTo(customCanvas.getWidth(), customCanvas.getHeight());
+                customCanvas.addLayer(layer);
+                transformApplier.setTarget(customCanvas.getActiveTarget());
+            });
         }
     }
 
-    @Override
-    public boolean onTouchEvent(MotionEvent motionEvent) {
-        Log.d(TAG, "onTouchEvent: " + motionEvent);
-        if (deformOngoing && motionEvent.getAction() == MotionEvent.ACTION_UP) {
-            deformOngoing = false;
+    // Picks which of the image and its layers the gestures move, and that layer's opacity.
+    private void showLayers() {
+        List<ImageLayer> layers = imageViewModel.getLayers();
+        if (layers.isEmpty()) {
+            Toast.makeText(this, "No layers, add one first", Toast.LENGTH_SHORT).show();
+            return;
         }
-        scaleGestureDetector.onTouchEvent(motionEvent);
-        gestureDetector.onTouchEvent(motionEvent);
-        if (!rotationDisabled) {
-            rotationGestureDetector.onTouchEvent(motionEvent);
-        }
-        return true;
-    }
-
-    private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener {
-        @Override
-        public boolean onScale(ScaleGestureDetector scaleGestureDetector) {
-            customCanvas.setMScaleFactor(customCanvas.getMScaleFactor() * scaleGestureDetector.getScaleFactor());
-            return true;
+        String[] names = new String[layers.size() + 1];
+        names[0] = "Image";
+        for (int i = 0; i < layers.size(); i++) {
+            names[i + 1] = "Layer " + (i + 1);
         }
-    }
-
-    private class GestureListener extends GestureDetector.SimpleOnGestureListener {
+        SeekBar opacityBar = new SeekBar(this);
+        opacityBar.setMax(100);
+        Runnable showOpacity = () -> {
+            TransformTarget target = customCanvas.getActiveTarget();
+            opacityBar.setEnabled(target instanceof ImageLayer);
+            opacityBar.setProgress(target instanceof ImageLayer
+                    ? Math.round(((ImageLayer) target).getOpacity() * 100) : 100);
+        };
+        showOpacity.run();
+        opacityBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                TransformTarget target = customCanvas.getActiveTarget();
+                if (fromUser && target instanceof ImageLayer) {
+                    ((ImageLayer) target).setOpacity(progress / 100f);
+                }
+            }
 
-        int touchTolerance = 50;
-        int cornerIndex = 0;
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
 
-        @Override
-        public boolean onSingleTapUp(MotionEvent e) {
-            if(e.getAction() == MotionEvent.ACTION_UP){
-                return true;
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
             }
-            return false;
-        }
-        @Override
-        public boolean onScroll(@NonNull MotionEvent e1, @NonNull MotionEvent e2,
-                                float distanceX, float distanceY) {
-
-            if (deformMode) {
-                float touchX;
-                float touchY;
-                float[] corners = customCanvas.getCornersInScreenSpace();
-                if (deformOngoing) {
-                    touchX = e2.getX();
-                    touchY = e2.getY();
-                    corners[2 * cornerIndex] = touchX;
-                    corners[2 * cornerIndex + 1] = touchY;
-                    customCanvas.setDeformation(corners);
-                } else {
-                    for (int i = 0; i < 4; i++) {
-                        touchX = e1.getX();
-                        touchY = e1.getY();
-                        if (Math.abs(touchX - corners[2 * i]) < touchTolerance && (Math.abs(touchY - corners[2 * i + 1]) < touchTolerance)) {
-                            deformOngoing = true;
-                            cornerIndex = i;
-                        }
+        });
+
+        new AlertDialog.Builder(this)
+                .setTitle(LAYERS.toString())
+                .setSingleChoiceItems(names, customCanvas.getActiveLayer() + 1, (dialog, which) -> {
+                    setActiveLayer(which - 1);
+                    showOpacity.run();
+                })
+                .setView(opacityBar)
+                .setPositiveButton(android.R.string.ok, null)
+                .setNegativeButton("Remove layer", (dialog, which) -> {
+                    if (customCanvas.getActiveLayer() >= 0) {
+                        customCanvas.removeLayer(customCanvas.getActiveLayer());
+                        transformApplier.setTarget(customCanvas.getActiveTarget());
                     }
-                }
-            }else {
-                customCanvas.setPosition(customCanvas.getX() - distanceX, customCanvas.getY() - distanceY);
-            }
+                })
+                .show();
+    }
 
-            return true;
+    private void setActiveLayer(int index) {
+        customCanvas.setActiveLayer(index);
+        transformApplier.setTarget(customCanvas.getActiveTarget());
+    }
+
+    // Next and previous walk the folder of the picked image, which needs the media permission.
+    private void loadCollection() {
+        String permission = Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                ? Manifest.permission.READ_MEDIA_IMAGES : Manifest.permission.READ_EXTERNAL_STORAGE;
+        if (checkSelfPermission(permission) != PackageManager.PERMISSION_GRANTED) {
+            requestPermissions(new String[]{permission}, REQUEST_MEDIA_PERMISSION);
         }
+        // Without the permission this still sets up a collection of just the picked image.
+        imageViewModel.loadCollection(this, Uri.parse(imageUri));
     }
 
-    private class RotationListener implements RotationGestureDetector.OnRotationGestureListener {
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == REQUEST_MEDIA_PERMISSION && grantResults.length > 0
+                && grantResults[0] == PackageManager.PERMISSION_GRANTED && imageUri != null) {
+            imageViewModel.loadCollection(this, Uri.parse(imageUri));
+        }
+    }
 
-        long lastSeenEventId = 0L;
-        float imageCurrentRotation = 0f;
+    private void showCollection() {
+        ImageCollection collection = imageViewModel.getCollection();
+        thumbnailStrip.setVisibility(collection.size() > 1 ? View.VISIBLE : View.GONE);
+        thumbnailStrip.setCollection(collection);
+    }
 
-        @Override
-        public void OnRotation(RotationGestureDetector rotationDetector) {
-            if (rotationDetector.getCurrentEventStartTime() != lastSeenEventId) {
-                imageCurrentRotation = customCanvas.getRotation();
-                lastSeenEventId = rotationDetector.getCurrentEventStartTime();
+    private void showNeighbour(int step) {
+        Uri uri = imageViewModel.browse(step);
+        if (uri != null) {
+            imageUri = uri.toString();
+            thumbnailStrip.scrollToCurrent();
+            if (warpExporter != null) {
+                warpExporter.cancel();
             }
-            customCanvas.setRotation(imageCurrentRotation - rotationDetector.getAngle());
         }
     }
 
+    @Override
+    public boolean onTouchEvent(MotionEvent motionEvent) {
+        if (touchRecorder != null) {
+            touchRecorder.record(motionEvent);
+        }
+        canvasTouchHandler.onTouchEvent(motionEvent);
+        return true;
+    }
+
     FloatingActionButton createMenuButton(ButtonInfo buttonInfo) {
         FloatingActionButton newBtn = new FloatingActionButton(this);
         newBtn.setLayoutParams(new LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT));
         newBtn.setAlpha(0.4f);
         newBtn.setImageResource(buttonInfo.getResId());
         newBtn.setOnClickListener(buttonInfo.getListener());
+        newBtn.setBackgroundTintList(buttonTint(buttonInfo.isActive()));
 //        newBtn.set(buttonInfo.getLabel());
 
         return newBtn;
     }
 
+    // Remembered on the ButtonInfo as well, the buttons may not have been built yet.
+    private void setButtonActive(ButtonId id, boolean active) {
+        ButtonInfo buttonInfo = Objects.requireNonNull(menuButtons.get(id));
+        buttonInfo.setActive(active);
+        if (buttonInfo.getView() != null) {
+            buttonInfo.getView().setBackgroundTintList(buttonTint(active));
+        }
+    }
+
+    private ColorStateList buttonTint(boolean active) {
+        return ColorStateList.valueOf(getColor(!active ? R.color.colorPrimary : R.color.colorAccent));
+    }
+
+    private void showGridOptions() {
+        View content = getLayoutInflater().inflate(R.layout.dialog_grid_options, null);
+        RadioGroup styleGroup = content.findViewById(R.id.gridStyle);
+        TextView divisionsLabel = content.findViewById(R.id.gridDivisionsLabel);
+        SeekBar divisionsBar = content.findViewById(R.id.gridDivisions);
+        int[] styleIds = {R.id.gridStyleDots, R.id.gridStyleLines, R.id.gridStyleDotsAndLines};
+
+        styleGroup.check(styleIds[gridStyle.ordinal()]);
+        styleGroup.setOnCheckedChangeListener((group, checkedId) -> {
+            for (int i = 0; i < styleIds.length; i++) {
+                if (styleIds[i] == checkedId) gridStyle = GridOverlay.Style.values()[i];
+            }
+            customCanvas.setGridStyle(gridStyle);
+        });
+        divisionsBar.setMax(GridOverlay.MAX_DIVISIONS - GridOverlay.MIN_DIVISIONS);
+        divisionsBar.setProgress(gridDivisions - GridOverlay.MIN_DIVISIONS);
+        divisionsLabel.setText("Cells across: " + gridDivisions);
+        divisionsBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                gridDivisions = GridOverlay.MIN_DIVISIONS + progress;
+                divisionsLabel.setText("Cells across: " + gridDivisions);
+                customCanvas.setGridDivisions(gridDivisions);
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        });
+
+        if (!showGrid) {
+            // Adjusting an invisible grid is pointless, show it while the options are open.
+            Objects.requireNonNull(menuButtons.get(SHOW_GRID)).getView().performClick();
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(GRID_OPTIONS.toString())
+                .setView(content)
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
+    private void setEdgesVisible(boolean visible) {
+        showEdges = visible;
+        customCanvas.setEdgesVisible(visible);
+        setButtonActive(EDGES, visible);
+    }
+
+    private void setColorAdjustments(ColorAdjustments adjustments) {
+        imageViewModel.setColorAdjustments(adjustments);
+        customCanvas.setColorAdjustments(adjustments);
+        setButtonActive(ADJUST_COLORS, !adjustments.isIdentity());
+    }
+
+    // Applied live while the sliders move; a gamma other than 1 re-bakes the curve in the background.
+    private void showColorOptions() {
+        View content = getLayoutInflater().inflate(R.layout.dialog_color_options, null);
+        TextView brightnessLabel = content.findViewById(R.id.colorBrightnessLabel);
+        TextView contrastLabel = content.findViewById(R.id.colorContrastLabel);
+        TextView blackLabel = content.findViewById(R.id.colorBlackLabel);
+        TextView whiteLabel = content.findViewById(R.id.colorWhiteLabel);
+        TextView gammaLabel = content.findViewById(R.id.colorGammaLabel);
+        SeekBar brightnessBar = content.findViewById(R.id.colorBrightness);
+        SeekBar contrastBar = content.findViewById(R.id.colorContrast);
+        SeekBar blackBar = content.findViewById(R.id.colorBlack);
+        SeekBar whiteBar = content.findViewById(R.id.colorWhite);
+        SeekBar gammaBar = content.findViewById(R.id.colorGamma);
+        CheckBox grayscaleBox = content.findViewById(R.id.colorGrayscale);
+        CheckBox invertBox = content.findViewById(R.id.colorInvert);
+
+        ColorAdjustments current = imageViewModel.getColorAdjustments();
+        brightnessBar.setProgress(Math.round(current.brightness * 100) + 100);
+        contrastBar.setProgress(Math.round(current.contrast * 100));
+        blackBar.setProgress(Math.round(current.black * 255));
+        whiteBar.setProgress(Math.round(current.white * 255));
+        gammaBar.setProgress(Math.round(current.gamma * 100) - 10);
+        grayscaleBox.setChecked(current.grayscale);
+        invertBox.setChecked(current.invert);
+        // Gamma is baked into a copy of the pixels, which tiled and animated images don't have.
+        boolean gammaShown = customCanvas.canBakeCurve();
+        gammaBar.setEnabled(gammaShown);
+
+        Runnable apply = () -> {
+            // Levels need white above black, the white point gives way.
+            if (whiteBar.getProgress() <= blackBar.getProgress()) {
+                whiteBar.setProgress(blackBar.getProgress() + 1);
+            }
+            ColorAdjustments adjustments = new ColorAdjustments(
+                    (brightnessBar.getProgress() - 100) / 100f, contrastBar.getProgress() / 100f,
+                    grayscaleBox.isChecked(), invertBox.isChecked(),
+                    blackBar.getProgress() / 255f, whiteBar.getProgress() / 255f,
+                    (gammaBar.getProgress() + 10) / 100f);
+            brightnessLabel.setText(String.format(Locale.US, "Brightness: %+.2f", adjustments.brightness));
+            contrastLabel.setText(String.format(Locale.US, "Contrast: %.2f", adjustments.contrast));
+            blackLabel.setText("Black point: " + blackBar.getProgress());
+            whiteLabel.setText("White point: " + whiteBar.getProgress());
+            gammaLabel.setText(gammaShown
+                    ? String.format(Locale.US, "Gamma: %.2f", adjustments.gamma)
+                    : "Gamma: not available for tiled or animated images");
+            setColorAdjustments(adjustments);
+        };
+        SeekBar.OnSeekBarChangeListener listener = new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                apply.run();
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        };
+        apply.run();
+        for (SeekBar bar : new SeekBar[]{brightnessBar, contrastBar, blackBar, whiteBar, gammaBar}) {
+            bar.setOnSeekBarChangeListener(listener);
+        }
+        grayscaleBox.setOnCheckedChangeListener((button, checked) -> apply.run());
+        invertBox.setOnCheckedChangeListener((button, checked) -> apply.run());
+
+        new AlertDialog.Builder(this)
+                .setTitle(ADJUST_COLORS.toString())
+                .setView(content)
+                .setPositiveButton(android.R.string.ok, null)
+                .setNegativeButton("Reset", (dialog, which) -> setColorAdjustments(ColorAdjustments.NONE))
+                .show();
+    }
+
+    private void setMetricsVisible(boolean visible) {
+        metricsOverlay.setVisibility(visible ? View.VISIBLE : View.GONE);
+        setButtonActive(METRICS, visible);
+    }
+
+    private void showMetricsOptions() {
+        String[] options = {"Export JSON", "Export CSV", "Reset", "Hide"};
+        new AlertDialog.Builder(this)
+                .setTitle(METRICS.toString())
+                .setItems(options, (dialog, which) -> {
+                    switch (which) {
+                        case 0:
+                            exportMetrics(false);
+                            break;
+                        case 1:
+                            exportMetrics(true);
+                            break;
+                        case 2:
+                            Metrics.reset();
+                            break;
+                        default:
+                            setMetricsVisible(false);
+                    }
+                })
+                .show();
+    }
+
+    private void exportMetrics(boolean csv) {
+        File file = new File(getExternalFilesDir(null),
+                "metrics-" + System.currentTimeMillis() + (csv ? ".csv" : ".json"));
+        try (Writer out = new BufferedWriter(new FileWriter(file))) {
+            if (csv) {
+                Metrics.writeCsv(out);
+            } else {
+                Metrics.writeJson(out);
+            }
+            Toast.makeText(this, "Metrics saved to " + file, Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not export metrics", e);
+            Toast.makeText(this, "Could not save metrics", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    // Thresholds apply live while the sliders move, only the cheap threshold pass reruns.
+    private void showEdgeOptions() {
+        EdgeOverlay edgeOverlay = imageViewModel.getEdgeOverlay();
+        View content = getLayoutInflater().inflate(R.layout.dialog_edge_options, null);
+        TextView lowLabel = content.findViewById(R.id.edgeLowLabel);
+        TextView highLabel = content.findViewById(R.id.edgeHighLabel);
+        SeekBar lowBar = content.findViewById(R.id.edgeLow);
+        SeekBar highBar = content.findViewById(R.id.edgeHigh);
+        lowBar.setProgress(edgeOverlay.getLow());
+        highBar.setProgress(edgeOverlay.getHigh());
+        lowLabel.setText("Weak edges: " + edgeOverlay.getLow());
+        highLabel.setText("Strong edges: " + edgeOverlay.getHigh());
+        SeekBar.OnSeekBarChangeListener listener = new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                lowLabel.setText("Weak edges: " + lowBar.getProgress());
+                highLabel.setText("Strong edges: " + highBar.getProgress());
+                edgeOverlay.setThresholds(lowBar.getProgress(), highBar.getProgress());
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        };
+        lowBar.setOnSeekBarChangeListener(listener);
+        highBar.setOnSeekBarChangeListener(listener);
+
+        new AlertDialog.Builder(this)
+                .setTitle(EDGES.toString())
+                .setView(content)
+                .setPositiveButton(android.R.string.ok, null)
+                .setNegativeButton("Hide", (dialog, which) -> setEdgesVisible(false))
+                .show();
+    }
+
+    private void startExport() {
+        WarpExporter.Source source;
+        if (customCanvas.getTiledImage() != null) {
+            source = WarpExporter.tiledSource(customCanvas.getTiledImage());
+        } else if (customCanvas.getBitmap() != null) {
+            source = WarpExporter.bitmapSource(customCanvas.getBitmap(),
+                    (int) customCanvas.getW(), (int) customCanvas.getH());
+        } else if (customCanvas.getAnimatedImage() != null
+                && customCanvas.getAnimatedImage().getCurrentFrame() != null) {
+            // The frame on screen, copied as its bitmap is soon reused for a later one.
+            Bitmap frame = customCanvas.getAnimatedImage().getCurrentFrame();
+            source = WarpExporter.bitmapSource(frame.copy(Bitmap.Config.ARGB_8888, false),
+                    (int) customCanvas.getW(), (int) customCanvas.getH());
+        } else {
+            return;
+        }
+        float[] imageToScreen = new float[Homography.SIZE];
+        customCanvas.getImageToScreen(imageToScreen);
+        File file = new File(getExternalFilesDir(Environment.DIRECTORY_PICTURES),
+                "export-" + System.currentTimeMillis() + ".png");
+        setButtonActive(EXPORT, true);
+        exportProgress.setProgress(0);
+        exportProgress.setVisibility(View.VISIBLE);
+
+        warpExporter = new WarpExporter(source, imageToScreen, file, new WarpExporter.Listener() {
+            @Override
+            public void onProgress(int bandsWritten, int bandCount) {
+                exportProgress.setMax(bandCount);
+                exportProgress.setProgress(bandsWritten);
+            }
+
+            @Override
+            public void onFinished(File file) {
+                onExportEnded("Saved " + file.getName());
+            }
+
+            @Override
+            public void onCancelled() {
+                onExportEnded("Export cancelled");
+            }
+
+            @Override
+            public void onFailed(Exception e) {
+                Log.e(TAG, "Export failed", e);
+                onExportEnded("Export failed");
+            }
+        });
+        warpExporter.start();
+    }
+
+    private void onExportEnded(String message) {
+        exportProgress.setVisibility(View.GONE);
+        setButtonActive(EXPORT, false);
+        Toast.makeText(getApplicationContext(), message, Toast.LENGTH_SHORT).show();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (warpExporter != null) {
+            warpExporter.cancel();
+        }
+        imageViewModel.setListener(null);
+        imageViewModel.setOnCollectionChanged(null);
+        imageViewModel.getEdgeOverlay().setOnUpdated(null);
+        imageViewModel.getMemoryBudget().unregister(customCanvas);
+        imageViewModel.setOnImageReduced(null);
+        if (imageSurfaceView != null) {
+            imageSurfaceView.release();
+        }
+        for (ImageLayer layer : imageViewModel.getLayers()) {
+            layer.setOnChanged(null);
+        }
+        imageViewModel.getThumbnailGenerator(this).setOnThumbnailReady(null);
+        if (touchRecorder != null) {
+            touchRecorder.close();
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        imageViewModel.getMemoryBudget().onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        imageViewModel.getMemoryBudget().onLowMemory();
+    }
+
     // Screen rotation destroys and recreates everything
     @Override
     public void onSaveInstanceState(Bundle savedInstanceState) {
@@ -265,6 +868,16 @@ public class MainActivity extends AppCompatActivity {
 
         savedInstanceState.putString("imageUri", imageUri);
         savedInstanceState.putBoolean("rotationDisabled", rotationDisabled);
+        savedInstanceState.putBoolean("deformMode", deformMode);
+        savedInstanceState.putBoolean("meshMode", meshMode);
+        savedInstanceState.putBoolean("showGrid", showGrid);
+        savedInstanceState.putString("gridStyle", gridStyle.name());
+        savedInstanceState.putInt("gridDivisions", gridDivisions);
+        savedInstanceState.putBoolean("showEdges", showEdges);
+        savedInstanceState.putBoolean("showMetrics", metricsOverlay.getVisibility() == View.VISIBLE);
+        float[] transform = new float[CustomCanvas.TRANSFORM_STATE_SIZE];
+        customCanvas.saveTransform(transform, 0);
+        savedInstanceState.putFloatArray("canvasTransform", transform);
 
         // etc.
 
@@ -280,24 +893,61 @@ public class MainActivity extends AppCompatActivity {
         // This bundle has also been passed to onCreate.
 
         imageUri = savedInstanceState.getString("imageUri");
-        if (imageUri != null) loadImageFromUri(Uri.parse(imageUri));
+        float[] transform = savedInstanceState.getFloatArray("canvasTransform");
+        if (customCanvas.hasImage()) {
+            // Retained across the configuration change, no need to decode again.
+            if (transform != null) customCanvas.restoreTransform(transform, 0);
+        } else if (imageUri != null) {
+            pendingTransform = transform;
+            loadImageFromUri(Uri.parse(imageUri));
+        }
         rotationDisabled = savedInstanceState.getBoolean("rotationDisabled");
-        Objects.requireNonNull(menuButtons.get(LOCK_ROTATION)).getView()
-                .setBackgroundTintList(ColorStateList.valueOf(getColor(!rotationDisabled ? R.color.colorPrimary : R.color.colorAccent)));
+        transformApplier.setRotationEnabled(!rotationDisabled);
+        setButtonActive(LOCK_ROTATION, rotationDisabled);
+        deformMode = savedInstanceState.getBoolean("deformMode");
+        canvasTouchHandler.setDeformMode(deformMode);
+        customCanvas.setDeformHandlesVisible(deformMode);
+        setButtonActive(DEFORM, deformMode);
+        setMeshMode(savedInstanceState.getBoolean("meshMode"));
+        showGrid = savedInstanceState.getBoolean("showGrid");
+        customCanvas.setGridVisible(showGrid);
+        setButtonActive(SHOW_GRID, showGrid);
+        gridStyle = GridOverlay.Style.valueOf(savedInstanceState.getString("gridStyle", gridStyle.name()));
+        gridDivisions = savedInstanceState.getInt("gridDivisions", gridDivisions);
+        customCanvas.setGridStyle(gridStyle);
+        customCanvas.setGridDivisions(gridDivisions);
+        setEdgesVisible(savedInstanceState.getBoolean("showEdges"));
+        setMetricsVisible(savedInstanceState.getBoolean("showMetrics"));
+
 
+    }
 
+    // The warp handed over by the view model stays as it was, otherwise one is made afresh.
+    private void setMeshMode(boolean meshMode) {
+        this.meshMode = meshMode;
+        canvasTouchHandler.setMeshMode(meshMode);
+        setButtonActive(MESH_WARP, meshMode);
+        customCanvas.setMeshWarpEnabled(meshMode);
+        imageViewModel.setMeshWarp(customCanvas.getMeshWarp());
     }
 
     private void loadImageFromUri(Uri imageUri) {
         if (imageUri != null) {
             this.imageUri = imageUri.toString();
-            try {
-                Bitmap selectedImageBitmap = MediaStore.Images.Media.getBitmap(this.getContentResolver(), imageUri);
-                customCanvas.setBitmap(selectedImageBitmap);
-                customCanvas.resetImageTransform();
-            } catch (IOException e) {
-                e.printStackTrace();
+            if (warpExporter != null) {
+                // The export reads from the image about to be released.
+                warpExporter.cancel();
             }
+            imageViewModel.load(imageUri);
         }
     }
+
+    // Enough tiles to cover the screen a few times over, whatever the zoom level.
+    private int tileCacheBytes() {
+        DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
+        int tileBytes = TiledImage.TILE_SIZE * TiledImage.TILE_SIZE * 4;
+        int tilesAcross = displayMetrics.widthPixels / TiledImage.TILE_SIZE + 2;
+        int tilesDown = displayMetrics.heightPixels / TiledImage.TILE_SIZE + 2;
+        return 3 * tilesAcross * tilesDown * tileBytes;
+    }
 }
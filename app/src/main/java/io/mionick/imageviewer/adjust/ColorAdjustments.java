@@ -0,0 +1,136 @@
+package io.mionick.imageviewer.adjust;
+
+import java.util.Arrays;
+
+/**
+ * Brightness, contrast, grayscale, invert and levels, applied when the image is drawn instead of
+ * to a copy of it. Everything linear folds into one 4x5 colour matrix, in the layout of
+ * {@link android.graphics.ColorMatrix}; only a levels gamma other than 1 is a curve, which has to
+ * be baked into the pixels. Immutable, a change makes a new one.
+ */
+public final class ColorAdjustments {
+    public static final ColorAdjustments NONE = new ColorAdjustments(0, 1, false, false, 0, 1, 1);
+    public static final int MATRIX_SIZE = 20;
+    // Rec. 709 luma weights.
+    private static final float LUMA_R = 0.2126f, LUMA_G = 0.7152f, LUMA_B = 0.0722f;
+
+    // -1 to 1, added to every channel as a fraction of full scale.
+    public final float brightness;
+    // Multiplies the distance from mid grey, 1 leaves it alone.
+    public final float contrast;
+    public final boolean grayscale;
+    public final boolean invert;
+    // Input levels as fractions of full scale: black maps to 0, white to full, gamma bends between.
+    public final float black, white, gamma;
+
+    public ColorAdjustments(float brightness, float contrast, boolean grayscale, boolean invert,
+                            float black, float white, float gamma) {
+        if (!(white > black) || !(gamma > 0)) {
+            throw new IllegalArgumentException("Levels need black < white and gamma > 0");
+        }
+        this.brightness = brightness;
+        this.contrast = contrast;
+        this.grayscale = grayscale;
+        this.invert = invert;
+        this.black = black;
+        this.white = white;
+        this.gamma = gamma;
+    }
+
+    public boolean isIdentity() {
+        return equals(NONE);
+    }
+
+    /**
+     * Whether {@link #getCurve} has to be baked into the pixels before {@link #getMatrix} applies.
+     */
+    public boolean hasCurve() {
+        return gamma != 1;
+    }
+
+    /**
+     * Writes the combined matrix, levels then brightness, contrast, grayscale and invert, into
+     * {@code out}. With {@code curveBaked} the levels are left to the curve in the pixels;
+     * without it black and white still apply and a gamma other than 1 is dropped.
+     */
+    public void getMatrix(float[] out, boolean curveBaked) {
+        setScale(out, 1, 0);
+        if (!curveBaked) {
+            float scale = 1 / (white - black);
+            postConcat(out, scaleMatrix(scale, -black * scale * 255));
+        }
+        postConcat(out, scaleMatrix(1, brightness * 255));
+        postConcat(out, scaleMatrix(contrast, 128 * (1 - contrast)));
+        if (grayscale) {
+            float[] luma = new float[MATRIX_SIZE];
+            for (int row = 0; row < 3; row++) {
+                luma[5 * row] = LUMA_R;
+                luma[5 * row + 1] = LUMA_G;
+                luma[5 * row + 2] = LUMA_B;
+            }
+            luma[18] = 1;
+            postConcat(out, luma);
+        }
+        if (invert) {
+            postConcat(out, scaleMatrix(-1, 255));
+        }
+    }
+
+    /**
+     * Writes the levels curve as a lookup from each 8 bit channel value to its output into
+     * {@code out}, which holds 256 entries.
+     */
+    public void getCurve(int[] out) {
+        for (int i = 0; i < 256; i++) {
+            float value = (i / 255f - black) / (white - black);
+            value = value <= 0 ? 0 : value >= 1 ? 1 : (float) Math.pow(value, 1 / gamma);
+            out[i] = Math.round(value * 255);
+        }
+    }
+
+    private static float[] scaleMatrix(float scale, float translate) {
+        float[] matrix = new float[MATRIX_SIZE];
+        setScale(matrix, scale, translate);
+        return matrix;
+    }
+
+    // Scales and offsets red, green and blue alike, alpha passes through.
+    private static void setScale(float[] matrix, float scale, float translate) {
+        Arrays.fill(matrix, 0);
+        for (int row = 0; row < 3; row++) {
+            matrix[6 * row] = scale;
+            matrix[5 * row + 4] = translate;
+        }
+        matrix[18] = 1;
+    }
+
+    // matrix = next * matrix, so next applies to the output of what matrix did so far.
+    static void postConcat(float[] matrix, float[] next) {
+        float[] result = new float[MATRIX_SIZE];
+        for (int row = 0; row < 4; row++) {
+            for (int column = 0; column < 5; column++) {
+                float sum = column == 4 ? next[5 * row + 4] : 0;
+                for (int k = 0; k < 4; k++) {
+                    sum += next[5 * row + k] * matrix[5 * k + column];
+                }
+                result[5 * row + column] = sum;
+            }
+        }
+        System.arraycopy(result, 0, matrix, 0, MATRIX_SIZE);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ColorAdjustments)) return false;
+        ColorAdjustments other = (ColorAdjustments) o;
+        return brightness == other.brightness && contrast == other.contrast
+                && grayscale == other.grayscale && invert == other.invert
+                && black == other.black && white == other.white && gamma == other.gamma;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new float[]{brightness, contrast, grayscale ? 1 : 0, invert ? 1 : 0, black, white, gamma});
+    }
+}
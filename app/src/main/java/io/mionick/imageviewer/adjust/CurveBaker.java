@@ -0,0 +1,94 @@
+package io.mionick.imageviewer.adjust;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bakes a per-channel curve into a copy of a bitmap, in bands of rows spread over all cores.
+ * Starting a new bake or cancelling abandons the one in flight; its copy is recycled once its
+ * last band finishes and is never delivered.
+ */
+public class CurveBaker {
+    private static final int BAND_ROWS = 64;
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1), runnable -> {
+                Thread thread = new Thread(runnable, "CurveBaker");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile int generation;
+
+    public interface Callback {
+        void onBaked(Bitmap baked);
+    }
+
+    /**
+     * Applies {@code curve}, 256 entries, to the red, green and blue of {@code source} and
+     * delivers the copy on the main thread.
+     */
+    public void bake(Bitmap source, int[] curve, Callback callback) {
+        int bakeGeneration = ++generation;
+        int[] lookup = curve.clone();
+        int width = source.getWidth();
+        int height = source.getHeight();
+        Bitmap baked = Bitmap.createBitmap(width, height,
+                source.getConfig() == Bitmap.Config.RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+        int bands = (height + BAND_ROWS - 1) / BAND_ROWS;
+        AtomicInteger remaining = new AtomicInteger(bands);
+        for (int band = 0; band < bands; band++) {
+            int top = band * BAND_ROWS;
+            int rows = Math.min(BAND_ROWS, height - top);
+            WORKERS.execute(() -> {
+                try {
+                    if (bakeGeneration == generation && !source.isRecycled()) {
+                        bakeBand(source, baked, lookup, top, rows);
+                    }
+                } finally {
+                    if (remaining.decrementAndGet() == 0) finish(baked, bakeGeneration, callback);
+                }
+            });
+        }
+    }
+
+    public void cancel() {
+        generation++;
+    }
+
+    private void bakeBand(Bitmap source, Bitmap baked, int[] lookup, int top, int rows) {
+        Trace.beginSection("curveBand");
+        try {
+            int width = source.getWidth();
+            int[] pixels = new int[width * rows];
+            source.getPixels(pixels, 0, width, 0, top, width, rows);
+            for (int i = 0; i < pixels.length; i++) {
+                int pixel = pixels[i];
+                pixels[i] = pixel & 0xFF000000 | lookup[pixel >> 16 & 0xFF] << 16
+                        | lookup[pixel >> 8 & 0xFF] << 8 | lookup[pixel & 0xFF];
+            }
+            // Writes into the one bitmap are serialised, the lookups above are what runs in parallel.
+            synchronized (baked) {
+                baked.setPixels(pixels, 0, width, 0, top, width, rows);
+            }
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    private void finish(Bitmap baked, int bakeGeneration, Callback callback) {
+        mainHandler.post(() -> {
+            if (bakeGeneration == generation) {
+                callback.onBaked(baked);
+            } else {
+                baked.recycle();
+            }
+        });
+    }
+}
@@ -0,0 +1,125 @@
+package io.mionick.imageviewer.browse;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The images sharing a folder (MediaStore bucket) with the one that was picked, in the order they
+ * were taken, with a cursor on the one being shown. Falls back to just the picked image when it
+ * does not come from MediaStore or the media permission is missing.
+ */
+public class ImageCollection {
+    private static final String TAG = "ImageCollection";
+    private static final String MEDIA_DOCUMENTS_AUTHORITY = "com.android.providers.media.documents";
+
+    private final Uri[] uris;
+    private int index;
+
+    private ImageCollection(Uri[] uris, int index) {
+        this.uris = uris;
+        this.index = index;
+    }
+
+    /**
+     * Runs a MediaStore query, keep it off the main thread.
+     */
+    public static ImageCollection query(ContentResolver contentResolver, Uri picked) {
+        long id = mediaId(picked);
+        if (id < 0) return single(picked);
+
+        String bucket = null;
+        Uri mediaUri = ContentUris.withAppendedId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, id);
+        try (Cursor cursor = contentResolver.query(mediaUri,
+                new String[]{MediaStore.Images.Media.BUCKET_ID}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) bucket = cursor.getString(0);
+        } catch (SecurityException e) {
+            Log.w(TAG, "No permission to read the media store", e);
+        }
+        if (bucket == null) return single(picked);
+
+        List<Uri> siblings = new ArrayList<>();
+        int index = 0;
+        try (Cursor cursor = contentResolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                new String[]{MediaStore.Images.Media._ID},
+                MediaStore.Images.Media.BUCKET_ID + " = ?", new String[]{bucket},
+                MediaStore.Images.Media.DATE_TAKEN + ", " + MediaStore.Images.Media._ID)) {
+            while (cursor != null && cursor.moveToNext()) {
+                long siblingId = cursor.getLong(0);
+                if (siblingId == id) {
+                    index = siblings.size();
+                    // Keep the picked uri itself, the grant it came with may be all we can read.
+                    siblings.add(picked);
+                } else {
+                    siblings.add(ContentUris.withAppendedId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, siblingId));
+                }
+            }
+        } catch (SecurityException e) {
+            Log.w(TAG, "No permission to read the media store", e);
+            return single(picked);
+        }
+        if (siblings.isEmpty()) return single(picked);
+        return new ImageCollection(siblings.toArray(new Uri[0]), index);
+    }
+
+    public static ImageCollection single(Uri picked) {
+        return new ImageCollection(new Uri[]{picked}, 0);
+    }
+
+    // The MediaStore row behind a picker result, or -1 if it is not a media image.
+    private static long mediaId(Uri uri) {
+        try {
+            if (MEDIA_DOCUMENTS_AUTHORITY.equals(uri.getAuthority())) {
+                String documentId = DocumentsContract.getDocumentId(uri);
+                return documentId.startsWith("image:") ? Long.parseLong(documentId.substring(6)) : -1;
+            }
+            if (MediaStore.AUTHORITY.equals(uri.getAuthority())) {
+                return ContentUris.parseId(uri);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unrecognised media uri " + uri, e);
+        }
+        return -1;
+    }
+
+    public int size() {
+        return uris.length;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public Uri get(int position) {
+        return uris[position];
+    }
+
+    public Uri getCurrent() {
+        return uris[index];
+    }
+
+    /**
+     * The image {@code offset} positions away from the current one, or null past either end.
+     */
+    public Uri peek(int offset) {
+        int target = index + offset;
+        return target >= 0 && target < uris.length ? uris[target] : null;
+    }
+
+    /**
+     * Moves the cursor by {@code offset} and returns the new current image, or null, leaving the
+     * cursor alone, past either end.
+     */
+    public Uri move(int offset) {
+        Uri target = peek(offset);
+        if (target != null) index += offset;
+        return target;
+    }
+}
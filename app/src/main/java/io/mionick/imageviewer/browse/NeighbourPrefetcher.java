@@ -0,0 +1,82 @@
+package io.mionick.imageviewer.browse;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import io.mionick.imageviewer.image.ImageLoader;
+
+/**
+ * Keeps the images next to the current one of an {@link ImageCollection} decoded ahead of time.
+ * More images are prepared in the direction the user is moving than behind, and prefetches that
+ * fall out of that window, for instance after a change of direction, are cancelled.
+ */
+public class NeighbourPrefetcher {
+    private static final int AHEAD = 2;
+    private static final int BEHIND = 1;
+
+    private final ImageLoader imageLoader;
+    private final long budgetBytes;
+    private final Map<Uri, Future<?>> prefetches = new HashMap<>();
+    private final List<Uri> wanted = new ArrayList<>(AHEAD + BEHIND);
+
+    /**
+     * @param budgetBytes memory the prefetched images may take together
+     */
+    public NeighbourPrefetcher(ImageLoader imageLoader, long budgetBytes) {
+        this.imageLoader = imageLoader;
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Call after each move, {@code direction} being the sign of the last step.
+     */
+    public void update(ImageCollection collection, int direction) {
+        int step = direction < 0 ? -1 : 1;
+        wanted.clear();
+        for (int i = 1; i <= AHEAD; i++) {
+            Uri uri = collection.peek(i * step);
+            if (uri != null) wanted.add(uri);
+        }
+        for (int i = 1; i <= BEHIND; i++) {
+            Uri uri = collection.peek(-i * step);
+            if (uri != null) wanted.add(uri);
+        }
+
+        Iterator<Map.Entry<Uri, Future<?>>> iterator = prefetches.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Uri, Future<?>> entry = iterator.next();
+            if (entry.getKey().equals(collection.getCurrent())) {
+                // Now being loaded for real; a prefetch still running is already halfway there.
+                iterator.remove();
+            } else if (!wanted.contains(entry.getKey())) {
+                entry.getValue().cancel(true);
+                iterator.remove();
+            } else if (entry.getValue().isDone()) {
+                // Submitted again below: the cache may have evicted it since, and a prefetch of
+                // an image still cached returns as soon as it has checked.
+                iterator.remove();
+            }
+        }
+        if (wanted.isEmpty()) return;
+        long perImage = budgetBytes / wanted.size();
+        // Submitted nearest first in the direction of travel, which is the order they run in.
+        for (Uri uri : wanted) {
+            if (!prefetches.containsKey(uri)) {
+                prefetches.put(uri, imageLoader.prefetch(uri, perImage));
+            }
+        }
+    }
+
+    public void cancelAll() {
+        for (Future<?> future : prefetches.values()) {
+            future.cancel(true);
+        }
+        prefetches.clear();
+    }
+}
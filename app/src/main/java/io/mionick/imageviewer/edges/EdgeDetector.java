@@ -0,0 +1,174 @@
+package io.mionick.imageviewer.edges;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Canny-style edge detection on packed ARGB pixels, split into horizontal stripes that run in
+ * parallel on a fork/join pool. The expensive part, luminance, Sobel gradients and non-maximum
+ * suppression, is done once by {@link #gradient}; {@link #threshold} then only compares the
+ * thinned magnitudes against two thresholds, so moving a slider costs a single cheap pass.
+ */
+public class EdgeDetector {
+    // Stripes smaller than this are not worth another fork.
+    private static final int STRIPE_ROWS = 32;
+    // Sobel magnitude of a black to white step, mapped to 255 in the thresholds.
+    private static final int MAX_MAGNITUDE = 1020;
+
+    private static final byte HORIZONTAL = 0, DIAGONAL_DOWN = 1, VERTICAL = 2, DIAGONAL_UP = 3;
+
+    private EdgeDetector() {
+    }
+
+    /**
+     * The reusable result of the gradient pass: a thinned gradient magnitude per pixel, scaled to
+     * 0..255 and stored unsigned, one byte each.
+     */
+    public static class Gradient {
+        public final int width, height;
+        final byte[] magnitude;
+
+        Gradient(int width, int height) {
+            this.width = width;
+            this.height = height;
+            magnitude = new byte[width * height];
+        }
+
+        public int byteCount() {
+            return magnitude.length;
+        }
+    }
+
+    public static Gradient gradient(int[] argb, int width, int height, ForkJoinPool pool) {
+        int[] luminance = new int[width * height];
+        int[] magnitude = new int[width * height];
+        byte[] direction = new byte[width * height];
+        Gradient gradient = new Gradient(width, height);
+        pool.invoke(new Stripes(0, height, (from, to) -> luminance(argb, luminance, width, from, to)));
+        pool.invoke(new Stripes(0, height, (from, to) -> sobel(luminance, magnitude, direction, width, height, from, to)));
+        pool.invoke(new Stripes(0, height, (from, to) -> suppress(magnitude, direction, gradient.magnitude, width, height, from, to)));
+        return gradient;
+    }
+
+    /**
+     * Writes {@code color} into {@code out} where there is an edge and transparent elsewhere.
+     * Pixels at or above {@code high} are edges, and so are pixels at or above {@code low} that
+     * touch one: a one-step, parallel-friendly stand-in for full hysteresis.
+     */
+    public static void threshold(Gradient gradient, int low, int high, int color, int[] out, ForkJoinPool pool) {
+        int lowThreshold = Math.min(low, high);
+        pool.invoke(new Stripes(0, gradient.height,
+                (from, to) -> threshold(gradient, lowThreshold, high, color, out, from, to)));
+    }
+
+    private static void luminance(int[] argb, int[] luminance, int width, int fromRow, int toRow) {
+        for (int i = fromRow * width, end = toRow * width; i < end; i++) {
+            int pixel = argb[i];
+            // Rec. 601 weights in fixed point, 0..255.
+            luminance[i] = (77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff) + 29 * (pixel & 0xff)) >> 8;
+        }
+    }
+
+    private static void sobel(int[] luminance, int[] magnitude, byte[] direction, int width, int height,
+                              int fromRow, int toRow) {
+        for (int y = Math.max(1, fromRow); y < Math.min(height - 1, toRow); y++) {
+            int above = (y - 1) * width, row = y * width, below = (y + 1) * width;
+            for (int x = 1; x < width - 1; x++) {
+                int gx = luminance[above + x + 1] + 2 * luminance[row + x + 1] + luminance[below + x + 1]
+                        - luminance[above + x - 1] - 2 * luminance[row + x - 1] - luminance[below + x - 1];
+                int gy = luminance[below + x - 1] + 2 * luminance[below + x] + luminance[below + x + 1]
+                        - luminance[above + x - 1] - 2 * luminance[above + x] - luminance[above + x + 1];
+                int ax = Math.abs(gx), ay = Math.abs(gy);
+                magnitude[row + x] = ax + ay;
+                // Quantise the gradient direction to the nearest of four, without atan2:
+                // tan(22.5) ~ 53/128 and tan(67.5) ~ 309/128.
+                byte d;
+                if (128 * ay <= 53 * ax) {
+                    d = HORIZONTAL;
+                } else if (128 * ay >= 309 * ax) {
+                    d = VERTICAL;
+                } else {
+                    d = (gx ^ gy) < 0 ? DIAGONAL_UP : DIAGONAL_DOWN;
+                }
+                direction[row + x] = d;
+            }
+        }
+    }
+
+    // Keeps a pixel only where it is the local maximum across the edge, which thins edges to a line.
+    private static void suppress(int[] magnitude, byte[] direction, byte[] out, int width, int height,
+                                 int fromRow, int toRow) {
+        for (int y = Math.max(1, fromRow); y < Math.min(height - 1, toRow); y++) {
+            int row = y * width;
+            for (int x = 1; x < width - 1; x++) {
+                int i = row + x;
+                int m = magnitude[i];
+                if (m == 0) continue;
+                int offset;
+                switch (direction[i]) {
+                    case HORIZONTAL:
+                        offset = 1;
+                        break;
+                    case VERTICAL:
+                        offset = width;
+                        break;
+                    case DIAGONAL_DOWN:
+                        offset = width + 1;
+                        break;
+                    default:
+                        offset = width - 1;
+                        break;
+                }
+                if (m >= magnitude[i - offset] && m > magnitude[i + offset]) {
+                    out[i] = (byte) Math.min(255, m * 255 / MAX_MAGNITUDE);
+                }
+            }
+        }
+    }
+
+    private static void threshold(Gradient gradient, int low, int high, int color, int[] out, int fromRow, int toRow) {
+        int width = gradient.width, height = gradient.height;
+        byte[] m = gradient.magnitude;
+        for (int y = fromRow; y < toRow; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int i = row + x;
+                int value = m[i] & 0xFF;
+                boolean edge = value >= high;
+                if (!edge && value >= low && x > 0 && y > 0 && x < width - 1 && y < height - 1) {
+                    edge = (m[i - width - 1] & 0xFF) >= high || (m[i - width] & 0xFF) >= high
+                            || (m[i - width + 1] & 0xFF) >= high
+                            || (m[i - 1] & 0xFF) >= high || (m[i + 1] & 0xFF) >= high
+                            || (m[i + width - 1] & 0xFF) >= high || (m[i + width] & 0xFF) >= high
+                            || (m[i + width + 1] & 0xFF) >= high;
+                }
+                out[i] = edge && value > 0 ? color : 0;
+            }
+        }
+    }
+
+    private interface RowRange {
+        void run(int fromRow, int toRow);
+    }
+
+    private static class Stripes extends RecursiveAction {
+        private final int fromRow, toRow;
+        private final RowRange work;
+
+        Stripes(int fromRow, int toRow, RowRange work) {
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.work = work;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow <= STRIPE_ROWS) {
+                work.run(fromRow, toRow);
+                return;
+            }
+            int middle = (fromRow + toRow) >>> 1;
+            invokeAll(new Stripes(fromRow, middle, work), new Stripes(middle, toRow, work));
+        }
+    }
+}
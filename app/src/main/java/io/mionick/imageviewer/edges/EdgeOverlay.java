@@ -0,0 +1,214 @@
+package io.mionick.imageviewer.edges;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.mionick.imageviewer.memory.MemoryBudget;
+
+/**
+ * The edges of the image on screen as a transparent bitmap, ready to draw over it. Gradients are
+ * computed once per image and kept for the last few images, so toggling the layer or going back
+ * to an image is instant, and a threshold change only reruns the threshold pass. Work happens
+ * off the main thread and only the newest request is ever computed.
+ */
+public class EdgeOverlay implements MemoryBudget.Holder {
+    // Edges are computed at most at this size and scaled up with the image.
+    public static final int MAX_SIDE = 2048;
+    private static final int CACHED_IMAGES = 3;
+    public static final int EDGE_COLOR = Color.GREEN;
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Most recently used last. Images are held weakly, a gradient must not keep its image alive.
+    // Only touched by the worker.
+    private final List<CachedGradient> gradients = new ArrayList<>(CACHED_IMAGES + 1);
+    private volatile long gradientBytes;
+    private final Semaphore uploaded = new Semaphore(0);
+    private final Semaphore copied = new Semaphore(0);
+    private Runnable onUpdated;
+
+    // Requested state, written on the main thread.
+    private volatile Bitmap requestedSource;
+    private volatile int low = 40, high = 100;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    // Result state, main thread only.
+    private Bitmap edges;
+    private Bitmap edgesSource;
+    private int[] pixels;
+
+    // The pixels of an image needing a gradient, copied on the main thread for the worker.
+    private int[] sourcePixels;
+    private int sourceWidth, sourceHeight;
+
+    public void setOnUpdated(Runnable onUpdated) {
+        this.onUpdated = onUpdated;
+    }
+
+    public int getLow() {
+        return low;
+    }
+
+    public int getHigh() {
+        return high;
+    }
+
+    /**
+     * Thresholds on the 0..255 gradient scale; see {@link EdgeDetector#threshold}.
+     */
+    public void setThresholds(int low, int high) {
+        if (low == this.low && high == this.high) return;
+        this.low = low;
+        this.high = high;
+        schedule();
+    }
+
+    /**
+     * The edges of {@code source} if they are ready, otherwise null, starting the work if needed.
+     * Call from draw with whatever is currently shown.
+     */
+    public Bitmap edgesFor(Bitmap source) {
+        if (source != requestedSource) {
+            requestedSource = source;
+            schedule();
+        }
+        return source == edgesSource ? edges : null;
+    }
+
+    private void schedule() {
+        if (requestedSource != null && scheduled.compareAndSet(false, true)) {
+            worker.execute(this::update);
+        }
+    }
+
+    private void update() {
+        // Cleared before reading the request, so a change made from here on schedules another run.
+        scheduled.set(false);
+        Bitmap source = requestedSource;
+        int low = this.low, high = this.high;
+        if (source == null || source.isRecycled()) return;
+
+        EdgeDetector.Gradient gradient = cachedGradient(source);
+        if (gradient == null) {
+            if (!copyPixels(source)) return;
+            Trace.beginSection("edgeGradient");
+            gradient = EdgeDetector.gradient(sourcePixels, sourceWidth, sourceHeight, pool);
+            Trace.endSection();
+            sourcePixels = null;
+            gradients.add(new CachedGradient(source, gradient));
+            trimGradients(CACHED_IMAGES);
+        }
+        int width = gradient.width, height = gradient.height;
+        int[] out = pixels != null && pixels.length == width * height ? pixels : new int[width * height];
+        EdgeDetector.threshold(gradient, low, high, EDGE_COLOR, out, pool);
+
+        // Handed to the main thread, which owns the bitmap; out is reused only once it is copied.
+        mainHandler.post(() -> {
+            pixels = out;
+            if (edges == null || edges.getWidth() != width || edges.getHeight() != height) {
+                edges = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            }
+            edges.setPixels(out, 0, width, 0, 0, width, height);
+            edgesSource = source;
+            uploaded.release();
+            if (onUpdated != null) onUpdated.run();
+        });
+        uploaded.acquireUninterruptibly();
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        Bitmap edges = this.edges;
+        return gradientBytes + (edges != null ? edges.getAllocationByteCount() : 0);
+    }
+
+    /**
+     * Drops cached gradients, all but the newest when trimming mildly. They are recomputed if
+     * their image is shown again.
+     */
+    @Override
+    public void trimMemory(MemoryBudget.Level level) {
+        int keep = level == MemoryBudget.Level.TRIM_CACHES ? 1 : 0;
+        worker.execute(() -> trimGradients(keep));
+    }
+
+    private void trimGradients(int keep) {
+        while (gradients.size() > keep) {
+            gradients.remove(0);
+        }
+        long bytes = 0;
+        for (CachedGradient cached : gradients) {
+            bytes += cached.gradient.byteCount();
+        }
+        gradientBytes = bytes;
+    }
+
+    private EdgeDetector.Gradient cachedGradient(Bitmap source) {
+        for (int i = gradients.size() - 1; i >= 0; i--) {
+            CachedGradient cached = gradients.get(i);
+            Bitmap image = cached.image.get();
+            if (image == null) {
+                gradients.remove(i);
+            } else if (image == source) {
+                gradients.remove(i);
+                gradients.add(cached);
+                return cached.gradient;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copies the pixels of {@code source}, at most {@link #MAX_SIDE} on a side, into sourcePixels.
+     * Images are recycled on the main thread, so the copy is made there and the worker waits for
+     * it. False if the image was recycled first.
+     */
+    private boolean copyPixels(Bitmap source) {
+        mainHandler.post(() -> {
+            if (!source.isRecycled()) {
+                Bitmap scaled = source;
+                int side = Math.max(source.getWidth(), source.getHeight());
+                if (side > MAX_SIDE) {
+                    float scale = (float) MAX_SIDE / side;
+                    scaled = Bitmap.createScaledBitmap(source, Math.round(source.getWidth() * scale),
+                            Math.round(source.getHeight() * scale), true);
+                }
+                sourceWidth = scaled.getWidth();
+                sourceHeight = scaled.getHeight();
+                sourcePixels = new int[sourceWidth * sourceHeight];
+                scaled.getPixels(sourcePixels, 0, sourceWidth, 0, 0, sourceWidth, sourceHeight);
+                if (scaled != source) scaled.recycle();
+            }
+            copied.release();
+        });
+        copied.acquireUninterruptibly();
+        return sourcePixels != null;
+    }
+
+    public void release() {
+        worker.shutdownNow();
+    }
+
+    private static class CachedGradient {
+        final WeakReference<Bitmap> image;
+        final EdgeDetector.Gradient gradient;
+
+        CachedGradient(Bitmap image, EdgeDetector.Gradient gradient) {
+            this.image = new WeakReference<>(image);
+            this.gradient = gradient;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package io.mionick.imageviewer.export;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes an RGBA PNG a few rows at a time, so an image far larger than memory can be written
+ * band by band. Rows go through the Sub filter and one running Deflater, and compressed output is
+ * flushed as IDAT chunks as soon as a buffer fills.
+ */
+public class StreamingPngWriter implements Closeable {
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private static final int FILTER_SUB = 1;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final int width, height;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final CRC32 crc = new CRC32();
+    private final byte[] row;
+    private final byte[] compressed = new byte[CHUNK_SIZE];
+    private final byte[] header = new byte[8];
+    private int rowsWritten;
+
+    public StreamingPngWriter(OutputStream out, int width, int height) throws IOException {
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        row = new byte[1 + 4 * width];
+        row[0] = FILTER_SUB;
+
+        out.write(SIGNATURE);
+        byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, width);
+        putInt(ihdr, 4, height);
+        ihdr[8] = 8; // bits per channel
+        ihdr[9] = 6; // RGBA
+        writeChunk("IHDR", ihdr, ihdr.length);
+    }
+
+    /**
+     * Appends {@code rows} rows of unpremultiplied ARGB pixels, {@code width} per row, starting
+     * at {@code offset}.
+     */
+    public void writeRows(int[] argb, int offset, int rows) throws IOException {
+        if (rowsWritten + rows > height) {
+            throw new IllegalStateException("More rows than the image height");
+        }
+        for (int r = 0; r < rows; r++) {
+            int a = 0, red = 0, green = 0, blue = 0;
+            int base = offset + r * width;
+            for (int x = 0; x < width; x++) {
+                int pixel = argb[base + x];
+                int pa = pixel >>> 24, pr = (pixel >> 16) & 0xff, pg = (pixel >> 8) & 0xff, pb = pixel & 0xff;
+                int i = 1 + 4 * x;
+                row[i] = (byte) (pr - red);
+                row[i + 1] = (byte) (pg - green);
+                row[i + 2] = (byte) (pb - blue);
+                row[i + 3] = (byte) (pa - a);
+                a = pa;
+                red = pr;
+                green = pg;
+                blue = pb;
+            }
+            deflater.setInput(row);
+            while (!deflater.needsInput()) {
+                drain(Deflater.NO_FLUSH);
+            }
+        }
+        rowsWritten += rows;
+    }
+
+    /**
+     * Writes the remaining compressed data and the end marker. Every row must have been written.
+     */
+    public void finish() throws IOException {
+        if (rowsWritten != height) {
+            throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows written");
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            drain(Deflater.NO_FLUSH);
+        }
+        writeChunk("IEND", compressed, 0);
+        out.flush();
+    }
+
+    private void drain(int flush) throws IOException {
+        int length = deflater.deflate(compressed, 0, compressed.length, flush);
+        if (length > 0) {
+            writeChunk("IDAT", compressed, length);
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        putInt(header, 0, length);
+        System.arraycopy(typeBytes, 0, header, 4, 4);
+        out.write(header, 0, 8);
+        out.write(data, 0, length);
+        crc.reset();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        putInt(header, 0, (int) crc.getValue());
+        out.write(header, 0, 4);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        out.close();
+    }
+}
@@ -0,0 +1,321 @@
+package io.mionick.imageviewer.export;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import io.mionick.imageviewer.geometry.Homography;
+import io.mionick.imageviewer.image.TiledImage;
+
+/**
+ * Writes the warped image to a PNG at roughly the source resolution without ever holding the
+ * whole output in memory. The output is cut into horizontal bands; a few bands are rendered in
+ * parallel, each through its own small bitmap, and handed to the encoder strictly in order, so
+ * peak memory is a handful of bands however large the result is.
+ */
+public class WarpExporter {
+    // Keeps the output inside what a PNG reader on a phone can reasonably open.
+    public static final int MAX_OUTPUT_SIDE = 16384;
+    private static final int BAND_PIXELS = 512 * 1024;
+    private static final int MAX_BAND_HEIGHT = 256;
+    private static final int MAX_WORKERS = 4;
+
+    private final Source source;
+    private final Homography imageToOutput = new Homography();
+    private final Homography outputToImage = new Homography();
+    private final File file;
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final int outputWidth, outputHeight, bandHeight, bandCount;
+    private volatile boolean cancelled;
+    private volatile boolean running;
+
+    /**
+     * @param imageToScreen the nine row-major values of the transform currently on screen. Only
+     *                      its shape is kept; the output is rescaled so the image covers about as
+     *                      many pixels as the source has.
+     */
+    public WarpExporter(Source source, float[] imageToScreen, File file, Listener listener) {
+        this.source = source;
+        this.file = file;
+        this.listener = listener;
+
+        float w = source.getWidth();
+        float h = source.getHeight();
+        float[] corners = {0, 0, w, 0, w, h, 0, h};
+        imageToOutput.setValues(imageToScreen);
+        imageToOutput.mapPoints(corners, corners);
+
+        float minX = corners[0], maxX = corners[0], minY = corners[1], maxY = corners[1];
+        double area = 0;
+        for (int i = 0; i < 4; i++) {
+            float px = corners[2 * i], py = corners[2 * i + 1];
+            float nx = corners[(2 * i + 2) % 8], ny = corners[(2 * i + 3) % 8];
+            area += px * ny - nx * py;
+            minX = Math.min(minX, px);
+            maxX = Math.max(maxX, px);
+            minY = Math.min(minY, py);
+            maxY = Math.max(maxY, py);
+        }
+        float boundsW = Math.max(1, maxX - minX);
+        float boundsH = Math.max(1, maxY - minY);
+        float scale = (float) Math.sqrt(w * h / Math.max(1, Math.abs(area / 2)));
+        scale = Math.min(scale, Math.min(MAX_OUTPUT_SIDE / boundsW, MAX_OUTPUT_SIDE / boundsH));
+
+        imageToOutput.postTranslate(-minX, -minY);
+        imageToOutput.postScale(scale, scale, 0, 0);
+        imageToOutput.invert(outputToImage);
+        outputWidth = Math.max(1, (int) Math.ceil(boundsW * scale));
+        outputHeight = Math.max(1, (int) Math.ceil(boundsH * scale));
+        bandHeight = Math.max(1, Math.min(MAX_BAND_HEIGHT, BAND_PIXELS / outputWidth));
+        bandCount = (outputHeight + bandHeight - 1) / bandHeight;
+    }
+
+    public int getOutputWidth() {
+        return outputWidth;
+    }
+
+    public int getOutputHeight() {
+        return outputHeight;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public void start() {
+        running = true;
+        Thread thread = new Thread(this::run, "WarpExporter");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stops after the bands currently rendering and deletes the partial file. Anything that goes
+     * wrong from here on, such as the image being released under a band, reports a cancel.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void run() {
+        int workerCount = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors()));
+        ExecutorService workers = Executors.newFixedThreadPool(workerCount);
+        // Every band, so each bitmap is recycled however the export ends, once no worker is left.
+        List<Band> bands = new ArrayList<>(workerCount + 1);
+        ArrayDeque<Band> freeBands = new ArrayDeque<>();
+        ArrayDeque<Future<Band>> inFlight = new ArrayDeque<>();
+        Exception failure = null;
+        try (StreamingPngWriter writer = new StreamingPngWriter(
+                new BufferedOutputStream(new FileOutputStream(file)), outputWidth, outputHeight)) {
+            // One band more than workers so the encoder always has the next band waiting.
+            for (int i = 0; i <= workerCount; i++) {
+                bands.add(new Band());
+            }
+            freeBands.addAll(bands);
+            int nextBand = 0;
+            for (int written = 0; written < bandCount && !cancelled; written++) {
+                while (nextBand < bandCount && !freeBands.isEmpty()) {
+                    Band band = freeBands.poll();
+                    band.top = nextBand * bandHeight;
+                    band.rows = Math.min(bandHeight, outputHeight - band.top);
+                    inFlight.add(workers.submit(band::render));
+                    nextBand++;
+                }
+                Band band = inFlight.poll().get();
+                writer.writeRows(band.pixels, 0, band.rows);
+                freeBands.add(band);
+                int done = written + 1;
+                mainHandler.post(() -> listener.onProgress(done, bandCount));
+            }
+            if (!cancelled) writer.finish();
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        } catch (ExecutionException e) {
+            failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (InterruptedException e) {
+            cancelled = true;
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Future<Band> future : inFlight) {
+                future.cancel(false);
+            }
+            workers.shutdown();
+            boolean terminated = false;
+            try {
+                terminated = workers.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // A band still rendering draws into its bitmap, which is then left to the GC.
+            if (terminated) {
+                for (Band band : bands) {
+                    band.bitmap.recycle();
+                }
+            }
+            running = false;
+        }
+
+        if (cancelled || failure != null) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+        Exception error = failure;
+        mainHandler.post(() -> {
+            if (cancelled) {
+                listener.onCancelled();
+            } else if (error != null) {
+                listener.onFailed(error);
+            } else {
+                listener.onFinished(file);
+            }
+        });
+    }
+
+    /**
+     * One strip of output rows, with everything needed to render it reused from strip to strip.
+     */
+    private class Band {
+        final Bitmap bitmap = Bitmap.createBitmap(outputWidth, bandHeight, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        final int[] pixels = new int[outputWidth * bandHeight];
+        final Matrix matrix = new Matrix();
+        final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        final float[] matrixValues = new float[Homography.SIZE];
+        final float[] corners = new float[8];
+        final RectF region = new RectF();
+        int top, rows;
+
+        Band() {
+            imageToOutput.getValues(matrixValues);
+            matrix.setValues(matrixValues);
+        }
+
+        Band render() {
+            bitmap.eraseColor(Color.TRANSPARENT);
+            corners[0] = corners[6] = 0;
+            corners[2] = corners[4] = outputWidth;
+            corners[1] = corners[3] = top;
+            corners[5] = corners[7] = top + rows;
+            outputToImage.mapPoints(corners, corners);
+            region.set(corners[0], corners[1], corners[0], corners[1]);
+            for (int i = 1; i < 4; i++) {
+                region.union(corners[2 * i], corners[2 * i + 1]);
+            }
+            region.inset(-1, -1);
+            if (region.intersect(0, 0, source.getWidth(), source.getHeight())) {
+                canvas.save();
+                canvas.clipRect(0, 0, outputWidth, rows);
+                canvas.translate(0, -top);
+                canvas.concat(matrix);
+                source.draw(canvas, region, 2 * BAND_PIXELS, paint);
+                canvas.restore();
+            }
+            bitmap.getPixels(pixels, 0, outputWidth, 0, 0, outputWidth, rows);
+            return this;
+        }
+    }
+
+    /**
+     * Whole-image bitmap drawn scaled to {@code width} x {@code height} image pixels, which may be
+     * larger than the bitmap while only a preview is decoded.
+     */
+    public static Source bitmapSource(Bitmap bitmap, int width, int height) {
+        RectF bounds = new RectF(0, 0, width, height);
+        return new Source() {
+            @Override
+            public int getWidth() {
+                return width;
+            }
+
+            @Override
+            public int getHeight() {
+                return height;
+            }
+
+            @Override
+            public void draw(Canvas canvas, RectF region, int maxPixels, Paint paint) {
+                canvas.drawBitmap(bitmap, null, bounds, paint);
+            }
+        };
+    }
+
+    /**
+     * Decodes just the region each band needs, at full resolution unless that region would
+     * exceed the band's pixel budget, as it can under a strong perspective.
+     */
+    public static Source tiledSource(TiledImage tiledImage) {
+        return new Source() {
+            @Override
+            public int getWidth() {
+                return tiledImage.getWidth();
+            }
+
+            @Override
+            public int getHeight() {
+                return tiledImage.getHeight();
+            }
+
+            @Override
+            public void draw(Canvas canvas, RectF region, int maxPixels, Paint paint) {
+                Rect src = new Rect();
+                region.roundOut(src);
+                int sampleSize = 1;
+                while ((long) src.width() * src.height() / ((long) sampleSize * sampleSize) > maxPixels) {
+                    sampleSize *= 2;
+                }
+                Bitmap part = tiledImage.decodeRegion(src, sampleSize);
+                if (part == null) {
+                    throw new IllegalStateException("Image was released during export");
+                }
+                canvas.drawBitmap(part, null, new RectF(src), paint);
+                part.recycle();
+            }
+        };
+    }
+
+    public interface Source {
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * Draws at least {@code region}, in image coordinates, onto a canvas already carrying
+         * the image to output transform, decoding no more than about {@code maxPixels}.
+         */
+        void draw(Canvas canvas, RectF region, int maxPixels, Paint paint);
+    }
+
+    /**
+     * Called on the main thread.
+     */
+    public interface Listener {
+        void onProgress(int bandsWritten, int bandCount);
+
+        void onFinished(File file);
+
+        void onCancelled();
+
+        void onFailed(Exception e);
+    }
+}
@@ -0,0 +1,140 @@
+package io.mionick.imageviewer.gallery;
+
+import android.graphics.Bitmap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Every thumbnail in one file, mapped into memory whole. The file is a header, a fixed-size
+ * index of keys and a fixed-size slot of RGB_565 pixels per key, so reading a thumbnail is a
+ * copy out of the mapping with no file I/O of its own, and the file survives across launches.
+ * When full, slots are reused round robin.
+ */
+public class ThumbnailAtlas implements Closeable {
+    public static final int THUMBNAIL_SIZE = 96;
+    public static final int CAPACITY = 1024;
+    private static final int MAGIC = 0x4d544841;
+    private static final int VERSION = 1;
+    // magic, version, capacity, thumbnail size, next slot to reuse
+    private static final int HEADER_BYTES = 5 * 4;
+    private static final int NEXT_VICTIM_OFFSET = 4 * 4;
+    private static final int INDEX_ENTRY_BYTES = 8;
+    private static final int SLOT_BYTES = THUMBNAIL_SIZE * THUMBNAIL_SIZE * 2;
+    private static final int PIXELS_OFFSET = HEADER_BYTES + CAPACITY * INDEX_ENTRY_BYTES;
+    private static final long EMPTY = 0;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final Map<Long, Integer> slots = new HashMap<>();
+
+    private ThumbnailAtlas(RandomAccessFile file, MappedByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Maps {@code path}, creating it or starting it over when it is missing or from another
+     * format version. Blocks on file I/O.
+     */
+    public static ThumbnailAtlas open(File path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        long length = PIXELS_OFFSET + (long) CAPACITY * SLOT_BYTES;
+        try {
+            if (file.length() != length) file.setLength(length);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            ThumbnailAtlas atlas = new ThumbnailAtlas(file, buffer);
+            atlas.loadIndex();
+            return atlas;
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private void loadIndex() {
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                || buffer.getInt(8) != CAPACITY || buffer.getInt(12) != THUMBNAIL_SIZE) {
+            for (int slot = 0; slot < CAPACITY; slot++) {
+                buffer.putLong(HEADER_BYTES + slot * INDEX_ENTRY_BYTES, EMPTY);
+            }
+            buffer.putInt(NEXT_VICTIM_OFFSET, 0);
+            buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, CAPACITY).putInt(12, THUMBNAIL_SIZE);
+            return;
+        }
+        for (int slot = 0; slot < CAPACITY; slot++) {
+            long key = buffer.getLong(HEADER_BYTES + slot * INDEX_ENTRY_BYTES);
+            if (key != EMPTY) slots.put(key, slot);
+        }
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of {@code source}, never {@link #EMPTY}.
+     */
+    public static long keyFor(String source) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : source.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    public synchronized boolean contains(long key) {
+        return slots.containsKey(key);
+    }
+
+    /**
+     * Copies the thumbnail for {@code key} into {@code into}, a {@link #THUMBNAIL_SIZE} square
+     * RGB_565 bitmap. Returns false when there is none.
+     */
+    public synchronized boolean read(long key, Bitmap into) {
+        Integer slot = slots.get(key);
+        if (slot == null) return false;
+        into.copyPixelsFromBuffer(slotBuffer(slot));
+        return true;
+    }
+
+    /**
+     * Stores {@code thumbnail}, a {@link #THUMBNAIL_SIZE} square RGB_565 bitmap, under {@code key}.
+     */
+    public synchronized void write(long key, Bitmap thumbnail) {
+        Integer slot = slots.get(key);
+        if (slot == null) {
+            slot = buffer.getInt(NEXT_VICTIM_OFFSET);
+            buffer.putInt(NEXT_VICTIM_OFFSET, (slot + 1) % CAPACITY);
+            long previous = buffer.getLong(indexOffset(slot));
+            if (previous != EMPTY) slots.remove(previous);
+        }
+        // Cleared while the pixels are rewritten, so a crash in between leaves no torn thumbnail.
+        buffer.putLong(indexOffset(slot), EMPTY);
+        thumbnail.copyPixelsToBuffer(slotBuffer(slot));
+        buffer.putLong(indexOffset(slot), key);
+        slots.put(key, slot);
+    }
+
+    private static int indexOffset(int slot) {
+        return HEADER_BYTES + slot * INDEX_ENTRY_BYTES;
+    }
+
+    private ByteBuffer slotBuffer(int slot) {
+        ByteBuffer view = buffer.duplicate();
+        int start = PIXELS_OFFSET + slot * SLOT_BYTES;
+        view.limit(start + SLOT_BYTES).position(start);
+        return view;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+}
@@ -0,0 +1,168 @@
+package io.mionick.imageviewer.gallery;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import io.mionick.imageviewer.image.TiledImage;
+
+/**
+ * Fills a {@link ThumbnailAtlas} in the background, one image at a time. Thumbnails asked for by
+ * the strip jump the queue; the rest of a folder trickles in behind them, so the atlas grows
+ * incrementally and later launches find most thumbnails already there.
+ */
+public class ThumbnailGenerator {
+    private static final String TAG = "ThumbnailGenerator";
+
+    private final ContentResolver contentResolver;
+    private final File atlasFile;
+    private final LinkedBlockingDeque<Uri> queue = new LinkedBlockingDeque<>();
+    private final Set<Uri> queued = new HashSet<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Thread thread = new Thread(this::run, "ThumbnailGenerator");
+    private volatile ThumbnailAtlas atlas;
+    private Runnable onThumbnailReady;
+
+    public ThumbnailGenerator(ContentResolver contentResolver, File atlasFile) {
+        this.contentResolver = contentResolver;
+        this.atlasFile = atlasFile;
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * The atlas, or null while it is still being opened.
+     */
+    public ThumbnailAtlas getAtlas() {
+        return atlas;
+    }
+
+    /**
+     * Run on the main thread after each new thumbnail and once the atlas is open.
+     */
+    public void setOnThumbnailReady(Runnable onThumbnailReady) {
+        this.onThumbnailReady = onThumbnailReady;
+    }
+
+    /**
+     * Generates {@code uri} next, ahead of everything already queued.
+     */
+    public void requestNow(Uri uri) {
+        synchronized (queued) {
+            if (queued.add(uri)) {
+                queue.addFirst(uri);
+            } else if (queue.remove(uri)) {
+                queue.addFirst(uri);
+            }
+        }
+    }
+
+    /**
+     * Queues {@code uri} behind everything else.
+     */
+    public void requestLater(Uri uri) {
+        synchronized (queued) {
+            if (queued.add(uri)) queue.addLast(uri);
+        }
+    }
+
+    /**
+     * Drops everything still queued, for instance when another folder is opened.
+     */
+    public void clear() {
+        synchronized (queued) {
+            queue.clear();
+            queued.clear();
+        }
+    }
+
+    public void shutdown() {
+        thread.interrupt();
+    }
+
+    private void run() {
+        try {
+            atlas = ThumbnailAtlas.open(atlasFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open the thumbnail atlas", e);
+            return;
+        }
+        notifyReady();
+        Bitmap thumbnail = Bitmap.createBitmap(ThumbnailAtlas.THUMBNAIL_SIZE, ThumbnailAtlas.THUMBNAIL_SIZE,
+                Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(thumbnail);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        Rect src = new Rect();
+        Rect dst = new Rect(0, 0, ThumbnailAtlas.THUMBNAIL_SIZE, ThumbnailAtlas.THUMBNAIL_SIZE);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Uri uri = queue.take();
+                synchronized (queued) {
+                    queued.remove(uri);
+                }
+                long key = ThumbnailAtlas.keyFor(uri.toString());
+                if (atlas.contains(key)) continue;
+                Bitmap decoded = decode(uri);
+                if (decoded == null) continue;
+                // Centre crop to a square.
+                int side = Math.min(decoded.getWidth(), decoded.getHeight());
+                src.set(0, 0, side, side);
+                src.offset((decoded.getWidth() - side) / 2, (decoded.getHeight() - side) / 2);
+                canvas.drawBitmap(decoded, src, dst, paint);
+                decoded.recycle();
+                atlas.write(key, thumbnail);
+                notifyReady();
+            }
+        } catch (InterruptedException e) {
+            // shut down
+        } finally {
+            thumbnail.recycle();
+            try {
+                atlas.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close the thumbnail atlas", e);
+            }
+        }
+    }
+
+    private Bitmap decode(Uri uri) {
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            try (InputStream in = contentResolver.openInputStream(uri)) {
+                BitmapFactory.decodeStream(in, null, options);
+            }
+            if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+            int shortSide = Math.min(options.outWidth, options.outHeight);
+            options = new BitmapFactory.Options();
+            options.inSampleSize = TiledImage.sampleSizeFor(shortSide, ThumbnailAtlas.THUMBNAIL_SIZE);
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            try (InputStream in = contentResolver.openInputStream(uri)) {
+                return BitmapFactory.decodeStream(in, null, options);
+            }
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Could not make a thumbnail of " + uri, e);
+            return null;
+        }
+    }
+
+    private void notifyReady() {
+        mainHandler.post(() -> {
+            if (onThumbnailReady != null) onThumbnailReady.run();
+        });
+    }
+}
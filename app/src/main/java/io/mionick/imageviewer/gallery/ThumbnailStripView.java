@@ -0,0 +1,209 @@
+package io.mionick.imageviewer.gallery;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.util.LruCache;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.View;
+import android.widget.OverScroller;
+
+import java.util.ArrayDeque;
+
+import io.mionick.imageviewer.browse.ImageCollection;
+
+/**
+ * A horizontally scrolling row of thumbnails of an {@link ImageCollection}, read straight out of
+ * a {@link ThumbnailAtlas}. Only the cells on screen are drawn; a small cache of bitmaps is kept
+ * for them and reused as cells scroll in and out, and missing thumbnails are requested from the
+ * generator ahead of the rest of the folder.
+ */
+public class ThumbnailStripView extends View {
+    private static final int CELL_DP = 64;
+    private static final int SPACING_DP = 4;
+    private static final int CACHED_CELLS = 48;
+
+    private final int cellSize, spacing;
+    private final OverScroller scroller;
+    private final GestureDetector gestureDetector;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint placeholderPaint = new Paint();
+    private final Paint currentPaint = new Paint();
+    private final RectF cellRect = new RectF();
+    private final ArrayDeque<Bitmap> freeBitmaps = new ArrayDeque<>();
+    private final LruCache<Long, Bitmap> shown = new LruCache<Long, Bitmap>(CACHED_CELLS) {
+        @Override
+        protected void entryRemoved(boolean evicted, Long key, Bitmap oldValue, Bitmap newValue) {
+            freeBitmaps.push(oldValue);
+        }
+    };
+    private ThumbnailGenerator generator;
+    private ImageCollection collection;
+    // Atlas key per position, and whether its thumbnail was already asked for ahead of the rest.
+    private long[] keys;
+    private boolean[] requested;
+    private OnThumbnailClickListener onThumbnailClickListener;
+
+    public ThumbnailStripView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        float density = getResources().getDisplayMetrics().density;
+        cellSize = (int) (CELL_DP * density);
+        spacing = (int) (SPACING_DP * density);
+        scroller = new OverScroller(context);
+        placeholderPaint.setColor(Color.DKGRAY);
+        currentPaint.setColor(Color.WHITE);
+        currentPaint.setStyle(Paint.Style.STROKE);
+        currentPaint.setStrokeWidth(2 * density);
+        gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                scroller.forceFinished(true);
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                scrollTo(clampScroll(getScrollX() + (int) distanceX), 0);
+                return true;
+            }
+
+            @Override
+            public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
+                scroller.fling(getScrollX(), 0, (int) -velocityX, 0, 0, maxScroll(), 0, 0);
+                postInvalidateOnAnimation();
+                return true;
+            }
+
+            @Override
+            public boolean onSingleTapUp(MotionEvent e) {
+                int position = (int) ((e.getX() + getScrollX()) / (cellSize + spacing));
+                if (collection != null && position < collection.size() && onThumbnailClickListener != null) {
+                    onThumbnailClickListener.onThumbnailClick(position);
+                }
+                return true;
+            }
+        });
+    }
+
+    public void setGenerator(ThumbnailGenerator generator) {
+        this.generator = generator;
+        invalidate();
+    }
+
+    /**
+     * Shows {@code collection}, queueing thumbnails for all of it in the background.
+     */
+    public void setCollection(ImageCollection collection) {
+        this.collection = collection;
+        keys = new long[collection.size()];
+        requested = new boolean[collection.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ThumbnailAtlas.keyFor(collection.get(i).toString());
+        }
+        shown.evictAll();
+        if (generator != null) {
+            generator.clear();
+            for (int i = 0; i < collection.size(); i++) {
+                generator.requestLater(collection.get(i));
+            }
+        }
+        scrollToCurrent();
+    }
+
+    public void setOnThumbnailClickListener(OnThumbnailClickListener listener) {
+        this.onThumbnailClickListener = listener;
+    }
+
+    /**
+     * Brings the collection's current image into view, after it moved.
+     */
+    public void scrollToCurrent() {
+        if (collection == null) return;
+        int pitch = cellSize + spacing;
+        int left = collection.getIndex() * pitch;
+        if (left < getScrollX() || left + cellSize > getScrollX() + getWidth()) {
+            scrollTo(clampScroll(left - (getWidth() - cellSize) / 2), 0);
+        }
+        invalidate();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        setMeasuredDimension(getDefaultSize(getSuggestedMinimumWidth(), widthMeasureSpec),
+                resolveSize(cellSize + 2 * spacing, heightMeasureSpec));
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        gestureDetector.onTouchEvent(event);
+        return true;
+    }
+
+    @Override
+    public void computeScroll() {
+        if (scroller.computeScrollOffset()) {
+            scrollTo(scroller.getCurrX(), 0);
+            postInvalidateOnAnimation();
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (collection == null) return;
+        ThumbnailAtlas atlas = generator != null ? generator.getAtlas() : null;
+        int pitch = cellSize + spacing;
+        int first = Math.max(0, getScrollX() / pitch);
+        int last = Math.min(collection.size() - 1, (getScrollX() + getWidth()) / pitch);
+        for (int position = first; position <= last; position++) {
+            float left = position * pitch;
+            cellRect.set(left, spacing, left + cellSize, spacing + cellSize);
+            Bitmap thumbnail = atlas != null ? thumbnailFor(atlas, position) : null;
+            if (thumbnail != null) {
+                canvas.drawBitmap(thumbnail, null, cellRect, paint);
+            } else {
+                canvas.drawRect(cellRect, placeholderPaint);
+            }
+            if (position == collection.getIndex()) {
+                canvas.drawRect(cellRect, currentPaint);
+            }
+        }
+    }
+
+    private Bitmap thumbnailFor(ThumbnailAtlas atlas, int position) {
+        long key = keys[position];
+        Bitmap bitmap = shown.get(key);
+        if (bitmap != null) return bitmap;
+        bitmap = freeBitmaps.isEmpty()
+                ? Bitmap.createBitmap(ThumbnailAtlas.THUMBNAIL_SIZE, ThumbnailAtlas.THUMBNAIL_SIZE, Bitmap.Config.RGB_565)
+                : freeBitmaps.pop();
+        if (atlas.read(key, bitmap)) {
+            shown.put(key, bitmap);
+            return bitmap;
+        }
+        freeBitmaps.push(bitmap);
+        // Asked for once per cell, not on every frame it is still missing.
+        if (generator != null && !requested[position]) {
+            requested[position] = true;
+            generator.requestNow(collection.get(position));
+        }
+        return null;
+    }
+
+    private int maxScroll() {
+        if (collection == null) return 0;
+        return Math.max(0, collection.size() * (cellSize + spacing) - spacing - getWidth());
+    }
+
+    private int clampScroll(int scrollX) {
+        return Math.max(0, Math.min(maxScroll(), scrollX));
+    }
+
+    public interface OnThumbnailClickListener {
+        void onThumbnailClick(int position);
+    }
+}
@@ -0,0 +1,122 @@
+package io.mionick.imageviewer.gestures;
+
+import io.mionick.imageviewer.geometry.Homography;
+
+/**
+ * Where an image sits on screen: its four corners deformed onto a quad, then rotated and scaled
+ * about the image centre, then moved. Plain Java, so recorded gestures can be replayed through
+ * the same math off the device.
+ */
+public class ImageTransform implements TransformTarget {
+    /**
+     * Floats written by {@link #save}: x, y, rotation, mScaleFactor and the eight polyToPoly
+     * coordinates.
+     */
+    public static final int STATE_SIZE = 12;
+
+    private float x, y, rotation, mScaleFactor = 1;
+    private float w, h;
+    // Top left, top right, bottom left, bottom right, and where each is deformed to.
+    private final float[] untransformedCorners = new float[8];
+    private final float[] polyToPoly = new float[8];
+
+    @Override
+    public float getX() {
+        return x;
+    }
+
+    @Override
+    public float getY() {
+        return y;
+    }
+
+    @Override
+    public float getMScaleFactor() {
+        return mScaleFactor;
+    }
+
+    @Override
+    public float getRotation() {
+        return rotation;
+    }
+
+    @Override
+    public void setPosition(float x, float y) {
+        this.x = x;
+        this.y = y;
+    }
+
+    @Override
+    public void setMScaleFactor(float mScaleFactor) {
+        this.mScaleFactor = mScaleFactor;
+    }
+
+    @Override
+    public void setRotation(float rotation) {
+        this.rotation = rotation;
+    }
+
+    public void setImageSize(float w, float h) {
+        this.w = w;
+        this.h = h;
+        untransformedCorners[2] = w;
+        untransformedCorners[5] = h;
+        untransformedCorners[6] = w;
+        untransformedCorners[7] = h;
+    }
+
+    /**
+     * The image corners in image coordinates, in the order {@link #setDeformation} takes them.
+     * Not to be modified.
+     */
+    public float[] getUntransformedCorners() {
+        return untransformedCorners;
+    }
+
+    /**
+     * Undoes any deformation and rotation, keeping position and scale.
+     */
+    public void resetDeformation() {
+        System.arraycopy(untransformedCorners, 0, polyToPoly, 0, 8);
+        rotation = 0;
+    }
+
+    /**
+     * Moves the four image corners to {@code screenCorners}, dropping position, scale and rotation.
+     */
+    public void setDeformation(float[] screenCorners) {
+        System.arraycopy(screenCorners, 0, polyToPoly, 0, 8);
+        rotation = 0;
+        mScaleFactor = 1;
+        x = 0;
+        y = 0;
+    }
+
+    public void save(float[] out, int offset) {
+        out[offset] = x;
+        out[offset + 1] = y;
+        out[offset + 2] = rotation;
+        out[offset + 3] = mScaleFactor;
+        System.arraycopy(polyToPoly, 0, out, offset + 4, 8);
+    }
+
+    public void restore(float[] in, int offset) {
+        x = in[offset];
+        y = in[offset + 1];
+        rotation = in[offset + 2];
+        mScaleFactor = in[offset + 3];
+        System.arraycopy(in, offset + 4, polyToPoly, 0, 8);
+    }
+
+    /**
+     * Writes the image to screen transform into {@code out}. Allocates nothing.
+     */
+    public void compose(Homography out) {
+        if (!out.setPolyToPoly(untransformedCorners, 0, polyToPoly, 0)) {
+            out.reset();
+        }
+        out.postRotate(rotation, w / 2, h / 2);
+        out.postScale(mScaleFactor, mScaleFactor, w / 2, h / 2);
+        out.postTranslate(x, y);
+    }
+}
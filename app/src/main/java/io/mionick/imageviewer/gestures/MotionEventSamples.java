@@ -0,0 +1,45 @@
+package io.mionick.imageviewer.gestures;
+
+import android.view.MotionEvent;
+
+/**
+ * Reusable {@link PointerSamples} view of a MotionEvent.
+ */
+public class MotionEventSamples implements PointerSamples {
+    private MotionEvent event;
+
+    public MotionEventSamples set(MotionEvent event) {
+        this.event = event;
+        return this;
+    }
+
+    @Override
+    public int getActionMasked() {
+        return event.getActionMasked();
+    }
+
+    @Override
+    public int getActionIndex() {
+        return event.getActionIndex();
+    }
+
+    @Override
+    public int getPointerCount() {
+        return event.getPointerCount();
+    }
+
+    @Override
+    public int getHistorySize() {
+        return event.getHistorySize();
+    }
+
+    @Override
+    public float getX(int pointerIndex, int historyPos) {
+        return historyPos == event.getHistorySize() ? event.getX(pointerIndex) : event.getHistoricalX(pointerIndex, historyPos);
+    }
+
+    @Override
+    public float getY(int pointerIndex, int historyPos) {
+        return historyPos == event.getHistorySize() ? event.getY(pointerIndex) : event.getHistoricalY(pointerIndex, historyPos);
+    }
+}
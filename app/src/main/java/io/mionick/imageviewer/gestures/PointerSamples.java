@@ -0,0 +1,25 @@
+package io.mionick.imageviewer.gestures;
+
+/**
+ * The parts of a touch event the gesture math reads. Implemented over a live MotionEvent on
+ * device and over recorded events when replaying a trace off-device.
+ */
+public interface PointerSamples {
+    int getActionMasked();
+
+    int getActionIndex();
+
+    int getPointerCount();
+
+    /**
+     * Number of batched samples before the current one.
+     */
+    int getHistorySize();
+
+    /**
+     * @param historyPos index of a batched sample, or {@link #getHistorySize()} for the current one
+     */
+    float getX(int pointerIndex, int historyPos);
+
+    float getY(int pointerIndex, int historyPos);
+}
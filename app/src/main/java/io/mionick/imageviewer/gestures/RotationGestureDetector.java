@@ -1,86 +0,0 @@
-package io.mionick.imageviewer.gestures;
-
-import android.view.MotionEvent;
-
-import java.util.Date;
-
-public class RotationGestureDetector {
-    private static final int INVALID_POINTER_ID = -1;
-    private float startX2, startY2, startX1, startY1;
-    private int ptrID1, ptrID2;
-    private float mAngle;
-    private long currentEventStartTime;
-
-    private OnRotationGestureListener mListener;
-
-    public float getAngle() {
-        return mAngle;
-    }
-
-    public long getCurrentEventStartTime() {
-        return currentEventStartTime;
-    }
-
-    public RotationGestureDetector(OnRotationGestureListener listener){
-        mListener = listener;
-        ptrID1 = INVALID_POINTER_ID;
-        ptrID2 = INVALID_POINTER_ID;
-    }
-
-    public boolean onTouchEvent(MotionEvent event){
-        switch (event.getActionMasked()) {
-            case MotionEvent.ACTION_DOWN:
-                ptrID1 = event.getPointerId(event.getActionIndex());
-                break;
-            case MotionEvent.ACTION_POINTER_DOWN:
-                ptrID2 = event.getPointerId(event.getActionIndex());
-                currentEventStartTime = new Date().getTime();
-                startX1 = event.getX(event.findPointerIndex(ptrID1));
-                startY1 = event.getY(event.findPointerIndex(ptrID1));
-                startX2 = event.getX(event.findPointerIndex(ptrID2));
-                startY2 = event.getY(event.findPointerIndex(ptrID2));
-                break;
-            case MotionEvent.ACTION_MOVE:
-                if(ptrID1 != INVALID_POINTER_ID && ptrID2 != INVALID_POINTER_ID){
-                    float nfX, nfY, nsX, nsY;
-                    nsX = event.getX(event.findPointerIndex(ptrID1));
-                    nsY = event.getY(event.findPointerIndex(ptrID1));
-                    nfX = event.getX(event.findPointerIndex(ptrID2));
-                    nfY = event.getY(event.findPointerIndex(ptrID2));
-
-                    mAngle = angleBetweenLines(startX2, startY2, startX1, startY1, nfX, nfY, nsX, nsY);
-
-                    if (mListener != null) {
-                        mListener.OnRotation(this);
-                    }
-                }
-                break;
-            case MotionEvent.ACTION_UP:
-                ptrID1 = INVALID_POINTER_ID;
-                break;
-            case MotionEvent.ACTION_POINTER_UP:
-                ptrID2 = INVALID_POINTER_ID;
-                break;
-            case MotionEvent.ACTION_CANCEL:
-                ptrID1 = INVALID_POINTER_ID;
-                ptrID2 = INVALID_POINTER_ID;
-                break;
-        }
-        return true;
-    }
-
-    private float angleBetweenLines (float fX, float fY, float sX, float sY, float nfX, float nfY, float nsX, float nsY)
-    {
-        float angle1 = (float) Math.atan2( (fY - sY), (fX - sX) );
-        float angle2 = (float) Math.atan2( (nfY - nsY), (nfX - nsX) );
-
-        float angle = ((float)Math.toDegrees(angle1 - angle2)) % 360;
-        if (angle < -180.f) angle += 360.0f;
-        if (angle > 180.f) angle -= 360.0f;
-        return angle;
-    }
-
-    public interface OnRotationGestureListener {
-        void OnRotation(RotationGestureDetector rotationDetector);
-    }
-}
\ No newline at end of file
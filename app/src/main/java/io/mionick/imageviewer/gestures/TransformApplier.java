@@ -0,0 +1,44 @@
+package io.mionick.imageviewer.gestures;
+
+/**
+ * Applies the deltas of a {@link TransformGestureDetector} to a {@link TransformTarget}.
+ * Single pointer drags pan, two or more pointers also scale and rotate.
+ */
+public class TransformApplier implements TransformGestureDetector.OnTransformGestureListener {
+    private TransformTarget target;
+    private boolean translationEnabled = true;
+    private boolean rotationEnabled = true;
+
+    public TransformApplier(TransformTarget target) {
+        this.target = target;
+    }
+
+    /**
+     * Points the gestures at another target, for instance a different layer.
+     */
+    public void setTarget(TransformTarget target) {
+        this.target = target;
+    }
+
+    public void setTranslationEnabled(boolean translationEnabled) {
+        this.translationEnabled = translationEnabled;
+    }
+
+    public void setRotationEnabled(boolean rotationEnabled) {
+        this.rotationEnabled = rotationEnabled;
+    }
+
+    @Override
+    public void onTransform(TransformGestureDetector detector) {
+        if (translationEnabled) {
+            target.setPosition(target.getX() + detector.getTranslationX(),
+                    target.getY() + detector.getTranslationY());
+        }
+        if (detector.getPointerCount() > 1) {
+            target.setMScaleFactor(target.getMScaleFactor() * detector.getScaleFactor());
+            if (rotationEnabled) {
+                target.setRotation(target.getRotation() + detector.getRotationDegrees());
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package io.mionick.imageviewer.gestures;
+
+import android.view.MotionEvent;
+
+/**
+ * Translation, scale and rotation of a multi-touch gesture, computed together in a single pass
+ * over the pointers. Every historical sample batched into a move event is folded in, so nothing
+ * between two events is dropped, and the listener gets one combined delta per event.
+ * Translation follows the centroid of all pointers, scale their average distance to it, and
+ * rotation the line through the first two pointers.
+ */
+public class TransformGestureDetector {
+    private final OnTransformGestureListener mListener;
+    private final MotionEventSamples motionEventSamples = new MotionEventSamples();
+
+    private float prevFocusX, prevFocusY, prevSpan, prevAngle;
+    private boolean hasBaseline;
+
+    private float focusX, focusY, span, angle;
+    private float translationX, translationY, scaleFactor = 1f, rotationDegrees;
+    private int pointerCount;
+
+    public TransformGestureDetector(OnTransformGestureListener listener) {
+        mListener = listener;
+    }
+
+    public float getFocusX() {
+        return focusX;
+    }
+
+    public float getFocusY() {
+        return focusY;
+    }
+
+    public float getTranslationX() {
+        return translationX;
+    }
+
+    public float getTranslationY() {
+        return translationY;
+    }
+
+    public float getScaleFactor() {
+        return scaleFactor;
+    }
+
+    public float getRotationDegrees() {
+        return rotationDegrees;
+    }
+
+    public int getPointerCount() {
+        return pointerCount;
+    }
+
+    public boolean onTouchEvent(MotionEvent event) {
+        return onTouchEvent(motionEventSamples.set(event));
+    }
+
+    public boolean onTouchEvent(PointerSamples event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+            case MotionEvent.ACTION_POINTER_DOWN:
+                resetBaseline(event, -1);
+                break;
+            case MotionEvent.ACTION_POINTER_UP:
+                resetBaseline(event, event.getActionIndex());
+                break;
+            case MotionEvent.ACTION_MOVE:
+                onMove(event);
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                hasBaseline = false;
+                break;
+        }
+        return true;
+    }
+
+    private void onMove(PointerSamples event) {
+        if (!hasBaseline) {
+            resetBaseline(event, -1);
+            return;
+        }
+        translationX = 0;
+        translationY = 0;
+        scaleFactor = 1f;
+        rotationDegrees = 0;
+
+        int historySize = event.getHistorySize();
+        for (int h = 0; h <= historySize; h++) {
+            measure(event, h, -1);
+            translationX += focusX - prevFocusX;
+            translationY += focusY - prevFocusY;
+            if (pointerCount > 1) {
+                if (prevSpan > 0) scaleFactor *= span / prevSpan;
+                rotationDegrees += normalizeDegrees(angle - prevAngle);
+            }
+            prevFocusX = focusX;
+            prevFocusY = focusY;
+            prevSpan = span;
+            prevAngle = angle;
+        }
+
+        if (mListener != null) {
+            mListener.onTransform(this);
+        }
+    }
+
+    private void resetBaseline(PointerSamples event, int skipIndex) {
+        measure(event, event.getHistorySize(), skipIndex);
+        prevFocusX = focusX;
+        prevFocusY = focusY;
+        prevSpan = span;
+        prevAngle = angle;
+        hasBaseline = pointerCount > 0;
+    }
+
+    /**
+     * Fills focus, span and angle from one sample of the event; {@code skipIndex} is a pointer
+     * that is leaving and must be ignored.
+     */
+    private void measure(PointerSamples event, int historyPos, int skipIndex) {
+        int count = event.getPointerCount();
+        float sumX = 0, sumY = 0;
+        int used = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == skipIndex) continue;
+            sumX += event.getX(i, historyPos);
+            sumY += event.getY(i, historyPos);
+            used++;
+        }
+        pointerCount = used;
+        if (used == 0) return;
+        focusX = sumX / used;
+        focusY = sumY / used;
+
+        float spanSum = 0;
+        int first = -1, second = -1;
+        for (int i = 0; i < count; i++) {
+            if (i == skipIndex) continue;
+            float dx = event.getX(i, historyPos) - focusX;
+            float dy = event.getY(i, historyPos) - focusY;
+            spanSum += (float) Math.sqrt(dx * dx + dy * dy);
+            if (first < 0) {
+                first = i;
+            } else if (second < 0) {
+                second = i;
+            }
+        }
+        span = spanSum / used;
+        if (second >= 0) {
+            angle = (float) Math.toDegrees(Math.atan2(
+                    event.getY(second, historyPos) - event.getY(first, historyPos),
+                    event.getX(second, historyPos) - event.getX(first, historyPos)));
+        }
+    }
+
+    private static float normalizeDegrees(float degrees) {
+        if (degrees < -180f) degrees += 360f;
+        if (degrees > 180f) degrees -= 360f;
+        return degrees;
+    }
+
+    public interface OnTransformGestureListener {
+        void onTransform(TransformGestureDetector detector);
+    }
+}
@@ -0,0 +1,87 @@
+package io.mionick.imageviewer.gestures;
+
+/**
+ * Undo and redo for transform states packed as floats, kept in one preallocated ring. When it is
+ * full the oldest state is dropped, so memory stays fixed however long the session. Recording,
+ * undoing and redoing each copy one state and allocate nothing.
+ */
+public class TransformHistory {
+    private final int capacity;
+    private final int stateSize;
+    // One slot more than the undo steps kept: undoing the newest step also stores the live state.
+    private final float[] states;
+    private int oldest;
+    // States stored, and the position of the live state among them; those before it are undone to.
+    private int count, position;
+
+    /**
+     * @param capacity  how many steps can be undone
+     * @param stateSize floats in one state
+     */
+    public TransformHistory(int capacity, int stateSize) {
+        this.capacity = capacity;
+        this.stateSize = stateSize;
+        states = new float[(capacity + 1) * stateSize];
+    }
+
+    /**
+     * Records the state from before a change, which undo then returns to. Anything that could
+     * be redone is dropped.
+     */
+    public void record(float[] state, int offset) {
+        if (position == capacity) {
+            oldest = (oldest + 1) % (capacity + 1);
+            position--;
+        }
+        write(position, state, offset);
+        position++;
+        count = position;
+    }
+
+    public boolean canUndo() {
+        return position > 0;
+    }
+
+    public boolean canRedo() {
+        return position + 1 < count;
+    }
+
+    /**
+     * Steps back: stores {@code current} for redo and writes the earlier state into {@code out}.
+     * Returns false, writing nothing, when there is nothing to undo.
+     */
+    public boolean undo(float[] current, float[] out, int offset) {
+        if (!canUndo()) return false;
+        write(position, current, offset);
+        if (position == count) count++;
+        position--;
+        read(position, out, offset);
+        return true;
+    }
+
+    public boolean redo(float[] current, float[] out, int offset) {
+        if (!canRedo()) return false;
+        write(position, current, offset);
+        position++;
+        read(position, out, offset);
+        return true;
+    }
+
+    public void clear() {
+        oldest = 0;
+        count = 0;
+        position = 0;
+    }
+
+    private void write(int index, float[] state, int offset) {
+        System.arraycopy(state, offset, states, slot(index), stateSize);
+    }
+
+    private void read(int index, float[] out, int offset) {
+        System.arraycopy(states, slot(index), out, offset, stateSize);
+    }
+
+    private int slot(int index) {
+        return (oldest + index) % (capacity + 1) * stateSize;
+    }
+}
@@ -0,0 +1,20 @@
+package io.mionick.imageviewer.gestures;
+
+/**
+ * Something whose position, scale and rotation a gesture drives, usually the CustomCanvas.
+ */
+public interface TransformTarget {
+    float getX();
+
+    float getY();
+
+    float getMScaleFactor();
+
+    float getRotation();
+
+    void setPosition(float x, float y);
+
+    void setMScaleFactor(float mScaleFactor);
+
+    void setRotation(float rotation);
+}
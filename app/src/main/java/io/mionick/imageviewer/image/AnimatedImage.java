@@ -0,0 +1,154 @@
+package io.mionick.imageviewer.image;
+
+import android.graphics.Bitmap;
+import android.os.Trace;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An animated GIF played from its compressed bytes. A background thread decodes frames just ahead
+ * of playback into a fixed pool of bitmaps, which are handed back and overwritten once shown, so
+ * a long animation costs no more memory than a short one. Frames are switched on vsync by the
+ * {@link Choreographer}; whoever draws the current frame is told through the callback given to
+ * {@link #start}.
+ */
+public class AnimatedImage {
+    private static final String TAG = "AnimatedImage";
+    // One frame on screen, one ready for the next switch and one being decoded.
+    private static final int POOL_SIZE = 3;
+
+    private final GifDecoder decoder;
+    private final int width, height;
+    private final Frame[] pool = new Frame[POOL_SIZE];
+    private final BlockingQueue<Frame> free = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final BlockingQueue<Frame> ready = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final ExecutorService decodeExecutor = Executors.newSingleThreadExecutor(runnable ->
+            new Thread(runnable, "AnimationDecode"));
+    private final Choreographer.FrameCallback frameCallback = this::doFrame;
+
+    // Main thread only from here on.
+    private Frame current;
+    private long nextFrameNanos;
+    private Runnable onFrame;
+    private boolean playing;
+
+    private static final class Frame {
+        final Bitmap bitmap;
+        long durationNanos;
+
+        Frame(Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+    }
+
+    public AnimatedImage(GifDecoder decoder) {
+        this.decoder = decoder;
+        this.width = decoder.getWidth();
+        this.height = decoder.getHeight();
+        for (int i = 0; i < POOL_SIZE; i++) {
+            pool[i] = new Frame(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+            free.add(pool[i]);
+        }
+        decodeExecutor.execute(this::decodeFrames);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getFrameBytes() {
+        return (long) POOL_SIZE * width * height * 4;
+    }
+
+    /**
+     * The frame to draw now, or null until the first one is decoded. Only valid until the next
+     * vsync, when its bitmap may go back to the pool.
+     */
+    public Bitmap getCurrentFrame() {
+        return current != null ? current.bitmap : null;
+    }
+
+    /**
+     * Plays the animation, running {@code onFrame} on the main thread whenever the current frame
+     * changes. Replaces the callback of an earlier start.
+     */
+    public void start(Runnable onFrame) {
+        this.onFrame = onFrame;
+        if (playing) return;
+        playing = true;
+        nextFrameNanos = 0;
+        Choreographer.getInstance().postFrameCallback(frameCallback);
+    }
+
+    public void stop() {
+        playing = false;
+        onFrame = null;
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
+    }
+
+    /**
+     * Stops playback and decoding for good. The bitmaps are recycled once the decoder is done
+     * with them, nothing may draw the current frame after this.
+     */
+    public void release() {
+        stop();
+        current = null;
+        decodeExecutor.shutdownNow();
+    }
+
+    private void doFrame(long frameTimeNanos) {
+        if (!playing) return;
+        if (frameTimeNanos >= nextFrameNanos) {
+            Frame next = ready.poll();
+            if (next != null) {
+                // The previous frame was drawn in an earlier vsync, so the decoder may reuse it.
+                if (current != null) free.offer(current);
+                current = next;
+                // Keeps to the GIF's timing, unless decoding fell behind it.
+                nextFrameNanos += next.durationNanos;
+                if (nextFrameNanos < frameTimeNanos) {
+                    nextFrameNanos = frameTimeNanos + next.durationNanos;
+                }
+                if (onFrame != null) onFrame.run();
+            }
+        }
+        Choreographer.getInstance().postFrameCallback(frameCallback);
+    }
+
+    private void decodeFrames() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Frame frame = free.take();
+                Trace.beginSection("animationFrame");
+                try {
+                    int delayMillis = decoder.nextFrame();
+                    frame.bitmap.setPixels(decoder.getPixels(), 0, width, 0, 0, width, height);
+                    frame.durationNanos = delayMillis * 1000000L;
+                } finally {
+                    Trace.endSection();
+                }
+                ready.put(frame);
+            }
+        } catch (InterruptedException e) {
+            // Released.
+        } catch (IOException e) {
+            Log.e(TAG, "Could not decode frame", e);
+        } finally {
+            if (decodeExecutor.isShutdown()) {
+                for (Frame frame : pool) {
+                    frame.bitmap.recycle();
+                }
+            }
+        }
+    }
+}
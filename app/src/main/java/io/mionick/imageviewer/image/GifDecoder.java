@@ -0,0 +1,334 @@
+package io.mionick.imageviewer.image;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Decodes the frames of a GIF one at a time from its compressed bytes, so only the frame being
+ * composed is ever held decoded. Frames are composed onto a canvas the size of the image, with
+ * the disposal methods applied, and after the last one decoding starts over from the first.
+ * Plain Java, the caller copies the canvas into whatever bitmap it draws.
+ */
+public class GifDecoder {
+    private static final int MAX_CODES = 4096;
+    // Browsers show frames asking for no delay, or the 10 ms minimum, at this rate instead.
+    private static final int DEFAULT_DELAY_MILLIS = 100;
+    private static final int DISPOSE_BACKGROUND = 2;
+    private static final int DISPOSE_PREVIOUS = 3;
+
+    private final byte[] data;
+    private final int width, height;
+    private final int[] globalColors;
+    private final int firstBlock;
+    private final int frameCount;
+    private int[] canvas;
+    private int[] restore;
+    private int position;
+    private int frameIndex;
+
+    // Graphic control of the frame being read.
+    private int disposal, delayMillis, transparentIndex;
+    // Disposal left over by the previous frame, applied before the next one draws.
+    private int lastDisposal, lastX, lastY, lastWidth, lastHeight;
+
+    private final short[] prefix = new short[MAX_CODES];
+    private final byte[] suffix = new byte[MAX_CODES];
+    private final byte[] pixelStack = new byte[MAX_CODES + 1];
+    private byte[] indices = new byte[0];
+    private int blockRemaining;
+
+    public static boolean isGif(byte[] header, int length) {
+        return length >= 6 && header[0] == 'G' && header[1] == 'I' && header[2] == 'F'
+                && header[3] == '8' && (header[4] == '7' || header[4] == '9') && header[5] == 'a';
+    }
+
+    /**
+     * Reads the header and counts the frames, without decoding any of them.
+     */
+    public GifDecoder(byte[] data) throws IOException {
+        this.data = data;
+        if (!isGif(data, data.length) || data.length < 13) {
+            throw new IOException("Not a GIF");
+        }
+        position = 6;
+        width = readShort();
+        height = readShort();
+        int packed = readByte();
+        readByte(); // Background colour, shown as transparent like browsers do.
+        readByte(); // Pixel aspect ratio.
+        globalColors = (packed & 0x80) != 0 ? readColors(2 << (packed & 7)) : null;
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Empty GIF");
+        }
+        firstBlock = position;
+        frameCount = countFrames();
+        if (frameCount == 0) {
+            throw new IOException("GIF without frames");
+        }
+        position = firstBlock;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * The composed image after the last {@link #nextFrame}, as ARGB rows of {@link #getWidth};
+     * null before the first.
+     */
+    public int[] getPixels() {
+        return canvas;
+    }
+
+    /**
+     * Decodes the next frame onto the canvas and returns how long it is shown, in milliseconds.
+     */
+    public int nextFrame() throws IOException {
+        if (canvas == null) {
+            canvas = new int[width * height];
+        } else if (frameIndex == frameCount) {
+            position = firstBlock;
+            frameIndex = 0;
+            lastDisposal = 0;
+            Arrays.fill(canvas, 0);
+        }
+        disposal = 0;
+        delayMillis = 0;
+        transparentIndex = -1;
+        while (true) {
+            int block = readByte();
+            if (block == 0x2C) {
+                readImage();
+                frameIndex++;
+                return delayMillis <= 10 ? DEFAULT_DELAY_MILLIS : delayMillis;
+            } else if (block == 0x21) {
+                readExtension();
+            } else {
+                throw new IOException("Corrupt GIF at " + position);
+            }
+        }
+    }
+
+    // Only frames whose data is all there count, a truncated file loops over the ones before.
+    private int countFrames() throws IOException {
+        int frames = 0;
+        while (position < data.length) {
+            int block = readByte();
+            if (block == 0x2C && position + 10 <= data.length) {
+                position += 8;
+                int packed = readByte();
+                if ((packed & 0x80) != 0) position += 3 * (2 << (packed & 7));
+                position++; // LZW code size.
+                if (!skipBlocks()) break;
+                frames++;
+            } else if (block == 0x21) {
+                position++;
+                if (!skipBlocks()) break;
+            } else {
+                break;
+            }
+        }
+        return frames;
+    }
+
+    private void readExtension() throws IOException {
+        int label = readByte();
+        if (label == 0xF9) {
+            readByte(); // Block size, always 4.
+            int packed = readByte();
+            disposal = (packed >> 2) & 7;
+            delayMillis = readShort() * 10;
+            int transparent = readByte();
+            transparentIndex = (packed & 1) != 0 ? transparent : -1;
+        }
+        skipBlocks();
+    }
+
+    private void readImage() throws IOException {
+        int x = readShort();
+        int y = readShort();
+        int frameWidth = readShort();
+        int frameHeight = readShort();
+        int packed = readByte();
+        int[] colors = (packed & 0x80) != 0 ? readColors(2 << (packed & 7)) : globalColors;
+        boolean interlaced = (packed & 0x40) != 0;
+
+        if (lastDisposal == DISPOSE_BACKGROUND) {
+            fill(lastX, lastY, lastWidth, lastHeight);
+        } else if (lastDisposal == DISPOSE_PREVIOUS && restore != null) {
+            System.arraycopy(restore, 0, canvas, 0, canvas.length);
+        }
+        if (disposal == DISPOSE_PREVIOUS) {
+            if (restore == null) restore = new int[canvas.length];
+            System.arraycopy(canvas, 0, restore, 0, canvas.length);
+        }
+        lastDisposal = disposal;
+        lastX = x;
+        lastY = y;
+        lastWidth = frameWidth;
+        lastHeight = frameHeight;
+
+        int pixelCount = frameWidth * frameHeight;
+        if (indices.length < pixelCount) indices = new byte[pixelCount];
+        int decoded = decodeLzw(pixelCount);
+        skipBlocks();
+        if (colors == null) return;
+
+        int pass = 0, step = interlaced ? 8 : 1, row = 0;
+        for (int i = 0; i < frameHeight; i++) {
+            int line = row;
+            if (interlaced) {
+                row += step;
+                while (row >= frameHeight && pass < 3) {
+                    pass++;
+                    step = pass == 3 ? 2 : 8 >> (pass - 1);
+                    row = pass == 1 ? 4 : pass == 2 ? 2 : 1;
+                }
+            } else {
+                row++;
+            }
+            int canvasY = y + line;
+            if (canvasY >= height) continue;
+            int start = i * frameWidth;
+            int end = Math.min(start + Math.min(frameWidth, width - x), decoded);
+            for (int from = start, to = canvasY * width + x; from < end; from++, to++) {
+                int index = indices[from] & 0xFF;
+                if (index != transparentIndex && index < colors.length) {
+                    canvas[to] = colors[index];
+                }
+            }
+        }
+    }
+
+    // Returns how many of the frame's pixels the data held; the rest keep what was under them.
+    private int decodeLzw(int pixelCount) throws IOException {
+        int dataSize = readByte();
+        if (dataSize > 11) throw new IOException("Corrupt GIF at " + position);
+        int clear = 1 << dataSize;
+        int end = clear + 1;
+        int available = clear + 2;
+        int codeSize = dataSize + 1;
+        int codeMask = (1 << codeSize) - 1;
+        int oldCode = -1;
+        int first = 0;
+        for (int code = 0; code < clear; code++) {
+            prefix[code] = 0;
+            suffix[code] = (byte) code;
+        }
+        blockRemaining = 0;
+        int bits = 0, datum = 0, count = 0, stack = 0;
+        while (count < pixelCount) {
+            while (bits < codeSize) {
+                int next = readDataByte();
+                if (next < 0) return count;
+                datum |= next << bits;
+                bits += 8;
+            }
+            int code = datum & codeMask;
+            datum >>= codeSize;
+            bits -= codeSize;
+            if (code == clear) {
+                codeSize = dataSize + 1;
+                codeMask = (1 << codeSize) - 1;
+                available = clear + 2;
+                oldCode = -1;
+                continue;
+            } else if (code == end) {
+                break;
+            } else if (oldCode == -1) {
+                if (code >= available) break;
+                indices[count++] = suffix[code];
+                oldCode = first = code;
+                continue;
+            } else if (code > available) {
+                break;
+            }
+            int inCode = code;
+            if (code == available) {
+                pixelStack[stack++] = (byte) first;
+                code = oldCode;
+            }
+            while (code >= clear) {
+                pixelStack[stack++] = suffix[code];
+                code = prefix[code];
+            }
+            first = suffix[code] & 0xFF;
+            pixelStack[stack++] = (byte) first;
+            if (available < MAX_CODES) {
+                prefix[available] = (short) oldCode;
+                suffix[available] = (byte) first;
+                available++;
+                if ((available & codeMask) == 0 && available < MAX_CODES) {
+                    codeSize++;
+                    codeMask += available;
+                }
+            }
+            oldCode = inCode;
+            while (stack > 0 && count < pixelCount) {
+                indices[count++] = pixelStack[--stack];
+            }
+            stack = 0;
+        }
+        return count;
+    }
+
+    // The next byte of the image data sub-blocks, or -1 past the last of them.
+    private int readDataByte() throws IOException {
+        if (blockRemaining == 0) {
+            blockRemaining = readByte();
+            if (blockRemaining == 0) {
+                position--; // Leave the terminator for skipBlocks.
+                return -1;
+            }
+        }
+        blockRemaining--;
+        return readByte();
+    }
+
+    // Returns whether the terminating empty block was there.
+    private boolean skipBlocks() {
+        if (blockRemaining > 0) {
+            position += blockRemaining;
+            blockRemaining = 0;
+        }
+        while (position < data.length) {
+            int size = data[position++] & 0xFF;
+            if (size == 0) return true;
+            position += size;
+        }
+        return false;
+    }
+
+    private void fill(int x, int y, int fillWidth, int fillHeight) {
+        int right = Math.min(x + fillWidth, width);
+        int bottom = Math.min(y + fillHeight, height);
+        for (int row = y; row < bottom; row++) {
+            if (x < right) Arrays.fill(canvas, row * width + x, row * width + right, 0);
+        }
+    }
+
+    private int[] readColors(int count) throws IOException {
+        int[] colors = new int[count];
+        for (int i = 0; i < count; i++) {
+            colors[i] = 0xFF000000 | readByte() << 16 | readByte() << 8 | readByte();
+        }
+        return colors;
+    }
+
+    private int readShort() throws IOException {
+        return readByte() | readByte() << 8;
+    }
+
+    private int readByte() throws IOException {
+        if (position >= data.length) throw new IOException("Truncated GIF");
+        return data[position++] & 0xFF;
+    }
+}
@@ -0,0 +1,367 @@
+package io.mionick.imageviewer.image;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.mionick.imageviewer.memory.MemoryBudget;
+
+/**
+ * Decoded bitmaps keyed by their source and the parameters they were decoded with, so reopening
+ * a recent image skips the decode. Lookups try memory first, then disk, where decodes are kept as
+ * raw pixels behind a small header: reading one back is a single mapped copy, far cheaper than
+ * running the JPEG or PNG decoder again.
+ * <p>
+ * Bitmaps handed out are shared and must not be recycled by the caller.
+ */
+public class ImageCache implements MemoryBudget.Holder {
+    private static final String TAG = "ImageCache";
+    private static final int MAGIC = 0x4d494d43;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 7 * 4;
+    // Larger decodes are cheaper to decode again than to keep on disk.
+    private static final int DISK_MAX_ENTRY_BYTES = 16 * 1024 * 1024;
+
+    private final LruCache<String, Entry> memory;
+    private final File directory;
+    private final long diskBudgetBytes;
+    // File name to size, least recently used first. Guarded by itself.
+    private final LinkedHashMap<String, Long> diskIndex = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes;
+    private final ExecutorService diskWriter = Executors.newSingleThreadExecutor();
+    private final Object statsLock = new Object();
+    private long memoryHits, diskHits, misses, memoryEvictions, diskEvictions;
+
+    public ImageCache(File directory, int memoryBudgetBytes, long diskBudgetBytes) {
+        this.directory = directory;
+        this.diskBudgetBytes = diskBudgetBytes;
+        memory = new LruCache<String, Entry>(memoryBudgetBytes) {
+            @Override
+            protected int sizeOf(String key, Entry value) {
+                return value.bitmap.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Entry oldValue, Entry newValue) {
+                if (evicted) {
+                    synchronized (statsLock) {
+                        memoryEvictions++;
+                    }
+                }
+            }
+        };
+        diskWriter.execute(this::loadDiskIndex);
+    }
+
+    /**
+     * A memory budget of an eighth of the heap, leaving room for the image on screen and its
+     * level-of-detail copies.
+     */
+    public static int defaultMemoryBudget() {
+        return (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+    }
+
+    /**
+     * Cache key for {@code source} decoded with {@code params}, for instance the sample size or the
+     * maximum side it was decoded to.
+     */
+    public static String key(String source, String params) {
+        return source + '|' + params;
+    }
+
+    /**
+     * Looks in memory, then on disk, promoting disk hits into memory. Disk reads block, so this
+     * belongs on a background thread.
+     */
+    public Entry get(String key) {
+        Entry entry = memory.get(key);
+        if (entry != null) {
+            synchronized (statsLock) {
+                memoryHits++;
+            }
+            return entry;
+        }
+        entry = readFromDisk(key);
+        synchronized (statsLock) {
+            if (entry != null) {
+                diskHits++;
+            } else {
+                misses++;
+            }
+        }
+        if (entry != null) {
+            memory.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Brings {@code key} into the memory tier when it is only on disk, and returns whether it is
+     * in memory now. Meant for prefetching, so it is left out of the statistics.
+     */
+    public boolean warm(String key) {
+        if (memory.get(key) != null) return true;
+        Entry entry = readFromDisk(key);
+        if (entry == null) return false;
+        memory.put(key, entry);
+        return true;
+    }
+
+    public int getMemoryBudget() {
+        return memory.maxSize();
+    }
+
+    /**
+     * Caches a decode of an image whose full size is {@code sourceWidth} x {@code sourceHeight}.
+     * The disk copy is written in the background.
+     */
+    public void put(String key, Bitmap bitmap, int sourceWidth, int sourceHeight) {
+        Entry entry = new Entry(bitmap, sourceWidth, sourceHeight);
+        memory.put(key, entry);
+        if (bitmap.getAllocationByteCount() <= DISK_MAX_ENTRY_BYTES && configCode(bitmap.getConfig()) >= 0) {
+            diskWriter.execute(() -> writeToDisk(key, entry));
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (statsLock) {
+            synchronized (diskIndex) {
+                return new Stats(memoryHits, diskHits, misses, memoryEvictions, diskEvictions,
+                        memory.size(), diskBytes);
+            }
+        }
+    }
+
+    /**
+     * Empties the memory tier; the disk tier is left for the next lookup.
+     */
+    public void clearMemory() {
+        memory.evictAll();
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        return memory.size();
+    }
+
+    /**
+     * Only the memory tier is trimmed, the disk tier costs no heap.
+     */
+    @Override
+    public void trimMemory(MemoryBudget.Level level) {
+        if (level == MemoryBudget.Level.TRIM_CACHES) {
+            memory.trimToSize(memory.maxSize() / 2);
+        } else {
+            clearMemory();
+        }
+    }
+
+    public void shutdown() {
+        diskWriter.shutdown();
+    }
+
+    private void loadDiskIndex() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            if (!directory.mkdirs()) Log.w(TAG, "Could not create " + directory);
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        synchronized (diskIndex) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    // Left behind by a write that was interrupted.
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                    continue;
+                }
+                diskIndex.put(file.getName(), file.length());
+                diskBytes += file.length();
+            }
+        }
+        trimDisk();
+    }
+
+    private Entry readFromDisk(String key) {
+        String name = fileName(key);
+        synchronized (diskIndex) {
+            // Marks the entry as recently used as well.
+            if (diskIndex.get(name) == null) return null;
+        }
+        File file = new File(directory, name);
+        try (RandomAccessFile in = new RandomAccessFile(file, "r");
+             FileChannel channel = in.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unknown cache file format");
+            }
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            int sourceWidth = buffer.getInt();
+            int sourceHeight = buffer.getInt();
+            Bitmap.Config config = configFor(buffer.getInt());
+            Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+            bitmap.copyPixelsFromBuffer(buffer);
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());
+            return new Entry(bitmap, sourceWidth, sourceHeight);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Dropping unreadable cache file " + name, e);
+            removeFromDisk(name);
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, Entry entry) {
+        String name = fileName(key);
+        synchronized (diskIndex) {
+            if (diskIndex.containsKey(name)) return;
+        }
+        Bitmap bitmap = entry.bitmap;
+        File file = new File(directory, name);
+        File partial = new File(directory, name + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(partial);
+             FileChannel channel = out.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION)
+                    .putInt(bitmap.getWidth()).putInt(bitmap.getHeight())
+                    .putInt(entry.sourceWidth).putInt(entry.sourceHeight)
+                    .putInt(configCode(bitmap.getConfig()));
+            header.flip();
+            channel.write(header);
+            ByteBuffer pixels = ByteBuffer.allocateDirect(bitmap.getByteCount());
+            bitmap.copyPixelsToBuffer(pixels);
+            pixels.flip();
+            while (pixels.hasRemaining()) {
+                channel.write(pixels);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not write cache file", e);
+            //noinspection ResultOfMethodCallIgnored
+            partial.delete();
+            return;
+        }
+        if (!partial.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            partial.delete();
+            return;
+        }
+        synchronized (diskIndex) {
+            diskIndex.put(name, file.length());
+            diskBytes += file.length();
+        }
+        trimDisk();
+    }
+
+    private void trimDisk() {
+        while (true) {
+            String eldest;
+            synchronized (diskIndex) {
+                if (diskBytes <= diskBudgetBytes || diskIndex.isEmpty()) return;
+                Iterator<Map.Entry<String, Long>> iterator = diskIndex.entrySet().iterator();
+                Map.Entry<String, Long> entry = iterator.next();
+                eldest = entry.getKey();
+                diskBytes -= entry.getValue();
+                iterator.remove();
+            }
+            //noinspection ResultOfMethodCallIgnored
+            new File(directory, eldest).delete();
+            synchronized (statsLock) {
+                diskEvictions++;
+            }
+        }
+    }
+
+    private void removeFromDisk(String name) {
+        synchronized (diskIndex) {
+            Long size = diskIndex.remove(name);
+            if (size != null) diskBytes -= size;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        new File(directory, name).delete();
+    }
+
+    private static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int configCode(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) return 0;
+        if (config == Bitmap.Config.RGB_565) return 1;
+        return -1;
+    }
+
+    private static Bitmap.Config configFor(int code) throws IOException {
+        switch (code) {
+            case 0:
+                return Bitmap.Config.ARGB_8888;
+            case 1:
+                return Bitmap.Config.RGB_565;
+            default:
+                throw new IOException("Unknown bitmap config " + code);
+        }
+    }
+
+    /**
+     * A cached decode and the full size of the image it was decoded from.
+     */
+    public static class Entry {
+        public final Bitmap bitmap;
+        public final int sourceWidth, sourceHeight;
+
+        Entry(Bitmap bitmap, int sourceWidth, int sourceHeight) {
+            this.bitmap = bitmap;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+        }
+    }
+
+    public static class Stats {
+        public final long memoryHits, diskHits, misses, memoryEvictions, diskEvictions;
+        public final long memoryBytes, diskBytes;
+
+        Stats(long memoryHits, long diskHits, long misses, long memoryEvictions, long diskEvictions,
+              long memoryBytes, long diskBytes) {
+            this.memoryHits = memoryHits;
+            this.diskHits = diskHits;
+            this.misses = misses;
+            this.memoryEvictions = memoryEvictions;
+            this.diskEvictions = diskEvictions;
+            this.memoryBytes = memoryBytes;
+            this.diskBytes = diskBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "hits " + memoryHits + " memory / " + diskHits + " disk, misses " + misses
+                    + ", evictions " + memoryEvictions + " memory / " + diskEvictions + " disk"
+                    + ", " + memoryBytes / 1024 + " KB in memory, " + diskBytes / 1024 + " KB on disk";
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package io.mionick.imageviewer.image;
+
+import android.content.ContentResolver;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import io.mionick.imageviewer.metrics.Metrics;
+
+/**
+ * Decodes images off the main thread. Each request first delivers a quickly decoded, subsampled
+ * preview and then the full quality image. Starting a new request cancels the previous one, and
+ * results of a superseded request are never delivered. Decodes go through an {@link ImageCache},
+ * so reopening a recent image is served from memory or disk. Animated GIFs skip all of that and
+ * arrive as an {@link AnimatedImage}.
+ */
+public class ImageLoader {
+    private static final String TAG = "ImageLoader";
+    // Longest side of the preview that is shown while the full image decodes.
+    public static final int PREVIEW_MAX_SIDE = 1024;
+    // Layers are references drawn over the image, they never need to be sharper than this.
+    public static final int LAYER_MAX_SIDE = 2048;
+    // Larger animations are shown as a still image: their frame pool would outweigh the rest.
+    private static final int ANIMATION_MAX_PIXELS = 2048 * 2048;
+    private static final int ANIMATION_MAX_BYTES = 32 * 1024 * 1024;
+
+    private final ContentResolver contentResolver;
+    private final Resources resources;
+    private final int tileCacheBytes;
+    private final ImageCache cache;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 2, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(4), new ThreadPoolExecutor.DiscardOldestPolicy());
+    // Prefetches run one at a time behind any real load, in the order they were asked for.
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ImagePrefetch");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private final ExecutorService layerExecutor = Executors.newSingleThreadExecutor();
+    private Future<?> currentLoad;
+    // The last reloadFull, cancelled on its own by cancelReload while it is still the current load.
+    private Future<?> currentReload;
+    private volatile int generation = 0;
+    // The image last asked for, so its full quality version can be decoded again.
+    private String lastSource;
+    private StreamOpener lastOpener;
+
+    public ImageLoader(ContentResolver contentResolver, Resources resources, int tileCacheBytes, ImageCache cache) {
+        this.contentResolver = contentResolver;
+        this.resources = resources;
+        this.tileCacheBytes = tileCacheBytes;
+        this.cache = cache;
+    }
+
+    public ImageCache getCache() {
+        return cache;
+    }
+
+    public interface Callback {
+        /**
+         * The first result of a request: a low resolution stand-in for an image of
+         * {@code width} x {@code height} pixels, or the image itself when it is small.
+         */
+        void onPreview(Bitmap preview, int width, int height);
+
+        /**
+         * The full quality image replacing an earlier preview.
+         */
+        void onBitmap(Bitmap bitmap);
+
+        void onTiledImage(TiledImage tiledImage);
+
+        /**
+         * An animated image, delivered in place of any preview or bitmap. Not started yet.
+         */
+        void onAnimation(AnimatedImage animation);
+    }
+
+    public interface LayerCallback {
+        void onLayer(Bitmap bitmap);
+    }
+
+    private interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    private interface Decode {
+        void run(int requestGeneration) throws IOException;
+    }
+
+    public void load(Uri uri, Callback callback) {
+        String source = uri.toString();
+        StreamOpener opener = () -> contentResolver.openInputStream(uri);
+        start(source, opener, requestGeneration -> decode(source, opener, callback, requestGeneration));
+    }
+
+    /**
+     * Decodes a bundled image once, subsampled to no less than {@code maxSide} on its longest
+     * side, and delivers it as the preview of the full size image with no full decode after it.
+     * Meant for images shown fitted to the screen, like the one on start.
+     */
+    public void loadResource(int resId, int maxSide, Callback callback) {
+        String source = "resource:" + resId;
+        StreamOpener opener = () -> resources.openRawResource(resId);
+        start(source, opener, requestGeneration -> decodeSampled(source, opener, maxSide, callback, requestGeneration));
+    }
+
+    /**
+     * Decodes {@code uri} to use as a layer, subsampled so its longest side is at most
+     * {@link #LAYER_MAX_SIDE}. Independent of {@link #load}, neither cancels the other.
+     */
+    public void loadLayer(Uri uri, LayerCallback callback) {
+        String key = ImageCache.key(uri.toString(), "max=" + LAYER_MAX_SIDE);
+        layerExecutor.execute(() -> {
+            ImageCache.Entry cached = cache.get(key);
+            if (cached != null) {
+                mainHandler.post(() -> callback.onLayer(cached.bitmap));
+                return;
+            }
+            try {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                try (InputStream in = contentResolver.openInputStream(uri)) {
+                    BitmapFactory.decodeStream(in, null, options);
+                }
+                int width = options.outWidth;
+                int height = options.outHeight;
+                if (width <= 0 || height <= 0) {
+                    throw new IOException("Not a decodable image");
+                }
+                options = new BitmapFactory.Options();
+                options.inSampleSize = 1;
+                while (Math.max(width, height) / options.inSampleSize > LAYER_MAX_SIDE) {
+                    options.inSampleSize *= 2;
+                }
+                Bitmap bitmap;
+                try (InputStream in = contentResolver.openInputStream(uri)) {
+                    bitmap = BitmapFactory.decodeStream(in, null, options);
+                }
+                if (bitmap == null) {
+                    throw new IOException("Not a decodable image");
+                }
+                Metrics.BITMAP_BYTES.record(bitmap.getAllocationByteCount());
+                cache.put(key, bitmap, width, height);
+                mainHandler.post(() -> callback.onLayer(bitmap));
+            } catch (IOException e) {
+                Log.e(TAG, "Could not decode layer", e);
+            }
+        });
+    }
+
+    /**
+     * Decodes {@code uri} into the cache without delivering it, so a later {@link #load} is a
+     * memory hit. Images whose full decode would take more than {@code maxBytes}, or that are
+     * shown tiled, only get their preview cached. Cancel the returned future when the image is no
+     * longer wanted.
+     */
+    public Future<?> prefetch(Uri uri, long maxBytes) {
+        String source = uri.toString();
+        return prefetchExecutor.submit(() -> {
+            try {
+                warm(source, () -> contentResolver.openInputStream(uri), maxBytes);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not prefetch " + uri, e);
+            }
+        });
+    }
+
+    private void warm(String source, StreamOpener opener, long maxBytes) throws IOException {
+        String fullKey = ImageCache.key(source, "full");
+        String previewKey = ImageCache.key(source, "max=" + PREVIEW_MAX_SIDE);
+        if (cache.warm(fullKey)) return;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = opener.open()) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0 || Thread.currentThread().isInterrupted()) return;
+
+        boolean full = !TiledImage.shouldTile(width, height) && 4L * width * height <= maxBytes;
+        int sampleSize = TiledImage.sampleSizeFor(Math.max(width, height), PREVIEW_MAX_SIDE);
+        if (!full && !cache.warm(previewKey)) {
+            options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            Bitmap preview;
+            try (InputStream in = opener.open()) {
+                preview = BitmapFactory.decodeStream(in, null, options);
+            }
+            if (preview != null) cache.put(previewKey, preview, width, height);
+        }
+        if (full && !Thread.currentThread().isInterrupted()) {
+            Bitmap bitmap;
+            try (InputStream in = opener.open()) {
+                bitmap = BitmapFactory.decodeStream(in);
+            }
+            if (bitmap != null) cache.put(fullKey, bitmap, width, height);
+        }
+    }
+
+    /**
+     * Decodes the image of the last request again at full quality, skipping the preview, for
+     * when the copy on screen was reduced to save memory. Results arrive as for {@link #load}.
+     */
+    public void reloadFull(Callback callback) {
+        if (lastSource == null) return;
+        String source = lastSource;
+        StreamOpener opener = lastOpener;
+        cancel();
+        final int requestGeneration = generation;
+        currentLoad = currentReload = executor.submit(() -> {
+            try {
+                String fullKey = ImageCache.key(source, "full");
+                ImageCache.Entry full = cache.get(fullKey);
+                if (full != null) {
+                    deliver(requestGeneration, () -> callback.onBitmap(full.bitmap));
+                    return;
+                }
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                try (InputStream in = opener.open()) {
+                    BitmapFactory.decodeStream(in, null, options);
+                }
+                decodeFull(opener, callback, requestGeneration, fullKey, options.outWidth, options.outHeight, true);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not decode image", e);
+            }
+        });
+    }
+
+    /**
+     * Cancels a {@link #reloadFull} that is still in flight. Any other load is left alone.
+     */
+    public void cancelReload() {
+        if (currentReload != null && currentReload == currentLoad) cancel();
+        currentReload = null;
+    }
+
+    public void cancel() {
+        generation++;
+        if (currentLoad != null) {
+            currentLoad.cancel(true);
+            currentLoad = null;
+        }
+    }
+
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+        prefetchExecutor.shutdownNow();
+        layerExecutor.shutdownNow();
+        cache.shutdown();
+    }
+
+    private void start(String source, StreamOpener opener, Decode decode) {
+        cancel();
+        lastSource = source;
+        lastOpener = opener;
+        final int requestGeneration = generation;
+        currentLoad = executor.submit(() -> {
+            long start = System.nanoTime();
+            Trace.beginSection("decode");
+            try {
+                decode.run(requestGeneration);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not decode image", e);
+            } finally {
+                Trace.endSection();
+            }
+            Metrics.DECODE.record(Metrics.micros(start));
+            if (Log.isLoggable(TAG, Log.DEBUG)) Log.d(TAG, "Cache " + cache.getStats());
+        });
+    }
+
+    private void decode(String source, StreamOpener opener, Callback callback, int requestGeneration) throws IOException {
+        AnimatedImage animation = decodeAnimation(opener);
+        if (animation != null) {
+            deliver(requestGeneration, () -> callback.onAnimation(animation), animation::release);
+            return;
+        }
+        String fullKey = ImageCache.key(source, "full");
+        String previewKey = ImageCache.key(source, "max=" + PREVIEW_MAX_SIDE);
+        ImageCache.Entry full = cache.get(fullKey);
+        if (full != null) {
+            deliver(requestGeneration, () -> callback.onPreview(full.bitmap, full.sourceWidth, full.sourceHeight));
+            return;
+        }
+        ImageCache.Entry cachedPreview = cache.get(previewKey);
+        if (cachedPreview != null) {
+            deliver(requestGeneration, () -> callback.onPreview(cachedPreview.bitmap,
+                    cachedPreview.sourceWidth, cachedPreview.sourceHeight));
+            if (isStale(requestGeneration)) return;
+            decodeFull(opener, callback, requestGeneration, fullKey,
+                    cachedPreview.sourceWidth, cachedPreview.sourceHeight, true);
+            return;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = opener.open()) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Not a decodable image");
+        }
+
+        int previewSampleSize = TiledImage.sampleSizeFor(Math.max(width, height), PREVIEW_MAX_SIDE);
+        boolean tiled = TiledImage.shouldTile(width, height);
+        boolean needsPreview = previewSampleSize > 1 || tiled;
+        if (needsPreview) {
+            options = new BitmapFactory.Options();
+            options.inSampleSize = previewSampleSize;
+            Bitmap preview;
+            try (InputStream in = opener.open()) {
+                preview = BitmapFactory.decodeStream(in, null, options);
+            }
+            if (preview != null) {
+                Metrics.BITMAP_BYTES.record(preview.getAllocationByteCount());
+                cache.put(previewKey, preview, width, height);
+                deliver(requestGeneration, () -> callback.onPreview(preview, width, height));
+            }
+        }
+        if (isStale(requestGeneration)) return;
+        decodeFull(opener, callback, requestGeneration, fullKey, width, height, needsPreview);
+    }
+
+    // Null unless the image is an animated GIF small enough to play. Only its compressed bytes are
+    // read here, frames are decoded as it plays.
+    private AnimatedImage decodeAnimation(StreamOpener opener) throws IOException {
+        byte[] data;
+        try (InputStream in = opener.open()) {
+            byte[] buffer = new byte[16 * 1024];
+            int length = 0;
+            int read;
+            while (length < 6 && (read = in.read(buffer, length, buffer.length - length)) > 0) {
+                length += read;
+            }
+            if (!GifDecoder.isGif(buffer, length)) return null;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(buffer, 0, length);
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+                if (out.size() > ANIMATION_MAX_BYTES) return null;
+            }
+            data = out.toByteArray();
+        }
+        GifDecoder decoder;
+        try {
+            decoder = new GifDecoder(data);
+        } catch (IOException e) {
+            Log.w(TAG, "Not playing a damaged GIF", e);
+            return null;
+        }
+        if (decoder.getFrameCount() < 2
+                || (long) decoder.getWidth() * decoder.getHeight() > ANIMATION_MAX_PIXELS) {
+            return null;
+        }
+        return new AnimatedImage(decoder);
+    }
+
+    private void decodeSampled(String source, StreamOpener opener, int maxSide, Callback callback,
+                               int requestGeneration) throws IOException {
+        String key = ImageCache.key(source, "max=" + maxSide);
+        ImageCache.Entry cached = cache.get(key);
+        if (cached != null) {
+            deliver(requestGeneration, () -> callback.onPreview(cached.bitmap, cached.sourceWidth, cached.sourceHeight));
+            return;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = opener.open()) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Not a decodable image");
+        }
+        options = new BitmapFactory.Options();
+        options.inSampleSize = TiledImage.sampleSizeFor(Math.max(width, height), maxSide);
+        Bitmap bitmap;
+        try (InputStream in = opener.open()) {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        }
+        if (bitmap == null) {
+            throw new IOException("Not a decodable image");
+        }
+        Metrics.BITMAP_BYTES.record(bitmap.getAllocationByteCount());
+        cache.put(key, bitmap, width, height);
+        deliver(requestGeneration, () -> callback.onPreview(bitmap, width, height));
+    }
+
+    private void decodeFull(StreamOpener opener, Callback callback, int requestGeneration, String fullKey,
+                            int width, int height, boolean needsPreview) throws IOException {
+        if (TiledImage.shouldTile(width, height)) {
+            TiledImage tiledImage;
+            try (InputStream in = opener.open()) {
+                tiledImage = new TiledImage(in, tileCacheBytes);
+            }
+            deliver(requestGeneration, () -> callback.onTiledImage(tiledImage), tiledImage::recycle);
+        } else {
+            Bitmap bitmap;
+            try (InputStream in = opener.open()) {
+                bitmap = BitmapFactory.decodeStream(in);
+            }
+            if (bitmap != null) {
+                Metrics.BITMAP_BYTES.record(bitmap.getAllocationByteCount());
+                cache.put(fullKey, bitmap, width, height);
+            }
+            if (bitmap != null && needsPreview) {
+                deliver(requestGeneration, () -> callback.onBitmap(bitmap));
+            } else if (bitmap != null) {
+                // Small enough to skip the preview, the full image is the first thing shown.
+                deliver(requestGeneration, () -> callback.onPreview(bitmap, width, height));
+            }
+        }
+    }
+
+    private boolean isStale(int requestGeneration) {
+        return Thread.currentThread().isInterrupted() || requestGeneration != generation;
+    }
+
+    private void deliver(int requestGeneration, Runnable result) {
+        deliver(requestGeneration, result, null);
+    }
+
+    private void deliver(int requestGeneration, Runnable result, Runnable discard) {
+        mainHandler.post(() -> {
+            if (requestGeneration == generation) {
+                result.run();
+            } else if (discard != null) {
+                discard.run();
+            }
+        });
+    }
+}
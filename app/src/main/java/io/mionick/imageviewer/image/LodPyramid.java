@@ -0,0 +1,120 @@
+package io.mionick.imageviewer.image;
+
+import android.graphics.Bitmap;
+import android.os.Trace;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Half resolution copies of a bitmap, used when zoomed out so each frame samples the smallest
+ * level that still has at least one texel per screen pixel. Levels are built lazily in the
+ * background the first time they are wanted, and the finest level at hand is used until then.
+ */
+public class LodPyramid {
+    // Levels smaller than this on their longest side are not worth building.
+    private static final int MIN_LEVEL_SIDE = 64;
+    private static final ExecutorService BUILDER = Executors.newSingleThreadExecutor();
+
+    private final Bitmap[] levels;
+    private final long maxBytes;
+    private volatile int builtLevels = 1;
+    private volatile boolean recycled;
+    private volatile boolean building;
+    private volatile boolean capped;
+    private volatile long levelBytes;
+    private Runnable onLevelBuilt;
+
+    /**
+     * @param maxBytes cap on the memory taken by the levels below the source bitmap
+     */
+    public LodPyramid(Bitmap source, long maxBytes) {
+        this.maxBytes = maxBytes;
+        int levelCount = 1;
+        for (int side = Math.max(source.getWidth(), source.getHeight()) / 2; side >= MIN_LEVEL_SIDE; side /= 2) {
+            levelCount++;
+        }
+        levels = new Bitmap[levelCount];
+        levels[0] = source;
+    }
+
+    /**
+     * Memory taken by the levels built so far, not counting the source bitmap.
+     */
+    public long getLevelBytes() {
+        return levelBytes;
+    }
+
+    public void setOnLevelBuilt(Runnable onLevelBuilt) {
+        this.onLevelBuilt = onLevelBuilt;
+    }
+
+    /**
+     * The bitmap to draw when one pixel of the source covers {@code scale} screen pixels.
+     */
+    public Bitmap levelFor(float scale) {
+        int wanted = 0;
+        while (wanted + 1 < levels.length && scale * (2 << wanted) <= 1f) {
+            wanted++;
+        }
+        int available = builtLevels;
+        if (wanted >= available) {
+            requestLevels(wanted);
+            return levels[available - 1];
+        }
+        return levels[wanted];
+    }
+
+    /**
+     * Whether a level is being built, after which {@link #levelFor} may return a coarser one.
+     */
+    public boolean isBuilding() {
+        return building;
+    }
+
+    private void requestLevels(int wanted) {
+        if (building || capped || recycled) return;
+        building = true;
+        BUILDER.execute(() -> {
+            while (!recycled && builtLevels <= wanted) {
+                Bitmap previous = levels[builtLevels - 1];
+                int width = Math.max(1, previous.getWidth() / 2);
+                int height = Math.max(1, previous.getHeight() / 2);
+                long bytes = (long) width * height * bytesPerPixel(previous);
+                if (levelBytes + bytes > maxBytes) {
+                    capped = true;
+                    break;
+                }
+
+                Trace.beginSection("lodLevel");
+                levels[builtLevels] = Bitmap.createScaledBitmap(previous, width, height, true);
+                Trace.endSection();
+                levelBytes += bytes;
+                builtLevels++;
+                // Cleared before the last callback, so whoever it wakes sees the build finished.
+                if (builtLevels > wanted) building = false;
+                Runnable callback = onLevelBuilt;
+                if (callback != null) callback.run();
+            }
+            building = false;
+        });
+    }
+
+    private static int bytesPerPixel(Bitmap bitmap) {
+        return bitmap.getConfig() == Bitmap.Config.RGB_565 ? 2 : 4;
+    }
+
+    /**
+     * Frees every level except the source bitmap, which stays owned by the caller.
+     */
+    public void recycle() {
+        recycled = true;
+        // Queued behind any level still being built, so nothing is recycled mid-scale.
+        BUILDER.execute(() -> {
+            for (int i = 1; i < builtLevels; i++) {
+                levels[i].recycle();
+                levels[i] = null;
+            }
+        });
+    }
+}
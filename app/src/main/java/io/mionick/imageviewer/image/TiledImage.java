@@ -0,0 +1,213 @@
+package io.mionick.imageviewer.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Trace;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An image too large to hold as one full-resolution bitmap. Only the tiles intersecting the
+ * viewport are decoded, at a sample size matching the current zoom, so memory is bounded by the
+ * screen size instead of the image size. A coarse preview of the whole image is drawn underneath
+ * while tiles are still decoding.
+ */
+public class TiledImage {
+    public static final int TILE_SIZE = 512;
+    // Images above this many pixels are shown tiled instead of being decoded in one piece.
+    public static final long TILING_THRESHOLD_PIXELS = 16_000_000L;
+    private static final int PREVIEW_MAX_SIDE = 2048;
+
+    private final BitmapRegionDecoder decoder;
+    private final int width, height;
+    private final Bitmap preview;
+    private final LruCache<Long, Bitmap> tiles;
+    private final Set<Long> pending = new HashSet<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Rect srcRect = new Rect();
+    private final RectF dstRect = new RectF();
+    private final BitmapFactory.Options tileOptions = new BitmapFactory.Options();
+    private Runnable onTileLoaded;
+    private volatile boolean recycled;
+
+    public TiledImage(InputStream inputStream, int tileCacheBytes) throws IOException {
+        //noinspection deprecation, newInstance(InputStream) needs API 31
+        decoder = BitmapRegionDecoder.newInstance(inputStream, false);
+        width = decoder.getWidth();
+        height = decoder.getHeight();
+
+        BitmapFactory.Options previewOptions = new BitmapFactory.Options();
+        previewOptions.inSampleSize = sampleSizeFor(Math.max(width, height), PREVIEW_MAX_SIDE);
+        preview = decoder.decodeRegion(new Rect(0, 0, width, height), previewOptions);
+
+        // Evicted tiles are left to the garbage collector rather than recycled: eviction happens on
+        // the decode thread and on trims, while a frame on the UI or render thread may still be
+        // drawing the tile it just got.
+        tiles = new LruCache<Long, Bitmap>(tileCacheBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+        };
+    }
+
+    public static boolean shouldTile(int width, int height) {
+        return (long) width * height > TILING_THRESHOLD_PIXELS;
+    }
+
+    /**
+     * Largest power of two sample size that still leaves {@code side} at least {@code target} pixels.
+     */
+    public static int sampleSizeFor(int side, int target) {
+        int sampleSize = 1;
+        while (side / (sampleSize * 2) >= target) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Sample size to decode at when one image pixel covers {@code scale} screen pixels.
+     */
+    public static int sampleSizeForScale(float scale) {
+        int sampleSize = 1;
+        while (scale * sampleSize * 2 <= 1f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Bitmap getPreview() {
+        return preview;
+    }
+
+    public long getTileBytes() {
+        return tiles.size();
+    }
+
+    /**
+     * Evicts the least recently drawn tiles until at most {@code maxBytes} are left; they are
+     * decoded again when next needed.
+     */
+    public void trimTiles(int maxBytes) {
+        tiles.trimToSize(maxBytes);
+    }
+
+    public void setOnTileLoaded(Runnable onTileLoaded) {
+        this.onTileLoaded = onTileLoaded;
+    }
+
+    /**
+     * Draws the tiles covering {@code visible}, both in image coordinates. The canvas is expected
+     * to already carry the image to screen transform. Missing tiles are queued for decoding and
+     * the preview shows through until they arrive.
+     */
+    public void draw(Canvas canvas, RectF visible, int sampleSize, Paint paint) {
+        dstRect.set(0, 0, width, height);
+        canvas.drawBitmap(preview, null, dstRect, paint);
+
+        int tileSpan = TILE_SIZE * sampleSize;
+        int firstCol = Math.max(0, (int) (visible.left / tileSpan));
+        int firstRow = Math.max(0, (int) (visible.top / tileSpan));
+        int lastCol = Math.min((width - 1) / tileSpan, (int) (visible.right / tileSpan));
+        int lastRow = Math.min((height - 1) / tileSpan, (int) (visible.bottom / tileSpan));
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                long key = tileKey(sampleSize, col, row);
+                Bitmap tile = tiles.get(key);
+                tileBounds(sampleSize, col, row, srcRect);
+                if (tile != null) {
+                    dstRect.set(srcRect);
+                    canvas.drawBitmap(tile, null, dstRect, paint);
+                } else {
+                    requestTile(key, sampleSize, col, row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes {@code region} synchronously on the calling thread, bypassing the tile cache. Meant
+     * for one-off full-resolution reads such as an export; returns null once recycled.
+     */
+    public Bitmap decodeRegion(Rect region, int sampleSize) {
+        if (recycled) return null;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        return decoder.decodeRegion(region, options);
+    }
+
+    private void requestTile(long key, int sampleSize, int col, int row) {
+        synchronized (pending) {
+            if (!pending.add(key)) return;
+        }
+        executor.execute(() -> {
+            try {
+                if (recycled) return;
+                Rect region = new Rect();
+                tileBounds(sampleSize, col, row, region);
+                Bitmap tile;
+                Trace.beginSection("tile");
+                try {
+                    synchronized (tileOptions) {
+                        tileOptions.inSampleSize = sampleSize;
+                        tile = decoder.decodeRegion(region, tileOptions);
+                    }
+                } finally {
+                    Trace.endSection();
+                }
+                if (tile != null && recycled) {
+                    tile.recycle();
+                } else if (tile != null) {
+                    tiles.put(key, tile);
+                    Runnable callback = onTileLoaded;
+                    if (callback != null) callback.run();
+                }
+            } catch (IllegalStateException e) {
+                // decoder was recycled while this tile was queued
+            } finally {
+                synchronized (pending) {
+                    pending.remove(key);
+                }
+            }
+        });
+    }
+
+    private void tileBounds(int sampleSize, int col, int row, Rect out) {
+        int tileSpan = TILE_SIZE * sampleSize;
+        out.set(col * tileSpan, row * tileSpan,
+                Math.min(width, (col + 1) * tileSpan), Math.min(height, (row + 1) * tileSpan));
+    }
+
+    private static long tileKey(int sampleSize, int col, int row) {
+        return ((long) Integer.numberOfTrailingZeros(sampleSize) << 48) | ((long) col << 24) | row;
+    }
+
+    public void recycle() {
+        recycled = true;
+        executor.shutdownNow();
+        tiles.evictAll();
+        preview.recycle();
+        decoder.recycle();
+    }
+}
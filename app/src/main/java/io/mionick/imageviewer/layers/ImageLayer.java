@@ -0,0 +1,155 @@
+package io.mionick.imageviewer.layers;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+import io.mionick.imageviewer.geometry.Homography;
+import io.mionick.imageviewer.gestures.TransformTarget;
+
+/**
+ * An image drawn over the main one, typically a semi-transparent reference for onion-skinning.
+ * It has its own position, scale, rotation, corner deformation and opacity, composed the same way
+ * as the main image's.
+ */
+public class ImageLayer implements TransformTarget {
+    private final Bitmap bitmap;
+    private final float w, h;
+    private final RectF imageRect;
+    private final float[] untransformedCorners;
+    private final float[] polyToPoly = new float[8];
+    private final Homography homography = new Homography();
+    private final Matrix matrix = new Matrix();
+    private final float[] matrixValues = new float[Homography.SIZE];
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private float x, y, rotation, mScaleFactor = 1;
+    private boolean matrixDirty = true;
+    private Runnable onChanged;
+
+    public ImageLayer(Bitmap bitmap, float opacity) {
+        this.bitmap = bitmap;
+        w = bitmap.getWidth();
+        h = bitmap.getHeight();
+        imageRect = new RectF(0, 0, w, h);
+        untransformedCorners = new float[]{0, 0, w, 0, 0, h, w, h};
+        System.arraycopy(untransformedCorners, 0, polyToPoly, 0, 8);
+        setOpacity(opacity);
+    }
+
+    /**
+     * Run after every change, so whoever composites the layer knows to redraw it.
+     */
+    public void setOnChanged(Runnable onChanged) {
+        this.onChanged = onChanged;
+    }
+
+    public Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    public float getOpacity() {
+        return paint.getAlpha() / 255f;
+    }
+
+    public void setOpacity(float opacity) {
+        paint.setAlpha(Math.round(255 * Math.max(0, Math.min(1, opacity))));
+        changed(false);
+    }
+
+    @Override
+    public float getX() {
+        return x;
+    }
+
+    @Override
+    public float getY() {
+        return y;
+    }
+
+    @Override
+    public float getMScaleFactor() {
+        return mScaleFactor;
+    }
+
+    @Override
+    public float getRotation() {
+        return rotation;
+    }
+
+    @Override
+    public void setPosition(float x, float y) {
+        this.x = x;
+        this.y = y;
+        changed(true);
+    }
+
+    @Override
+    public void setMScaleFactor(float mScaleFactor) {
+        this.mScaleFactor = mScaleFactor;
+        changed(true);
+    }
+
+    @Override
+    public void setRotation(float rotation) {
+        this.rotation = rotation;
+        changed(true);
+    }
+
+    /**
+     * Moves the four image corners to {@code screenCorners}, like the main image's deform mode.
+     */
+    public void setDeformation(float[] screenCorners) {
+        System.arraycopy(screenCorners, 0, polyToPoly, 0, 8);
+        rotation = 0;
+        mScaleFactor = 1;
+        x = 0;
+        y = 0;
+        changed(true);
+    }
+
+    /**
+     * Scales the layer to fit a {@code viewWidth} x {@code viewHeight} view and centres it.
+     */
+    public void fitTo(float viewWidth, float viewHeight) {
+        System.arraycopy(untransformedCorners, 0, polyToPoly, 0, 8);
+        rotation = 0;
+        mScaleFactor = Math.min(viewWidth / w, viewHeight / h);
+        x = (viewWidth - w) / 2;
+        y = (viewHeight - h) / 2;
+        changed(true);
+    }
+
+    public float[] getCornersInScreenSpace(float[] out) {
+        ensureMatrix();
+        homography.mapPoints(out, 0, untransformedCorners, 0, 4);
+        return out;
+    }
+
+    public void draw(Canvas canvas) {
+        ensureMatrix();
+        canvas.save();
+        canvas.concat(matrix);
+        canvas.drawBitmap(bitmap, null, imageRect, paint);
+        canvas.restore();
+    }
+
+    private void changed(boolean transform) {
+        if (transform) matrixDirty = true;
+        if (onChanged != null) onChanged.run();
+    }
+
+    private void ensureMatrix() {
+        if (!matrixDirty) return;
+        matrixDirty = false;
+        if (!homography.setPolyToPoly(untransformedCorners, 0, polyToPoly, 0)) {
+            homography.reset();
+        }
+        homography.postRotate(rotation, w / 2, h / 2);
+        homography.postScale(mScaleFactor, mScaleFactor, w / 2, h / 2);
+        homography.postTranslate(x, y);
+        homography.getValues(matrixValues);
+        matrix.setValues(matrixValues);
+    }
+}
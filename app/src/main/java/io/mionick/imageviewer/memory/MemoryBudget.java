@@ -0,0 +1,125 @@
+package io.mionick.imageviewer.memory;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.mionick.imageviewer.image.TiledImage;
+
+/**
+ * Knows everything holding decoded pixels and asks it to give memory back, progressively, when
+ * the system runs low or the total goes over budget. Holders are trimmed on the main thread and
+ * decide for themselves what each {@link Level} means for them.
+ */
+public class MemoryBudget {
+    private static final String TAG = "MemoryBudget";
+
+    /**
+     * How hard to trim, mildest first. Each level includes everything the ones before it drop.
+     */
+    public enum Level {
+        // Shrink caches to part of their size.
+        TRIM_CACHES,
+        // Empty caches and drop anything that can be rebuilt.
+        DROP_CACHES,
+        // Also swap the image on screen for a copy no sharper than the screen.
+        REDUCE_IMAGE
+    }
+
+    public interface Holder {
+        long getRetainedBytes();
+
+        void trimMemory(Level level);
+    }
+
+    private final long budgetBytes;
+    private final List<Holder> holders = new CopyOnWriteArrayList<>();
+
+    public MemoryBudget(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Half the heap, the rest is left for the views, layers and everything else.
+     */
+    public static long defaultBudget() {
+        return Runtime.getRuntime().maxMemory() / 2;
+    }
+
+    public void register(Holder holder) {
+        holders.add(holder);
+    }
+
+    public void unregister(Holder holder) {
+        holders.remove(holder);
+    }
+
+    public long getRetainedBytes() {
+        long bytes = 0;
+        for (Holder holder : holders) {
+            bytes += holder.getRetainedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Forwards {@link ComponentCallbacks2#onTrimMemory}.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trim(Level.REDUCE_IMAGE);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trim(Level.DROP_CACHES);
+        } else {
+            trim(Level.TRIM_CACHES);
+        }
+    }
+
+    public void onLowMemory() {
+        trim(Level.REDUCE_IMAGE);
+    }
+
+    /**
+     * Call after something new was decoded. Trims caches, harder if needed, until the total is
+     * back under budget; the image on screen is left alone.
+     */
+    public void checkBudget() {
+        for (Level level : new Level[]{Level.TRIM_CACHES, Level.DROP_CACHES}) {
+            if (getRetainedBytes() <= budgetBytes) return;
+            trim(level);
+        }
+    }
+
+    public void trim(Level level) {
+        long before = getRetainedBytes();
+        for (Holder holder : holders) {
+            holder.trimMemory(level);
+        }
+        Log.d(TAG, "Trimmed to " + level + ": " + before / 1024 + " KB -> " + getRetainedBytes() / 1024 + " KB");
+    }
+
+    /**
+     * A copy of {@code bitmap} subsampled by a power of two to no less than {@code maxSide} on its
+     * longest side, in RGB_565 when it has no alpha. Returns null when that would not save memory.
+     */
+    public static Bitmap reduce(Bitmap bitmap, int maxSide) {
+        int sampleSize = TiledImage.sampleSizeFor(Math.max(bitmap.getWidth(), bitmap.getHeight()), maxSide);
+        Bitmap.Config config = bitmap.hasAlpha() ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+        int width = Math.max(1, bitmap.getWidth() / sampleSize);
+        int height = Math.max(1, bitmap.getHeight() / sampleSize);
+        long bytes = (long) width * height * (config == Bitmap.Config.RGB_565 ? 2 : 4);
+        if (bytes >= bitmap.getAllocationByteCount()) return null;
+
+        Bitmap reduced = Bitmap.createBitmap(width, height, config);
+        new Canvas(reduced).drawBitmap(bitmap, null, new Rect(0, 0, width, height),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        return reduced;
+    }
+}
@@ -0,0 +1,86 @@
+package io.mionick.imageviewer.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Where time and memory go in the viewer, recorded from wherever the work happens. Times are in
+ * microseconds unless the unit says otherwise. The matching {@link android.os.Trace} sections
+ * carry the same names, so a system trace lines up with these numbers.
+ */
+public final class Metrics {
+    // Picked image to full quality result delivered, per image.
+    public static final Histogram DECODE = new Histogram("decode", "us");
+    public static final Histogram DRAW = new Histogram("draw", "us");
+    public static final Histogram MATRIX_REBUILDS = new Histogram("matrixRebuildsPerFrame", "count");
+    // From the touch event to the end of the draw showing its effect.
+    public static final Histogram TOUCH_TO_FRAME = new Histogram("touchToFrame", "us");
+    // Size of each bitmap decoded.
+    public static final Histogram BITMAP_BYTES = new Histogram("bitmapBytes", "bytes");
+    // Cold starts only, from the process start; see StartupTimer.
+    public static final Histogram STARTUP_FIRST_FRAME = new Histogram("startupFirstFrame", "ms");
+    public static final Histogram STARTUP_INTERACTIVE = new Histogram("startupInteractive", "ms");
+
+    private static final List<Histogram> ALL = Collections.unmodifiableList(
+            Arrays.asList(DECODE, DRAW, MATRIX_REBUILDS, TOUCH_TO_FRAME, BITMAP_BYTES,
+                    STARTUP_FIRST_FRAME, STARTUP_INTERACTIVE));
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+
+    private Metrics() {
+    }
+
+    public static List<Histogram> all() {
+        return ALL;
+    }
+
+    public static long micros(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    public static void reset() {
+        for (Histogram histogram : ALL) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * One line per histogram, for the on-screen overlay.
+     */
+    public static String summary(Histogram histogram) {
+        return String.format(Locale.US, "%s: n=%d p50=%d p90=%d p99=%d max=%d %s",
+                histogram.getName(), histogram.getCount(), histogram.getPercentile(0.5),
+                histogram.getPercentile(0.9), histogram.getPercentile(0.99), histogram.getMax(),
+                histogram.getUnit());
+    }
+
+    public static void writeJson(Writer out) throws IOException {
+        out.write("{\n");
+        for (int i = 0; i < ALL.size(); i++) {
+            Histogram histogram = ALL.get(i);
+            out.write(String.format(Locale.US,
+                    "  \"%s\": {\"unit\": \"%s\", \"count\": %d, \"mean\": %.1f, \"max\": %d",
+                    histogram.getName(), histogram.getUnit(), histogram.getCount(),
+                    histogram.getMean(), histogram.getMax()));
+            for (double percentile : PERCENTILES) {
+                out.write(String.format(Locale.US, ", \"p%d\": %d",
+                        Math.round(percentile * 100), histogram.getPercentile(percentile)));
+            }
+            out.write(i < ALL.size() - 1 ? "},\n" : "}\n");
+        }
+        out.write("}\n");
+    }
+
+    public static void writeCsv(Writer out) throws IOException {
+        out.write("metric,unit,count,mean,max,p50,p90,p99\n");
+        for (Histogram histogram : ALL) {
+            out.write(String.format(Locale.US, "%s,%s,%d,%.1f,%d,%d,%d,%d\n",
+                    histogram.getName(), histogram.getUnit(), histogram.getCount(),
+                    histogram.getMean(), histogram.getMax(), histogram.getPercentile(0.5),
+                    histogram.getPercentile(0.9), histogram.getPercentile(0.99)));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package io.mionick.imageviewer.metrics;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.view.View;
+
+import io.mionick.imageviewer.memory.MemoryBudget;
+
+/**
+ * The {@link Metrics} as text over the image, refreshed twice a second while shown. It does not
+ * take touches, so gestures go through to the canvas underneath.
+ */
+public class MetricsOverlayView extends View {
+    private static final long REFRESH_MILLIS = 500;
+    private static final int TEXT_DP = 11;
+
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint backgroundPaint = new Paint();
+    private final float padding;
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            invalidate();
+            postDelayed(this, REFRESH_MILLIS);
+        }
+    };
+    private MemoryBudget memoryBudget;
+
+    public MetricsOverlayView(Context context) {
+        super(context);
+        float density = getResources().getDisplayMetrics().density;
+        textPaint.setColor(Color.WHITE);
+        textPaint.setTextSize(TEXT_DP * density);
+        backgroundPaint.setColor(0x99000000);
+        padding = 4 * density;
+        setClickable(false);
+        setFocusable(false);
+    }
+
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        removeCallbacks(refresh);
+        if (isShown()) post(refresh);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        removeCallbacks(refresh);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        float lineHeight = textPaint.getFontSpacing();
+        int lines = Metrics.all().size() + (memoryBudget != null ? 1 : 0);
+        canvas.drawRect(0, 0, getWidth(), lines * lineHeight + 2 * padding, backgroundPaint);
+        float y = padding - textPaint.ascent();
+        for (Histogram histogram : Metrics.all()) {
+            canvas.drawText(Metrics.summary(histogram), padding, y, textPaint);
+            y += lineHeight;
+        }
+        if (memoryBudget != null) {
+            canvas.drawText("retained: " + memoryBudget.getRetainedBytes() / 1024 + " KB", padding, y, textPaint);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package io.mionick.imageviewer.metrics;
+
+import java.util.Locale;
+
+/**
+ * Times the phases of a cold start against the process start. Time to first frame is when
+ * anything at all is on screen; time to interactive is when both the first image and the menu
+ * are. Plain Java with the clock passed in, so it runs the same off the device.
+ */
+public class StartupTimer {
+    public enum Phase {
+        CREATE,
+        CONTENT_VIEW,
+        FIRST_FRAME,
+        FIRST_IMAGE,
+        MENU_BUILT
+    }
+
+    public interface Clock {
+        long millis();
+    }
+
+    private final long startMillis;
+    private final Clock clock;
+    private final long[] marks = new long[Phase.values().length];
+    private boolean reported;
+
+    /**
+     * @param startMillis when the process started, on the same clock as {@code clock}
+     */
+    public StartupTimer(long startMillis, Clock clock) {
+        this.startMillis = startMillis;
+        this.clock = clock;
+        for (int i = 0; i < marks.length; i++) {
+            marks[i] = -1;
+        }
+    }
+
+    /**
+     * Records {@code phase} as reached now, unless it already was. Returns whether the start just
+     * became interactive, at which point it should be reported.
+     */
+    public boolean mark(Phase phase) {
+        if (marks[phase.ordinal()] < 0) {
+            marks[phase.ordinal()] = clock.millis() - startMillis;
+        }
+        if (!reported && isInteractive()) {
+            reported = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Milliseconds from the process start to {@code phase}, or -1 when it was not reached.
+     */
+    public long getMillis(Phase phase) {
+        return marks[phase.ordinal()];
+    }
+
+    public long getTimeToFirstFrame() {
+        return getMillis(Phase.FIRST_FRAME);
+    }
+
+    public long getTimeToInteractive() {
+        if (!isInteractive()) return -1;
+        return Math.max(getMillis(Phase.FIRST_IMAGE), getMillis(Phase.MENU_BUILT));
+    }
+
+    public boolean isInteractive() {
+        return getMillis(Phase.FIRST_IMAGE) >= 0 && getMillis(Phase.MENU_BUILT) >= 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("startup");
+        for (Phase phase : Phase.values()) {
+            out.append(String.format(Locale.US, " %s=%dms", phase.name().toLowerCase(Locale.US), getMillis(phase)));
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,156 @@
+package io.mionick.imageviewer.overlay;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+import io.mionick.imageviewer.geometry.Homography;
+
+/**
+ * A tracing grid of square cells laid over the image, following its transform. Only the part of
+ * the grid inside the viewport is generated, lines or dots are drawn in one batched call each,
+ * and when zooming out packs the lines tighter than {@link #MIN_SCREEN_SPACING} every second,
+ * fourth, ... line is skipped, so even a 100 x 100 grid costs no more than what fits on screen.
+ */
+public class GridOverlay {
+    public enum Style {DOTS, LINES, DOTS_AND_LINES}
+
+    public static final int MIN_DIVISIONS = 1;
+    public static final int MAX_DIVISIONS = 100;
+    // Closest two drawn grid lines may get on screen, in pixels.
+    public static final float MIN_SCREEN_SPACING = 12;
+
+    private final Paint dotPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final float[] viewportCorners = new float[8];
+    private final float[] visibleCorners = new float[8];
+    private final RectF visible = new RectF();
+    private float[] points = new float[0];
+    private Style style = Style.DOTS;
+    private int divisions = 3;
+    private float dotRadius = 10;
+
+    public GridOverlay() {
+        dotPaint.setColor(Color.MAGENTA);
+        dotPaint.setStrokeCap(Paint.Cap.ROUND);
+        linePaint.setColor(Color.MAGENTA);
+        linePaint.setStrokeWidth(2);
+    }
+
+    public Style getStyle() {
+        return style;
+    }
+
+    public void setStyle(Style style) {
+        this.style = style;
+    }
+
+    public int getDivisions() {
+        return divisions;
+    }
+
+    /**
+     * Number of cells across the image width; rows use the same cell size.
+     */
+    public void setDivisions(int divisions) {
+        this.divisions = Math.max(MIN_DIVISIONS, Math.min(MAX_DIVISIONS, divisions));
+    }
+
+    public void setDotRadius(float dotRadius) {
+        this.dotRadius = dotRadius;
+    }
+
+    /**
+     * Draws the grid of a {@code width} x {@code height} image onto an untransformed canvas of
+     * {@code viewWidth} x {@code viewHeight}. {@code scale} is how many screen pixels one image
+     * pixel covers.
+     */
+    public void draw(Canvas canvas, Homography imageToScreen, Homography screenToImage,
+                     float width, float height, int viewWidth, int viewHeight, float scale) {
+        if (!visibleImageRect(screenToImage, width, height, viewWidth, viewHeight)) return;
+
+        float spacing = width / divisions;
+        int stride = 1;
+        while (spacing * stride * scale < MIN_SCREEN_SPACING && stride < divisions) {
+            stride *= 2;
+        }
+        int firstColumn = firstMultiple((int) Math.ceil(visible.left / spacing), stride);
+        int lastColumn = Math.min(divisions, (int) Math.floor(visible.right / spacing));
+        int firstRow = firstMultiple((int) Math.ceil(visible.top / spacing), stride);
+        int lastRow = Math.min((int) (height / spacing + 1e-3f), (int) Math.floor(visible.bottom / spacing));
+        int columns = lastColumn < firstColumn ? 0 : (lastColumn - firstColumn) / stride + 1;
+        int rows = lastRow < firstRow ? 0 : (lastRow - firstRow) / stride + 1;
+
+        if (style != Style.DOTS) {
+            // Lines stay straight under a projective transform, so mapping the ends is enough.
+            int count = 0;
+            ensureCapacity(4 * (columns + rows));
+            for (int i = 0; i < columns; i++) {
+                float x = (firstColumn + i * stride) * spacing;
+                count = put(count, x, visible.top, x, visible.bottom);
+            }
+            for (int j = 0; j < rows; j++) {
+                float y = (firstRow + j * stride) * spacing;
+                count = put(count, visible.left, y, visible.right, y);
+            }
+            imageToScreen.mapPoints(points, 0, points, 0, count / 2);
+            canvas.drawLines(points, 0, count, linePaint);
+        }
+        if (style != Style.LINES) {
+            int count = 0;
+            ensureCapacity(2 * columns * rows);
+            for (int j = 0; j < rows; j++) {
+                float y = (firstRow + j * stride) * spacing;
+                for (int i = 0; i < columns; i++) {
+                    points[count++] = (firstColumn + i * stride) * spacing;
+                    points[count++] = y;
+                }
+            }
+            imageToScreen.mapPoints(points, 0, points, 0, count / 2);
+            // Dots shrink rather than merge into a blob when the grid is dense.
+            dotPaint.setStrokeWidth(2 * Math.min(dotRadius, spacing * stride * scale / 4));
+            canvas.drawPoints(points, 0, count, dotPaint);
+        }
+    }
+
+    // The part of the image under the viewport, into visible. False when none of it is.
+    private boolean visibleImageRect(Homography screenToImage, float width, float height, int viewWidth, int viewHeight) {
+        viewportCorners[2] = viewportCorners[4] = viewWidth;
+        viewportCorners[5] = viewportCorners[7] = viewHeight;
+        for (int i = 0; i < 4; i++) {
+            float w = screenToImage.get(6) * viewportCorners[2 * i]
+                    + screenToImage.get(7) * viewportCorners[2 * i + 1] + screenToImage.get(8);
+            if (w <= 0) {
+                // Part of the viewport is beyond the horizon of a strong perspective, where the
+                // mapped corners no longer bound anything. Fall back to the whole image.
+                visible.set(0, 0, width, height);
+                return true;
+            }
+        }
+        screenToImage.mapPoints(visibleCorners, 0, viewportCorners, 0, 4);
+        visible.set(visibleCorners[0], visibleCorners[1], visibleCorners[0], visibleCorners[1]);
+        for (int i = 1; i < 4; i++) {
+            visible.union(visibleCorners[2 * i], visibleCorners[2 * i + 1]);
+        }
+        return visible.intersect(0, 0, width, height);
+    }
+
+    private static int firstMultiple(int index, int stride) {
+        return Math.max(0, (index + stride - 1) / stride * stride);
+    }
+
+    private int put(int count, float x0, float y0, float x1, float y1) {
+        points[count] = x0;
+        points[count + 1] = y0;
+        points[count + 2] = x1;
+        points[count + 3] = y1;
+        return count + 4;
+    }
+
+    private void ensureCapacity(int floats) {
+        if (points.length < floats) {
+            points = new float[Math.max(floats, points.length * 2)];
+        }
+    }
+}
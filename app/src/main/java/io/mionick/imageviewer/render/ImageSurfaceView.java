@@ -0,0 +1,302 @@
+package io.mionick.imageviewer.render;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Trace;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.mionick.imageviewer.geometry.Homography;
+import io.mionick.imageviewer.image.LodPyramid;
+import io.mionick.imageviewer.image.TiledImage;
+import io.mionick.imageviewer.metrics.Metrics;
+import io.mionick.imageviewer.overlay.GridOverlay;
+
+/**
+ * Draws the image, grid and corner handles on a dedicated render thread, so layout, animations
+ * and touch handling on the main thread never hold up a frame. The main thread publishes the
+ * image to screen matrix through a {@link TripleBuffer} and everything else as an immutable
+ * {@link Scene}; neither handoff takes a lock.
+ */
+public class ImageSurfaceView extends SurfaceView implements SurfaceHolder.Callback {
+    private static final String TAG = "ImageRenderer";
+    private static final int LOD_MAX_BYTES = 32 * 1024 * 1024;
+    // How long surfaceDestroyed waits for a frame in progress, well inside the ANR timeout.
+    private static final long SURFACE_RELEASE_TIMEOUT_MS = 500;
+
+    private final HandlerThread renderThread = new HandlerThread("ImageRender");
+    private final Handler renderHandler;
+    private final TripleBuffer transforms = new TripleBuffer(Homography.SIZE);
+    private final AtomicReference<Scene> scene = new AtomicReference<>(Scene.EMPTY);
+    private final AtomicBoolean frameRequested = new AtomicBoolean();
+    // Oldest input not shown yet, see CustomCanvas#markInput; 0 when none.
+    private final AtomicLong pendingInputNanos = new AtomicLong();
+    private final Choreographer.FrameCallback frameCallback = this::render;
+    private volatile boolean released;
+
+    // Render thread only from here on.
+    private Choreographer choreographer;
+    private boolean surfaceValid;
+    private final Homography imageToScreen = new Homography();
+    private final Homography screenToImage = new Homography();
+    private final Matrix matrix = new Matrix();
+    private final float[] matrixValues = new float[Homography.SIZE];
+    private final float[] corners = new float[8];
+    private final float[] screenCorners = new float[8];
+    private final float[] viewportCorners = new float[8];
+    private final RectF imageRect = new RectF();
+    private final RectF visibleRect = new RectF();
+    private final Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint handlePaint = new Paint();
+    private final GridOverlay grid = new GridOverlay();
+    private Scene drawnScene;
+    private LodPyramid lodPyramid;
+
+    /**
+     * The opt-in switch, like touch tracing: {@code adb shell setprop log.tag.ImageRenderer VERBOSE}.
+     */
+    public static boolean isRenderThreadEnabled() {
+        return Log.isLoggable(TAG, Log.VERBOSE);
+    }
+
+    public ImageSurfaceView(Context context) {
+        super(context);
+        renderThread.start();
+        renderHandler = new Handler(renderThread.getLooper());
+        renderHandler.post(() -> choreographer = Choreographer.getInstance());
+        handlePaint.setColor(Color.RED);
+        getHolder().addCallback(this);
+    }
+
+    /**
+     * Hands over the image to screen matrix, as the nine values of a {@link Homography}. Main
+     * thread only.
+     */
+    public void publishTransform(float[] matrixValues) {
+        System.arraycopy(matrixValues, 0, transforms.getWriteBuffer(), 0, Homography.SIZE);
+        transforms.publish();
+        requestRender();
+    }
+
+    public void publishScene(Scene scene) {
+        this.scene.set(scene);
+        requestRender();
+    }
+
+    /**
+     * Draws a frame on the next vsync. Safe to call from any thread, repeated calls coalesce.
+     */
+    public void requestRender() {
+        if (frameRequested.compareAndSet(false, true)) {
+            renderHandler.post(() -> choreographer.postFrameCallback(frameCallback));
+        }
+    }
+
+    public void markInput(long eventTimeNanos) {
+        pendingInputNanos.compareAndSet(0, eventTimeNanos);
+    }
+
+    /**
+     * Recycles {@code tiledImage} once no frame can be drawing it any more. Publish a scene
+     * without it first. Once the render thread has stopped it is recycled right away.
+     */
+    public void recycleLater(TiledImage tiledImage) {
+        if (!renderHandler.post(tiledImage::recycle)) {
+            tiledImage.recycle();
+        }
+    }
+
+    /**
+     * Stops the render thread; call when the view is thrown away.
+     */
+    public void release() {
+        if (released) return;
+        released = true;
+        renderHandler.post(() -> {
+            if (lodPyramid != null) lodPyramid.recycle();
+            lodPyramid = null;
+        });
+        renderThread.quitSafely();
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        renderHandler.post(() -> surfaceValid = true);
+        requestRender();
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        requestRender();
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        // The surface goes away as soon as this returns, so wait for a frame in progress to end.
+        CountDownLatch stopped = new CountDownLatch(1);
+        boolean posted = renderHandler.post(() -> {
+            surfaceValid = false;
+            stopped.countDown();
+        });
+        // Not posted means the render thread has been released and draws nothing more.
+        if (!posted) return;
+        try {
+            if (!stopped.await(SURFACE_RELEASE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Render thread did not stop drawing in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void render(long frameTimeNanos) {
+        frameRequested.set(false);
+        if (!surfaceValid || released) return;
+        if (transforms.update()) {
+            imageToScreen.setValues(transforms.getReadBuffer());
+            imageToScreen.getValues(matrixValues);
+            matrix.setValues(matrixValues);
+        }
+        Scene scene = this.scene.get();
+        if (scene != drawnScene) {
+            sceneChanged(scene);
+        }
+        SurfaceHolder holder = getHolder();
+        Canvas canvas = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                ? holder.lockHardwareCanvas() : holder.lockCanvas();
+        if (canvas == null) return;
+        long start = System.nanoTime();
+        Trace.beginSection("render");
+        try {
+            draw(canvas, scene);
+        } finally {
+            holder.unlockCanvasAndPost(canvas);
+            Trace.endSection();
+        }
+        Metrics.DRAW.record(Metrics.micros(start));
+        long input = pendingInputNanos.getAndSet(0);
+        if (input != 0) Metrics.TOUCH_TO_FRAME.record(Metrics.micros(input));
+    }
+
+    private void sceneChanged(Scene scene) {
+        if (drawnScene == null || scene.bitmap != drawnScene.bitmap) {
+            if (lodPyramid != null) lodPyramid.recycle();
+            lodPyramid = null;
+            if (scene.bitmap != null) {
+                lodPyramid = new LodPyramid(scene.bitmap,
+                        Math.min(scene.bitmap.getAllocationByteCount() / 3, LOD_MAX_BYTES));
+                lodPyramid.setOnLevelBuilt(this::requestRender);
+            }
+        }
+        grid.setStyle(scene.gridStyle);
+        grid.setDivisions(scene.gridDivisions);
+        grid.setDotRadius(scene.handleRadius);
+        imageRect.set(0, 0, scene.width, scene.height);
+        drawnScene = scene;
+    }
+
+    private void draw(Canvas canvas, Scene scene) {
+        canvas.drawColor(Color.BLACK);
+        if (scene.bitmap == null && scene.tiledImage == null) return;
+        float scale = effectiveScale();
+        imageToScreen.invert(screenToImage);
+
+        canvas.save();
+        canvas.concat(matrix);
+        if (scene.tiledImage != null) {
+            viewportCorners[2] = viewportCorners[6] = getWidth();
+            viewportCorners[5] = viewportCorners[7] = getHeight();
+            screenToImage.mapPoints(screenCorners, 0, viewportCorners, 0, 4);
+            visibleRect.set(screenCorners[0], screenCorners[1], screenCorners[0], screenCorners[1]);
+            for (int i = 1; i < 4; i++) {
+                visibleRect.union(screenCorners[2 * i], screenCorners[2 * i + 1]);
+            }
+            if (visibleRect.intersect(imageRect)) {
+                scene.tiledImage.draw(canvas, visibleRect, TiledImage.sampleSizeForScale(scale), bitmapPaint);
+            }
+        } else {
+            Bitmap level = lodPyramid.levelFor(scale * scene.width / scene.bitmap.getWidth());
+            canvas.drawBitmap(level, null, imageRect, bitmapPaint);
+        }
+        canvas.restore();
+
+        if (scene.gridVisible) {
+            grid.draw(canvas, imageToScreen, screenToImage, scene.width, scene.height,
+                    getWidth(), getHeight(), scale);
+        }
+        if (scene.handlesVisible) {
+            corners[0] = corners[1] = corners[3] = corners[4] = 0;
+            corners[2] = corners[6] = scene.width;
+            corners[5] = corners[7] = scene.height;
+            imageToScreen.mapPoints(screenCorners, 0, corners, 0, 4);
+            for (int i = 0; i < 4; i++) {
+                canvas.drawCircle(screenCorners[2 * i], screenCorners[2 * i + 1], scene.handleRadius, handlePaint);
+            }
+        }
+    }
+
+    private float effectiveScale() {
+        float determinant = imageToScreen.get(Matrix.MSCALE_X) * imageToScreen.get(Matrix.MSCALE_Y)
+                - imageToScreen.get(Matrix.MSKEW_X) * imageToScreen.get(Matrix.MSKEW_Y);
+        return (float) Math.sqrt(Math.abs(determinant));
+    }
+
+    /**
+     * Everything drawn apart from the transform. Immutable, a change publishes a new one.
+     */
+    public static final class Scene {
+        public static final Scene EMPTY = new Scene(null, null, 0, 0, false,
+                GridOverlay.Style.DOTS, GridOverlay.MIN_DIVISIONS, false, 0);
+
+        final Bitmap bitmap;
+        final TiledImage tiledImage;
+        final float width, height;
+        final boolean gridVisible;
+        final GridOverlay.Style gridStyle;
+        final int gridDivisions;
+        final boolean handlesVisible;
+        final float handleRadius;
+
+        public Scene(Bitmap bitmap, TiledImage tiledImage, float width, float height,
+                     boolean gridVisible, GridOverlay.Style gridStyle, int gridDivisions,
+                     boolean handlesVisible, float handleRadius) {
+            this.bitmap = bitmap;
+            this.tiledImage = tiledImage;
+            this.width = width;
+            this.height = height;
+            this.gridVisible = gridVisible;
+            this.gridStyle = gridStyle;
+            this.gridDivisions = gridDivisions;
+            this.handlesVisible = handlesVisible;
+            this.handleRadius = handleRadius;
+        }
+
+        /**
+         * Whether this draws the same as a scene made of the given values.
+         */
+        public boolean matches(Bitmap bitmap, TiledImage tiledImage, float width, float height,
+                               boolean gridVisible, GridOverlay.Style gridStyle, int gridDivisions,
+                               boolean handlesVisible) {
+            return this.bitmap == bitmap && this.tiledImage == tiledImage
+                    && this.width == width && this.height == height
+                    && this.gridVisible == gridVisible && this.gridStyle == gridStyle
+                    && this.gridDivisions == gridDivisions && this.handlesVisible == handlesVisible;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package io.mionick.imageviewer.render;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands arrays of floats from one writer thread to one reader thread without locks. Each side
+ * owns a buffer and a third one is shared: the writer fills its own and swaps it for the shared
+ * one, the reader swaps its own for the shared one when something new was published. Neither
+ * side ever waits or sees a half written array, and the reader always gets the newest values.
+ */
+public class TripleBuffer {
+    // Set on the shared index while it holds values the reader has not taken yet.
+    private static final int FRESH = 4;
+
+    private final float[][] buffers;
+    private final AtomicInteger shared = new AtomicInteger(1);
+    private int writing = 0;
+    private int reading = 2;
+
+    public TripleBuffer(int size) {
+        buffers = new float[][]{new float[size], new float[size], new float[size]};
+    }
+
+    /**
+     * The writer's buffer, to be filled completely before {@link #publish}.
+     */
+    public float[] getWriteBuffer() {
+        return buffers[writing];
+    }
+
+    public void publish() {
+        writing = shared.getAndSet(writing | FRESH) & ~FRESH;
+    }
+
+    /**
+     * Takes the newest published values if there are any. Returns whether they changed.
+     */
+    public boolean update() {
+        if ((shared.get() & FRESH) == 0) return false;
+        reading = shared.getAndSet(reading) & ~FRESH;
+        return true;
+    }
+
+    /**
+     * The reader's buffer, as of the last {@link #update}.
+     */
+    public float[] getReadBuffer() {
+        return buffers[reading];
+    }
+}
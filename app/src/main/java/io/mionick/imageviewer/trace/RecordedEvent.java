@@ -0,0 +1,73 @@
+package io.mionick.imageviewer.trace;
+
+import io.mionick.imageviewer.gestures.PointerSamples;
+
+/**
+ * One event read back from a touch trace. Instances are reused by {@link TouchTraceReader}, the
+ * arrays only grow when an event with more pointers or samples than any before it comes along.
+ */
+public class RecordedEvent implements PointerSamples {
+    private static final int ACTION_MASK = 0xff;
+    private static final int ACTION_POINTER_INDEX_MASK = 0xff00;
+    private static final int ACTION_POINTER_INDEX_SHIFT = 8;
+
+    int action;
+    int pointerCount;
+    int historySize;
+    int[] pointerIds = new int[2];
+    long[] eventTimes = new long[8];
+    // [sample * pointerCount + pointer]
+    float[] xs = new float[16];
+    float[] ys = new float[16];
+
+    void ensureCapacity(int pointerCount, int samples) {
+        if (pointerIds.length < pointerCount) pointerIds = new int[pointerCount];
+        if (eventTimes.length < samples) eventTimes = new long[samples];
+        if (xs.length < pointerCount * samples) {
+            xs = new float[pointerCount * samples];
+            ys = new float[pointerCount * samples];
+        }
+    }
+
+    public int getAction() {
+        return action;
+    }
+
+    public int getPointerId(int pointerIndex) {
+        return pointerIds[pointerIndex];
+    }
+
+    public long getEventTime(int historyPos) {
+        return eventTimes[historyPos];
+    }
+
+    @Override
+    public int getActionMasked() {
+        return action & ACTION_MASK;
+    }
+
+    @Override
+    public int getActionIndex() {
+        return (action & ACTION_POINTER_INDEX_MASK) >> ACTION_POINTER_INDEX_SHIFT;
+    }
+
+    @Override
+    public int getPointerCount() {
+        return pointerCount;
+    }
+
+    @Override
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    @Override
+    public float getX(int pointerIndex, int historyPos) {
+        return xs[historyPos * pointerCount + pointerIndex];
+    }
+
+    @Override
+    public float getY(int pointerIndex, int historyPos) {
+        return ys[historyPos * pointerCount + pointerIndex];
+    }
+}
@@ -0,0 +1,80 @@
+package io.mionick.imageviewer.trace;
+
+import android.util.Log;
+import android.view.MotionEvent;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes every touch event the activity receives to a compact binary trace that the unit tests'
+ * TouchReplay can play back off-device. Switched on per device with
+ * {@code adb shell setprop log.tag.TouchTrace VERBOSE}; when off nothing is recorded at all.
+ */
+public class TouchRecorder implements Closeable {
+    public static final String TAG = "TouchTrace";
+
+    private final DataOutputStream out;
+    private boolean failed;
+
+    private TouchRecorder(File file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        out.writeInt(TouchTraceFormat.MAGIC);
+        out.writeInt(TouchTraceFormat.VERSION);
+    }
+
+    public static boolean isEnabled() {
+        return Log.isLoggable(TAG, Log.VERBOSE);
+    }
+
+    /**
+     * Starts a trace in {@code file}, or returns null when it cannot be created.
+     */
+    public static TouchRecorder start(File file) {
+        try {
+            Log.i(TAG, "Recording touch events to " + file);
+            return new TouchRecorder(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start touch trace", e);
+            return null;
+        }
+    }
+
+    public void record(MotionEvent event) {
+        if (failed) return;
+        try {
+            int pointerCount = event.getPointerCount();
+            int historySize = event.getHistorySize();
+            out.writeInt(event.getAction());
+            out.writeInt(pointerCount);
+            out.writeInt(historySize);
+            for (int p = 0; p < pointerCount; p++) {
+                out.writeInt(event.getPointerId(p));
+            }
+            for (int h = 0; h < historySize; h++) {
+                out.writeLong(event.getHistoricalEventTime(h));
+                for (int p = 0; p < pointerCount; p++) out.writeFloat(event.getHistoricalX(p, h));
+                for (int p = 0; p < pointerCount; p++) out.writeFloat(event.getHistoricalY(p, h));
+            }
+            out.writeLong(event.getEventTime());
+            for (int p = 0; p < pointerCount; p++) out.writeFloat(event.getX(p));
+            for (int p = 0; p < pointerCount; p++) out.writeFloat(event.getY(p));
+        } catch (IOException e) {
+            failed = true;
+            Log.e(TAG, "Touch trace write failed, recording stopped", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close touch trace", e);
+        }
+    }
+}
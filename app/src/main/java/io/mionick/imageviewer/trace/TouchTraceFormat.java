@@ -0,0 +1,19 @@
+package io.mionick.imageviewer.trace;
+
+/**
+ * Layout of a recorded touch trace, all values big-endian:
+ * <pre>
+ * int MAGIC, int VERSION
+ * per event:
+ *   int action, int pointerCount, int historySize, int[pointerCount] pointerIds
+ *   per sample (historySize batched samples, then the current one):
+ *     long eventTimeMillis, float[pointerCount] x, float[pointerCount] y
+ * </pre>
+ */
+final class TouchTraceFormat {
+    static final int MAGIC = 0x4d545243; // "MTRC"
+    static final int VERSION = 1;
+
+    private TouchTraceFormat() {
+    }
+}
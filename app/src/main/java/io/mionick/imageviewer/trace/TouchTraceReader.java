@@ -0,0 +1,62 @@
+package io.mionick.imageviewer.trace;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the events of a trace written by {@link TouchRecorder}, one at a time into a reused
+ * {@link RecordedEvent}.
+ */
+public class TouchTraceReader implements Closeable {
+    private final DataInputStream in;
+    private final RecordedEvent event = new RecordedEvent();
+
+    public TouchTraceReader(InputStream inputStream) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(inputStream));
+        if (in.readInt() != TouchTraceFormat.MAGIC) {
+            throw new IOException("Not a touch trace");
+        }
+        int version = in.readInt();
+        if (version != TouchTraceFormat.VERSION) {
+            throw new IOException("Unsupported touch trace version " + version);
+        }
+    }
+
+    /**
+     * Returns the next event, or null at the end of the trace. The returned instance is
+     * overwritten by the next call.
+     */
+    public RecordedEvent next() throws IOException {
+        int action;
+        try {
+            action = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        int pointerCount = in.readInt();
+        int historySize = in.readInt();
+        int samples = historySize + 1;
+        event.ensureCapacity(pointerCount, samples);
+        event.action = action;
+        event.pointerCount = pointerCount;
+        event.historySize = historySize;
+        for (int p = 0; p < pointerCount; p++) {
+            event.pointerIds[p] = in.readInt();
+        }
+        for (int s = 0; s < samples; s++) {
+            event.eventTimes[s] = in.readLong();
+            for (int p = 0; p < pointerCount; p++) event.xs[s * pointerCount + p] = in.readFloat();
+            for (int p = 0; p < pointerCount; p++) event.ys[s * pointerCount + p] = in.readFloat();
+        }
+        return event;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
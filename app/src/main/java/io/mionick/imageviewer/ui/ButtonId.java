@@ -3,10 +3,22 @@ package io.mionick.imageviewer.ui;
 public enum ButtonId {
     OPEN_IMAGE("Open Image"),
     RESET_TRANSFORM("Reset Transform"),
+    UNDO("Undo"),
+    REDO("Redo"),
     LOCK_ROTATION("LOCK_ROTATION"),
     DEFORM("DEFORM"),
     TEST("Test Feature"),
-    HIDE_MENU("Show/Hide Menu"), SHOW_GRID("Show Grid");
+    HIDE_MENU("Show/Hide Menu"), SHOW_GRID("Show Grid"),
+    MESH_WARP("MESH_WARP"),
+    EXPORT("Export"),
+    PREVIOUS_IMAGE("Previous Image"),
+    NEXT_IMAGE("Next Image"),
+    GRID_OPTIONS("Grid Options"),
+    EDGES("Edges"),
+    ADJUST_COLORS("Adjust Colors"),
+    ADD_LAYER("Add Layer"),
+    LAYERS("Layers"),
+    METRICS("Metrics");
 
     String value;
 
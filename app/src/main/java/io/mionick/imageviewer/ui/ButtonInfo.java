@@ -19,5 +19,7 @@ public class ButtonInfo {
     private String label;
     private View.OnClickListener listener;
     private View view;
+    // Whether the mode the button toggles is on, shown by its tint.
+    private boolean active;
 
 }
@@ -0,0 +1,100 @@
+package io.mionick.imageviewer.warp;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the screen for finding the handle under a touch without scanning every
+ * handle. Buckets are intrusive linked lists in int arrays, so lookups and moves don't allocate.
+ */
+public class HandleIndex {
+    private final float cellSize;
+    private int columns, rows;
+    private int[] bucketHeads = new int[0];
+    private int[] next = new int[0];
+    private int[] bucketOf = new int[0];
+    private float[] points = new float[0];
+
+    /**
+     * @param cellSize bucket side in pixels, best about twice the touch tolerance
+     */
+    public HandleIndex(float cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * Indexes {@code count} screen-space points of a {@code viewWidth} x {@code viewHeight} view.
+     * Points outside the view are left out since they cannot be touched.
+     */
+    public void rebuild(float[] screenPoints, int count, int viewWidth, int viewHeight) {
+        columns = Math.max(1, (int) Math.ceil(viewWidth / cellSize));
+        rows = Math.max(1, (int) Math.ceil(viewHeight / cellSize));
+        if (bucketHeads.length < columns * rows) bucketHeads = new int[columns * rows];
+        if (next.length < count) {
+            next = new int[count];
+            bucketOf = new int[count];
+            points = new float[2 * count];
+        }
+        Arrays.fill(bucketHeads, 0, columns * rows, -1);
+        for (int i = 0; i < count; i++) {
+            bucketOf[i] = -1;
+            insert(i, screenPoints[2 * i], screenPoints[2 * i + 1]);
+        }
+    }
+
+    public void move(int handle, float x, float y) {
+        remove(handle);
+        insert(handle, x, y);
+    }
+
+    /**
+     * The handle closest to (x, y) within {@code tolerance} pixels, or -1.
+     */
+    public int nearest(float x, float y, float tolerance) {
+        int minCol = Math.max(0, (int) ((x - tolerance) / cellSize));
+        int maxCol = Math.min(columns - 1, (int) ((x + tolerance) / cellSize));
+        int minRow = Math.max(0, (int) ((y - tolerance) / cellSize));
+        int maxRow = Math.min(rows - 1, (int) ((y + tolerance) / cellSize));
+        int best = -1;
+        float bestDistance = tolerance * tolerance;
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int col = minCol; col <= maxCol; col++) {
+                for (int i = bucketHeads[row * columns + col]; i >= 0; i = next[i]) {
+                    float dx = points[2 * i] - x;
+                    float dy = points[2 * i + 1] - y;
+                    float distance = dx * dx + dy * dy;
+                    if (distance <= bestDistance) {
+                        bestDistance = distance;
+                        best = i;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private void insert(int handle, float x, float y) {
+        points[2 * handle] = x;
+        points[2 * handle + 1] = y;
+        if (x < 0 || y < 0 || x >= columns * cellSize || y >= rows * cellSize) return;
+        int bucket = (int) (y / cellSize) * columns + (int) (x / cellSize);
+        bucketOf[handle] = bucket;
+        next[handle] = bucketHeads[bucket];
+        bucketHeads[bucket] = handle;
+    }
+
+    private void remove(int handle) {
+        int bucket = bucketOf[handle];
+        if (bucket < 0) return;
+        bucketOf[handle] = -1;
+        if (bucketHeads[bucket] == handle) {
+            bucketHeads[bucket] = next[handle];
+            return;
+        }
+        for (int i = bucketHeads[bucket]; i >= 0; i = next[i]) {
+            if (next[i] == handle) {
+                next[i] = next[handle];
+                return;
+            }
+        }
+    }
+}
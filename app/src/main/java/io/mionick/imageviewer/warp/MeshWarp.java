@@ -0,0 +1,108 @@
+package io.mionick.imageviewer.warp;
+
+/**
+ * A grid of draggable control handles warping an image through {@code Canvas.drawBitmapMesh}.
+ * Each control cell is subdivided into a finer render mesh whose vertices are bilinearly
+ * interpolated from the cell's four handles, so moving one handle only recomputes the vertices
+ * of the up to four cells touching it. All coordinates are in image space.
+ */
+public class MeshWarp {
+    // Render mesh cells per control cell along each axis.
+    public static final int SUBDIVISIONS = 6;
+
+    private final int handlesAcross, handlesDown;
+    private final int meshWidth, meshHeight;
+    private final float[] handles;
+    private final float[] vertices;
+    private float w, h;
+
+    public MeshWarp(float w, float h, int handlesAcross, int handlesDown) {
+        this.handlesAcross = handlesAcross;
+        this.handlesDown = handlesDown;
+        meshWidth = (handlesAcross - 1) * SUBDIVISIONS;
+        meshHeight = (handlesDown - 1) * SUBDIVISIONS;
+        handles = new float[2 * handlesAcross * handlesDown];
+        vertices = new float[2 * (meshWidth + 1) * (meshHeight + 1)];
+        reset(w, h);
+    }
+
+    /**
+     * Puts every handle back on a regular grid covering a w x h image.
+     */
+    public void reset(float w, float h) {
+        this.w = w;
+        this.h = h;
+        for (int row = 0; row < handlesDown; row++) {
+            for (int col = 0; col < handlesAcross; col++) {
+                int i = 2 * (row * handlesAcross + col);
+                handles[i] = w * col / (handlesAcross - 1);
+                handles[i + 1] = h * row / (handlesDown - 1);
+            }
+        }
+        for (int row = 0; row < handlesDown - 1; row++) {
+            for (int col = 0; col < handlesAcross - 1; col++) {
+                updateCell(col, row);
+            }
+        }
+    }
+
+    public void reset() {
+        reset(w, h);
+    }
+
+    public int getHandleCount() {
+        return handlesAcross * handlesDown;
+    }
+
+    /**
+     * Handle positions as x, y pairs, row by row. Read only, use {@link #moveHandle} to change.
+     */
+    public float[] getHandles() {
+        return handles;
+    }
+
+    public float[] getVertices() {
+        return vertices;
+    }
+
+    public int getMeshWidth() {
+        return meshWidth;
+    }
+
+    public int getMeshHeight() {
+        return meshHeight;
+    }
+
+    public void moveHandle(int index, float x, float y) {
+        handles[2 * index] = x;
+        handles[2 * index + 1] = y;
+        int col = index % handlesAcross;
+        int row = index / handlesAcross;
+        for (int cellRow = Math.max(0, row - 1); cellRow <= Math.min(handlesDown - 2, row); cellRow++) {
+            for (int cellCol = Math.max(0, col - 1); cellCol <= Math.min(handlesAcross - 2, col); cellCol++) {
+                updateCell(cellCol, cellRow);
+            }
+        }
+    }
+
+    private void updateCell(int col, int row) {
+        int topLeft = 2 * (row * handlesAcross + col);
+        int bottomLeft = topLeft + 2 * handlesAcross;
+        float x00 = handles[topLeft], y00 = handles[topLeft + 1];
+        float x10 = handles[topLeft + 2], y10 = handles[topLeft + 3];
+        float x01 = handles[bottomLeft], y01 = handles[bottomLeft + 1];
+        float x11 = handles[bottomLeft + 2], y11 = handles[bottomLeft + 3];
+
+        int rowStride = meshWidth + 1;
+        for (int j = 0; j <= SUBDIVISIONS; j++) {
+            float v = j / (float) SUBDIVISIONS;
+            for (int i = 0; i <= SUBDIVISIONS; i++) {
+                float u = i / (float) SUBDIVISIONS;
+                float w00 = (1 - u) * (1 - v), w10 = u * (1 - v), w01 = (1 - u) * v, w11 = u * v;
+                int vertex = 2 * ((row * SUBDIVISIONS + j) * rowStride + col * SUBDIVISIONS + i);
+                vertices[vertex] = w00 * x00 + w10 * x10 + w01 * x01 + w11 * x11;
+                vertices[vertex + 1] = w00 * y00 + w10 * y10 + w01 * y01 + w11 * y11;
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package io.mionick.imageviewer;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.view.Choreographer;
+import android.view.MotionEvent;
+import android.view.View;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+import org.robolectric.shadows.ShadowTrace;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+import io.mionick.imageviewer.trace.TouchReplay;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Feeds gestures through the {@link CanvasTouchHandler} of a real {@link CustomCanvas} and runs
+ * a frame, the Choreographer callback and onDraw, after every event, with the grid and handles
+ * showing. Once warmed up none of it may allocate.
+ * <p>
+ * Framework plumbing around that is left out: under Robolectric invalidate() and View.draw()
+ * allocate on every call, which on a device they don't. For the same reason the trace sections
+ * the shadow keeps are cleared between rounds, and the gestures reuse two events, moved between steps:
+ * Robolectric looks every MotionEvent up by a boxed id, which only stays allocation free for the
+ * first few events it has seen. Its native graphics also allocate now and then while drawing, so
+ * the cleanest of a few rounds counts; anything the viewer allocates shows in every round.
+ */
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@Config(sdk = 33)
+public class CanvasTouchAllocationTest {
+    private static final int IMAGE_WIDTH = 2048;
+    private static final int IMAGE_HEIGHT = 1024;
+    private static final int VIEW_SIZE = 1024;
+    private static final long FRAME_NANOS = 16_666_667;
+    // The JIT needs far more events than the drawing does, so most rounds skip onDraw.
+    private static final int TOUCH_WARMUP_ROUNDS = 1000;
+    private static final int DRAW_WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final float SCALE = 0.45f;
+    // Fitted and centred, the whole image and its corners are on screen.
+    private static final float[] FITTED = {
+            VIEW_SIZE / 2f - IMAGE_WIDTH / 2f, VIEW_SIZE / 2f - IMAGE_HEIGHT / 2f, 0, SCALE,
+            0, 0, IMAGE_WIDTH, 0, 0, IMAGE_HEIGHT, IMAGE_WIDTH, IMAGE_HEIGHT};
+    private static final float LEFT = VIEW_SIZE / 2f - IMAGE_WIDTH * SCALE / 2;
+    private static final float TOP = VIEW_SIZE / 2f - IMAGE_HEIGHT * SCALE / 2;
+    private static final float RIGHT = LEFT + IMAGE_WIDTH * SCALE;
+    private static final float BOTTOM = TOP + IMAGE_HEIGHT * SCALE;
+
+    private Bitmap image;
+    private Bitmap target;
+    private Canvas canvas;
+    private CustomCanvas view;
+    private CanvasTouchHandler touchHandler;
+    private Choreographer.FrameCallback frameCallback;
+    private MotionEvent oneFinger;
+    private MotionEvent twoFingers;
+    private final List<Step> steps = new ArrayList<>();
+    private final Matrix move = new Matrix();
+    private final float[] from = new float[4];
+    private long frameTime;
+
+    @Before
+    public void setUp() throws ReflectiveOperationException {
+        image = Bitmap.createBitmap(IMAGE_WIDTH, IMAGE_HEIGHT, Bitmap.Config.ARGB_8888);
+        target = Bitmap.createBitmap(VIEW_SIZE, VIEW_SIZE, Bitmap.Config.ARGB_8888);
+        canvas = new Canvas(target);
+        view = new CustomCanvas(RuntimeEnvironment.getApplication()) {
+            @Override
+            public void invalidate() {
+                // onDraw is called directly, see the class comment.
+            }
+        };
+        view.setBitmap(image);
+        int spec = View.MeasureSpec.makeMeasureSpec(VIEW_SIZE, View.MeasureSpec.EXACTLY);
+        view.measure(spec, spec);
+        view.layout(0, 0, VIEW_SIZE, VIEW_SIZE);
+        view.setGridVisible(true);
+        touchHandler = new CanvasTouchHandler(view);
+        Field field = CustomCanvas.class.getDeclaredField("frameCallback");
+        field.setAccessible(true);
+        frameCallback = (Choreographer.FrameCallback) field.get(view);
+        oneFinger = MotionEvent.obtain(0, 0, MotionEvent.ACTION_DOWN, 0, 0, 0);
+        twoFingers = obtainTwoFingers();
+    }
+
+    @After
+    public void tearDown() {
+        oneFinger.recycle();
+        twoFingers.recycle();
+        image.recycle();
+        target.recycle();
+    }
+
+    @Test
+    public void panAndPinchAllocateNothing() {
+        drag(300, 500, 700, 600, 30);
+        pinch(512, 512, 200, 500, 40, 30);
+        drag(700, 600, 200, 450, 30);
+        pinch(512, 512, 500, 150, -60, 30);
+
+        assertNoAllocations();
+    }
+
+    @Test
+    public void deformingCornersAllocatesNothing() {
+        view.setDeformHandlesVisible(true);
+        touchHandler.setDeformMode(true);
+        drag(LEFT, TOP, LEFT + 80, TOP - 60, 30);
+        drag(RIGHT, BOTTOM, RIGHT - 100, BOTTOM + 40, 30);
+
+        assertNoAllocations();
+        float[] corners = view.getCornersInScreenSpace(new float[8]);
+        assertEquals(LEFT + 80, corners[0], 0.5f);
+        assertEquals(TOP - 60, corners[1], 0.5f);
+    }
+
+    @Test
+    public void movingMeshHandlesAllocatesNothing() {
+        view.setMeshWarpEnabled(true);
+        touchHandler.setMeshMode(true);
+        view.restoreTransform(FITTED, 0);
+        int firstHandle = view.findMeshHandle(LEFT, TOP, 1);
+        drag(LEFT, TOP, LEFT + 60, TOP + 90, 30);
+        drag(RIGHT, BOTTOM, RIGHT - 50, BOTTOM - 40, 30);
+
+        assertNoAllocations();
+        assertEquals(firstHandle, view.findMeshHandle(LEFT + 60, TOP + 90, 1));
+    }
+
+    // Replays the steps, resetting the image between rounds so every round does the same.
+    private void assertNoAllocations() {
+        LongSupplier allocatedBytes = TouchReplay.jvmThreadAllocatedBytes();
+        Assume.assumeNotNull(allocatedBytes);
+        for (int round = 0; round < TOUCH_WARMUP_ROUNDS + DRAW_WARMUP_ROUNDS; round++) {
+            reset();
+            replay(round >= TOUCH_WARMUP_ROUNDS, allocatedBytes);
+        }
+        long fewest = Long.MAX_VALUE;
+        for (int round = 0; round < MEASURED_ROUNDS && fewest > 0; round++) {
+            reset();
+            frame(true);
+            fewest = Math.min(fewest, replay(true, allocatedBytes));
+        }
+
+        assertEquals("Fewest bytes allocated over " + steps.size() + " events", 0, fewest);
+    }
+
+    private void reset() {
+        ShadowTrace.reset();
+        view.resetImageTransform();
+        view.restoreTransform(FITTED, 0);
+    }
+
+    // Bytes allocated handling the events and drawing, leaving out moving the events.
+    private long replay(boolean draw, LongSupplier allocatedBytes) {
+        long allocated = 0;
+        for (int i = 0; i < steps.size(); i++) {
+            MotionEvent event = steps.get(i).apply();
+            long before = allocatedBytes.getAsLong();
+            touchHandler.onTouchEvent(event);
+            frame(draw);
+            allocated += allocatedBytes.getAsLong() - before;
+        }
+        return allocated;
+    }
+
+    // What the Choreographer does on the next vsync, without going through the looper.
+    private void frame(boolean draw) {
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
+        frameTime += FRAME_NANOS;
+        frameCallback.doFrame(frameTime);
+        if (draw) view.onDraw(canvas);
+    }
+
+    private void drag(float fromX, float fromY, float toX, float toY, int moves) {
+        steps.add(new Step(MotionEvent.ACTION_DOWN, fromX, fromY));
+        for (int i = 1; i <= moves; i++) {
+            float t = (float) i / moves;
+            steps.add(new Step(MotionEvent.ACTION_MOVE, fromX + (toX - fromX) * t, fromY + (toY - fromY) * t));
+        }
+        steps.add(new Step(MotionEvent.ACTION_UP, toX, toY));
+    }
+
+    // Two fingers either side of the centre, spreading from one span to the other while turning.
+    private void pinch(float centerX, float centerY, float fromSpan, float toSpan, float degrees, int moves) {
+        steps.add(new Step(MotionEvent.ACTION_DOWN, centerX - fromSpan / 2, centerY));
+        steps.add(new Step(MotionEvent.ACTION_POINTER_DOWN | 1 << MotionEvent.ACTION_POINTER_INDEX_SHIFT,
+                fingers(centerX, centerY, fromSpan, 0)));
+        for (int i = 1; i <= moves; i++) {
+            float t = (float) i / moves;
+            steps.add(new Step(MotionEvent.ACTION_MOVE,
+                    fingers(centerX, centerY, fromSpan + (toSpan - fromSpan) * t, degrees * t)));
+        }
+        float[] last = fingers(centerX, centerY, toSpan, degrees);
+        steps.add(new Step(MotionEvent.ACTION_POINTER_UP | 1 << MotionEvent.ACTION_POINTER_INDEX_SHIFT, last));
+        steps.add(new Step(MotionEvent.ACTION_UP, last[0], last[1]));
+    }
+
+    private static float[] fingers(float centerX, float centerY, float span, float degrees) {
+        double radians = Math.toRadians(degrees);
+        float dx = (float) Math.cos(radians) * span / 2;
+        float dy = (float) Math.sin(radians) * span / 2;
+        return new float[]{centerX - dx, centerY - dy, centerX + dx, centerY + dy};
+    }
+
+    private static MotionEvent obtainTwoFingers() {
+        MotionEvent.PointerProperties[] properties = new MotionEvent.PointerProperties[2];
+        MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[2];
+        for (int i = 0; i < 2; i++) {
+            properties[i] = new MotionEvent.PointerProperties();
+            properties[i].id = i;
+            properties[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
+            coords[i] = new MotionEvent.PointerCoords();
+            coords[i].x = 100 * i;
+            coords[i].pressure = 1;
+            coords[i].size = 1;
+        }
+        return MotionEvent.obtain(0, 0, MotionEvent.ACTION_MOVE, 2, properties, coords, 0, 0, 1, 1, 0, 0, 0, 0);
+    }
+
+    // One event of a gesture: the action and where the fingers are.
+    private class Step {
+        final int action;
+        final float[] to;
+
+        Step(int action, float x, float y) {
+            this.action = action;
+            this.to = new float[]{x, y};
+        }
+
+        Step(int action, float[] to) {
+            this.action = action;
+            this.to = to;
+        }
+
+        MotionEvent apply() {
+            if (to.length == 2) {
+                oneFinger.setAction(action);
+                oneFinger.setLocation(to[0], to[1]);
+                return oneFinger;
+            }
+            for (int i = 0; i < 2; i++) {
+                from[2 * i] = twoFingers.getX(i);
+                from[2 * i + 1] = twoFingers.getY(i);
+            }
+            move.setPolyToPoly(from, 0, to, 0, 2);
+            twoFingers.transform(move);
+            twoFingers.setAction(action);
+            return twoFingers;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package io.mionick.imageviewer;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.view.Choreographer;
+import android.view.View;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+import org.robolectric.shadows.ShadowTrace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+import io.mionick.imageviewer.trace.TouchReplay;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pans a {@link CustomCanvas} showing a 4096x2048 image in a 1024x1024 view, drawn through the
+ * real graphics library, and holds frames per second and bytes allocated per frame to the
+ * thresholds in {@code src/test/resources/bench/render-thresholds.csv}. Each frame is what the
+ * Choreographer callback and onDraw do. The results are written to {@code build/bench} either way.
+ * <p>
+ * The thresholds are floors for a software renderer on a build machine, far below a device: they
+ * catch a frame that got several times slower or started allocating, not a few percent. The best
+ * of a few rounds counts, as Robolectric's native graphics allocate now and then while drawing.
+ */
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@Config(sdk = 33)
+public class CustomCanvasBenchmarkTest {
+    private static final int IMAGE_WIDTH = 4096;
+    private static final int IMAGE_HEIGHT = 2048;
+    private static final int VIEW_SIZE = 1024;
+    private static final int WARMUP_FRAMES = 200;
+    private static final int FRAMES = 60;
+    private static final int ROUNDS = 3;
+    private static final long FRAME_NANOS = 16_666_667;
+
+    // Fitted, rotated and deformed as for the goldens. Every transform stays above half scale, so
+    // frames sample the full image and never a level of detail that may not be built yet.
+    private static final float[] FITTED = {
+            VIEW_SIZE / 2f - IMAGE_WIDTH / 2f, VIEW_SIZE / 2f - IMAGE_HEIGHT / 2f, 0, 0.75f,
+            0, 0, IMAGE_WIDTH, 0, 0, IMAGE_HEIGHT, IMAGE_WIDTH, IMAGE_HEIGHT};
+    private static final float[] ROTATED = {
+            VIEW_SIZE / 2f - IMAGE_WIDTH / 2f, VIEW_SIZE / 2f - IMAGE_HEIGHT / 2f, 30, 0.75f,
+            0, 0, IMAGE_WIDTH, 0, 0, IMAGE_HEIGHT, IMAGE_WIDTH, IMAGE_HEIGHT};
+    private static final float[] DEFORMED = {
+            0, 0, 0, 1,
+            -600, -100, 2000, 40, -500, 1100, 1900, 1000};
+
+    private Bitmap image;
+    private Bitmap target;
+    private Canvas canvas;
+    private CustomCanvas view;
+    private Choreographer.FrameCallback frameCallback;
+    private long frameTime;
+
+    @Before
+    public void setUp() throws ReflectiveOperationException {
+        image = syntheticImage();
+        target = Bitmap.createBitmap(VIEW_SIZE, VIEW_SIZE, Bitmap.Config.ARGB_8888);
+        canvas = new Canvas(target);
+        view = new CustomCanvas(RuntimeEnvironment.getApplication()) {
+            @Override
+            public void invalidate() {
+                // onDraw is called directly, invalidate() allocates under Robolectric.
+            }
+        };
+        view.setBitmap(image);
+        int spec = View.MeasureSpec.makeMeasureSpec(VIEW_SIZE, View.MeasureSpec.EXACTLY);
+        view.measure(spec, spec);
+        view.layout(0, 0, VIEW_SIZE, VIEW_SIZE);
+        Field field = CustomCanvas.class.getDeclaredField("frameCallback");
+        field.setAccessible(true);
+        frameCallback = (Choreographer.FrameCallback) field.get(view);
+    }
+
+    @After
+    public void tearDown() {
+        image.recycle();
+        target.recycle();
+    }
+
+    @Test
+    public void plain() throws IOException {
+        assertWithinThresholds("plain", FITTED);
+    }
+
+    @Test
+    public void grid() throws IOException {
+        view.setGridVisible(true);
+        assertWithinThresholds("grid", FITTED);
+    }
+
+    @Test
+    public void deformHandles() throws IOException {
+        view.setDeformHandlesVisible(true);
+        assertWithinThresholds("handles", FITTED);
+    }
+
+    @Test
+    public void rotatedWithGrid() throws IOException {
+        view.setGridVisible(true);
+        view.setDeformHandlesVisible(true);
+        assertWithinThresholds("rotated_grid", ROTATED);
+    }
+
+    @Test
+    public void deformedWithGrid() throws IOException {
+        view.setGridVisible(true);
+        view.setDeformHandlesVisible(true);
+        assertWithinThresholds("deformed_grid", DEFORMED);
+    }
+
+    private void assertWithinThresholds(String name, float[] transform) throws IOException {
+        LongSupplier allocatedBytes = TouchReplay.jvmThreadAllocatedBytes();
+        Assume.assumeNotNull(allocatedBytes);
+        view.restoreTransform(transform, 0);
+        float x = view.getX();
+        float y = view.getY();
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            frame(x, y, i);
+        }
+
+        long fastestNanos = Long.MAX_VALUE;
+        long fewestBytes = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            ShadowTrace.reset();
+            long bytes = allocatedBytes.getAsLong();
+            long start = System.nanoTime();
+            for (int i = 0; i < FRAMES; i++) {
+                frame(x, y, i);
+            }
+            fastestNanos = Math.min(fastestNanos, System.nanoTime() - start);
+            fewestBytes = Math.min(fewestBytes, allocatedBytes.getAsLong() - bytes);
+        }
+        float fps = FRAMES * 1e9f / fastestNanos;
+        float bytesPerFrame = (float) fewestBytes / FRAMES;
+        report(name, fps, bytesPerFrame);
+
+        float[] thresholds = thresholds(name);
+        assertTrue(String.format(Locale.US, "%s: %.1f fps, below the floor of %.1f", name, fps, thresholds[0]),
+                fps >= thresholds[0]);
+        assertTrue(String.format(Locale.US, "%s: %.1f bytes per frame, above the ceiling of %.1f",
+                name, bytesPerFrame, thresholds[1]), bytesPerFrame <= thresholds[1]);
+    }
+
+    // Pans back and forth across 80 pixels, then runs what the Choreographer and View.draw would.
+    private void frame(float x, float y, int i) {
+        view.setPosition(x + Math.abs(i % 40 - 20) * 4 - 40, y);
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
+        frameTime += FRAME_NANOS;
+        frameCallback.doFrame(frameTime);
+        view.onDraw(canvas);
+    }
+
+    // The minimum frames per second and maximum bytes per frame of a scenario.
+    private static float[] thresholds(String name) throws IOException {
+        try (InputStream in = CustomCanvasBenchmarkTest.class.getResourceAsStream("/bench/render-thresholds.csv")) {
+            assertNotNull("No render-thresholds.csv", in);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            for (String line; (line = reader.readLine()) != null; ) {
+                if (line.startsWith("#")) continue;
+                String[] fields = line.split(",");
+                if (fields[0].equals(name)) {
+                    return new float[]{Float.parseFloat(fields[1]), Float.parseFloat(fields[2])};
+                }
+            }
+        }
+        throw new AssertionError("No thresholds for " + name + " in render-thresholds.csv");
+    }
+
+    // Appends to build/bench/render.csv, for picking thresholds and following them over time.
+    private static void report(String name, float fps, float bytesPerFrame) throws IOException {
+        File dir = new File("build/bench");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        try (Writer out = new FileWriter(new File(dir, "render.csv"), true)) {
+            out.write(String.format(Locale.US, "%s,%.1f,%.1f%n", name, fps, bytesPerFrame));
+        }
+    }
+
+    // Diagonal bands and a checkerboard, the same pattern as the goldens.
+    private static Bitmap syntheticImage() {
+        Bitmap image = Bitmap.createBitmap(IMAGE_WIDTH, IMAGE_HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(image);
+        Paint paint = new Paint();
+        paint.setStrokeWidth(4);
+        for (int i = -IMAGE_HEIGHT; i < IMAGE_WIDTH; i += 8) {
+            paint.setColor(Color.HSVToColor(new float[]{(i & 127) * 360f / 128, 0.8f, 0.9f}));
+            canvas.drawLine(i, 0, i + IMAGE_HEIGHT, IMAGE_HEIGHT, paint);
+        }
+        paint.setColor(Color.BLACK);
+        for (int y = 0; y < IMAGE_HEIGHT; y += 32) {
+            for (int x = (y / 32 % 2) * 32; x < IMAGE_WIDTH; x += 64) {
+                canvas.drawRect(x, y, x + 16, y + 16, paint);
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,172 @@
+package io.mionick.imageviewer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.view.View;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import io.mionick.imageviewer.adjust.ColorAdjustments;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Draws {@link CustomCanvas} off screen through the real graphics library and compares each frame
+ * with a golden PNG under {@code src/test/resources/goldens}, so a change to the transform math,
+ * the grid, the handles or the colour matrix shows up as a mismatch. A missing golden is written
+ * to {@code build/goldens} and fails the test until it is checked in.
+ */
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@Config(sdk = 33)
+public class CustomCanvasRenderTest {
+    private static final int IMAGE_WIDTH = 256;
+    private static final int IMAGE_HEIGHT = 128;
+    private static final int VIEW_SIZE = 256;
+    private static final int PIXEL_TOLERANCE = 2;
+
+    // Zoomed to 0.75 around the image centre, which lands on the centre of the view, so the whole
+    // image and its handles are in frame. Every transform stays above half scale, so frames sample
+    // the full image and never a level of detail that may or may not be built yet.
+    private static final float[] FITTED = {
+            VIEW_SIZE / 2f - IMAGE_WIDTH / 2f, VIEW_SIZE / 2f - IMAGE_HEIGHT / 2f, 0, 0.75f,
+            0, 0, IMAGE_WIDTH, 0, 0, IMAGE_HEIGHT, IMAGE_WIDTH, IMAGE_HEIGHT};
+    private static final float[] ROTATED = {
+            VIEW_SIZE / 2f - IMAGE_WIDTH / 2f, VIEW_SIZE / 2f - IMAGE_HEIGHT / 2f, 30, 0.75f,
+            0, 0, IMAGE_WIDTH, 0, 0, IMAGE_HEIGHT, IMAGE_WIDTH, IMAGE_HEIGHT};
+    private static final float[] DEFORMED = {
+            0, 0, 0, 1,
+            30, 40, 230, 20, 10, 200, 240, 236};
+
+    private Bitmap image;
+    private Bitmap target;
+    private CustomCanvas view;
+
+    @Before
+    public void setUp() {
+        image = syntheticImage();
+        target = Bitmap.createBitmap(VIEW_SIZE, VIEW_SIZE, Bitmap.Config.ARGB_8888);
+        view = new CustomCanvas(RuntimeEnvironment.getApplication());
+        view.setBitmap(image);
+        int spec = View.MeasureSpec.makeMeasureSpec(VIEW_SIZE, View.MeasureSpec.EXACTLY);
+        view.measure(spec, spec);
+        view.layout(0, 0, VIEW_SIZE, VIEW_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        image.recycle();
+        target.recycle();
+    }
+
+    @Test
+    public void plain() throws IOException {
+        assertMatchesGolden("plain", FITTED);
+    }
+
+    @Test
+    public void grid() throws IOException {
+        view.setGridVisible(true);
+        assertMatchesGolden("grid", FITTED);
+    }
+
+    @Test
+    public void deformHandles() throws IOException {
+        view.setDeformHandlesVisible(true);
+        assertMatchesGolden("handles", FITTED);
+    }
+
+    @Test
+    public void rotatedWithGrid() throws IOException {
+        view.setGridVisible(true);
+        view.setDeformHandlesVisible(true);
+        assertMatchesGolden("rotated_grid", ROTATED);
+    }
+
+    @Test
+    public void deformedWithGrid() throws IOException {
+        view.setGridVisible(true);
+        view.setDeformHandlesVisible(true);
+        assertMatchesGolden("deformed_grid", DEFORMED);
+    }
+
+    @Test
+    public void colorAdjusted() throws IOException {
+        view.setColorAdjustments(new ColorAdjustments(0.1f, 1.4f, false, true, 0.1f, 0.9f, 1));
+        assertMatchesGolden("color_adjusted", FITTED);
+    }
+
+    private void assertMatchesGolden(String name, float[] transform) throws IOException {
+        view.restoreTransform(transform, 0);
+        target.eraseColor(Color.TRANSPARENT);
+        view.draw(new Canvas(target));
+        int[] pixels = new int[VIEW_SIZE * VIEW_SIZE];
+        target.getPixels(pixels, 0, VIEW_SIZE, 0, 0, VIEW_SIZE, VIEW_SIZE);
+
+        String file = name + ".png";
+        try (InputStream in = getClass().getResourceAsStream("/goldens/" + file)) {
+            if (in == null) {
+                fail("No golden for " + name + ", this render was written to " + record(file)
+                        + ", check it in under src/test/resources/goldens if it looks right");
+            }
+            Bitmap expected = BitmapFactory.decodeStream(in);
+            assertNotNull("Unreadable golden " + file, expected);
+            int[] expectedPixels = new int[pixels.length];
+            expected.getPixels(expectedPixels, 0, VIEW_SIZE, 0, 0, VIEW_SIZE, VIEW_SIZE);
+            expected.recycle();
+            PixelDiff diff = PixelDiff.compare(expectedPixels, pixels, PIXEL_TOLERANCE);
+            if (!diff.matches()) record(file);
+            assertTrue(name + ": " + diff, diff.matches());
+        }
+    }
+
+    // Leaves the render where it can be inspected, or copied over the golden.
+    private File record(String file) throws IOException {
+        File dir = new File("build/goldens");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File out = new File(dir, file);
+        try (OutputStream stream = new FileOutputStream(out)) {
+            target.compress(Bitmap.CompressFormat.PNG, 100, stream);
+        }
+        return out;
+    }
+
+    // Diagonal bands and a checkerboard, so both smooth filtering and hard edges get compared.
+    private static Bitmap syntheticImage() {
+        Bitmap image = Bitmap.createBitmap(IMAGE_WIDTH, IMAGE_HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(image);
+        Paint paint = new Paint();
+        paint.setStrokeWidth(4);
+        for (int i = -IMAGE_HEIGHT; i < IMAGE_WIDTH; i += 8) {
+            paint.setColor(Color.HSVToColor(new float[]{(i & 127) * 360f / 128, 0.8f, 0.9f}));
+            canvas.drawLine(i, 0, i + IMAGE_HEIGHT, IMAGE_HEIGHT, paint);
+        }
+        paint.setColor(Color.BLACK);
+        for (int y = 0; y < IMAGE_HEIGHT; y += 32) {
+            for (int x = (y / 32 % 2) * 32; x < IMAGE_WIDTH; x += 64) {
+                canvas.drawRect(x, y, x + 16, y + 16, paint);
+            }
+        }
+        return image;
+    }
+}
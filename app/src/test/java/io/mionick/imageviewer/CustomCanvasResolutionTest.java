@@ -0,0 +1,96 @@
+package io.mionick.imageviewer;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Looper;
+import android.view.View;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import static org.junit.Assert.assertEquals;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * A bitmap reduced under memory pressure asks for the full image only when zoomed into further,
+ * so reducing and reloading does not chase itself while the image stays magnified.
+ */
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@Config(sdk = 33)
+public class CustomCanvasResolutionTest {
+    private static final int IMAGE_SIZE = 512;
+    private static final int VIEW_SIZE = 256;
+
+    private Bitmap image;
+    private Bitmap target;
+    private CustomCanvas view;
+    private int requests;
+
+    @Before
+    public void setUp() {
+        image = Bitmap.createBitmap(IMAGE_SIZE, IMAGE_SIZE, Bitmap.Config.ARGB_8888);
+        target = Bitmap.createBitmap(VIEW_SIZE, VIEW_SIZE, Bitmap.Config.ARGB_8888);
+        // Attached, so what the view posts runs on the main looper.
+        Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+        view = new CustomCanvas(activity);
+        activity.setContentView(view);
+        view.setBitmap(image);
+        int spec = View.MeasureSpec.makeMeasureSpec(VIEW_SIZE, View.MeasureSpec.EXACTLY);
+        view.measure(spec, spec);
+        view.layout(0, 0, VIEW_SIZE, VIEW_SIZE);
+        view.setOnResolutionNeeded(() -> requests++);
+    }
+
+    @After
+    public void tearDown() {
+        image.recycle();
+        target.recycle();
+    }
+
+    @Test
+    public void fullImageIsNotAskedForWithoutAReduce() {
+        view.setMScaleFactor(2);
+        draw();
+        view.setMScaleFactor(4);
+        draw();
+
+        assertEquals(0, requests);
+    }
+
+    @Test
+    public void reducedImageIsNotReloadedAtTheSameZoom() {
+        view.setMScaleFactor(2);
+        draw();
+        view.reduceBitmap(Bitmap.createScaledBitmap(image, IMAGE_SIZE / 4, IMAGE_SIZE / 4, true));
+        draw();
+        view.setMScaleFactor(1.5f);
+        draw();
+
+        assertEquals(0, requests);
+    }
+
+    @Test
+    public void reducedImageIsReloadedOnceWhenZoomedIn() {
+        view.setMScaleFactor(2);
+        view.reduceBitmap(Bitmap.createScaledBitmap(image, IMAGE_SIZE / 4, IMAGE_SIZE / 4, true));
+        view.setMScaleFactor(3);
+        draw();
+        view.setMScaleFactor(4);
+        draw();
+
+        assertEquals(1, requests);
+    }
+
+    private void draw() {
+        view.draw(new Canvas(target));
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+}
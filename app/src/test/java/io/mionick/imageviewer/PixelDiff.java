@@ -0,0 +1,52 @@
+package io.mionick.imageviewer;
+
+import java.util.Locale;
+
+/**
+ * Compares two renders pixel by pixel, as ARGB ints.
+ */
+public class PixelDiff {
+    public final int pixels;
+    public final int mismatched;
+    // Largest difference in any one channel, 0 to 255.
+    public final int maxDelta;
+
+    private PixelDiff(int pixels, int mismatched, int maxDelta) {
+        this.pixels = pixels;
+        this.mismatched = mismatched;
+        this.maxDelta = maxDelta;
+    }
+
+    /**
+     * Counts the pixels where some channel differs by more than {@code tolerance}, which absorbs
+     * the rounding of filtered draws between graphics library versions.
+     */
+    public static PixelDiff compare(int[] expected, int[] actual, int tolerance) {
+        if (expected.length != actual.length) {
+            throw new IllegalArgumentException("Renders of different sizes: " + expected.length + " and " + actual.length);
+        }
+        int mismatched = 0;
+        int maxDelta = 0;
+        for (int i = 0; i < expected.length; i++) {
+            int a = expected[i];
+            int b = actual[i];
+            if (a == b) continue;
+            int delta = 0;
+            for (int shift = 0; shift < 32; shift += 8) {
+                delta = Math.max(delta, Math.abs((a >>> shift & 0xFF) - (b >>> shift & 0xFF)));
+            }
+            maxDelta = Math.max(maxDelta, delta);
+            if (delta > tolerance) mismatched++;
+        }
+        return new PixelDiff(expected.length, mismatched, maxDelta);
+    }
+
+    public boolean matches() {
+        return mismatched == 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d of %d pixels differ, max delta %d", mismatched, pixels, maxDelta);
+    }
+}
@@ -0,0 +1,212 @@
+package io.mionick.imageviewer.image;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes synthetic GIFs frame by frame, with a real LZW encoder, for decoding against known
+ * pixels. Settings for a frame, such as {@link #disposal} or {@link #localColors}, are given
+ * before the {@link #frame} they apply to.
+ */
+public class GifBuilder {
+    static final int DISPOSE_NONE = 1, DISPOSE_BACKGROUND = 2, DISPOSE_PREVIOUS = 3;
+    private static final int MAX_CODES = 4096;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private int[] globalColors;
+    private int disposal = -1;
+    private int[] localColors;
+    private boolean interlaced;
+
+    /**
+     * {@code colors} are 0xRRGGBB, a power of two of them from 2 to 256, or none for a GIF without
+     * a global colour table.
+     */
+    public GifBuilder(int width, int height, int... colors) {
+        out.write('G');
+        out.write('I');
+        out.write('F');
+        out.write('8');
+        out.write('9');
+        out.write('a');
+        writeShort(width);
+        writeShort(height);
+        globalColors = colors.length > 0 ? colors : null;
+        out.write(globalColors != null ? 0x80 | tableSize(colors) : 0);
+        out.write(0); // Background colour.
+        out.write(0); // Pixel aspect ratio.
+        if (globalColors != null) writeColors(colors);
+    }
+
+    public GifBuilder disposal(int disposal) {
+        this.disposal = disposal;
+        return this;
+    }
+
+    public GifBuilder localColors(int... colors) {
+        localColors = colors;
+        return this;
+    }
+
+    public GifBuilder interlaced() {
+        interlaced = true;
+        return this;
+    }
+
+    /**
+     * A frame at (x, y) of colour {@code indices}, row by row. The rows are written in interlaced
+     * order if the frame is interlaced.
+     */
+    public GifBuilder frame(int x, int y, int width, int height, byte[] indices) {
+        return frame(x, y, width, height, indices, Integer.MAX_VALUE);
+    }
+
+    /**
+     * A {@link #frame} whose compressed data stops after {@code bytes} bytes, the blocks still
+     * closed as they should be.
+     */
+    public GifBuilder cutFrame(int x, int y, int width, int height, byte[] indices, int bytes) {
+        return frame(x, y, width, height, indices, bytes);
+    }
+
+    private GifBuilder frame(int x, int y, int width, int height, byte[] indices, int bytes) {
+        if (disposal >= 0) {
+            out.write(0x21);
+            out.write(0xF9);
+            out.write(4);
+            out.write(disposal << 2);
+            writeShort(10); // Delay, in hundredths of a second.
+            out.write(0); // Transparent index, unused.
+            out.write(0);
+        }
+        out.write(0x2C);
+        writeShort(x);
+        writeShort(y);
+        writeShort(width);
+        writeShort(height);
+        int[] colors = localColors != null ? localColors : globalColors;
+        out.write((localColors != null ? 0x80 | tableSize(localColors) : 0) | (interlaced ? 0x40 : 0));
+        if (localColors != null) writeColors(localColors);
+        byte[] rows = interlaced ? interlace(indices, width, height) : indices;
+        int codeSize = Math.max(2, tableSize(colors) + 1);
+        out.write(codeSize);
+        byte[] data = lzw(rows, codeSize);
+        writeBlocks(Arrays.copyOf(data, Math.min(bytes, data.length)));
+        disposal = -1;
+        localColors = null;
+        interlaced = false;
+        return this;
+    }
+
+    public byte[] build() {
+        out.write(0x3B);
+        return out.toByteArray();
+    }
+
+    /**
+     * Every index of a frame set to {@code index}.
+     */
+    static byte[] fill(int pixels, int index) {
+        byte[] indices = new byte[pixels];
+        for (int i = 0; i < pixels; i++) {
+            indices[i] = (byte) index;
+        }
+        return indices;
+    }
+
+    // The GIF table size field: the table holds 2 << size colours.
+    private static int tableSize(int[] colors) {
+        return Integer.numberOfTrailingZeros(colors.length) - 1;
+    }
+
+    // Rows 0, 8, 16..., then 4, 12..., then 2, 6..., then 1, 3...
+    private static byte[] interlace(byte[] indices, int width, int height) {
+        byte[] rows = new byte[indices.length];
+        int to = 0;
+        int[] starts = {0, 4, 2, 1};
+        int[] steps = {8, 8, 4, 2};
+        for (int pass = 0; pass < 4; pass++) {
+            for (int row = starts[pass]; row < height; row += steps[pass]) {
+                System.arraycopy(indices, row * width, rows, to, width);
+                to += width;
+            }
+        }
+        return rows;
+    }
+
+    // Codes grow a bit wider exactly when the decoder's table reaches the next power of two, and
+    // the table stops growing at 4096 entries without a clear code, as encoders commonly do.
+    private static byte[] lzw(byte[] indices, int dataSize) {
+        ByteArrayOutputStream codes = new ByteArrayOutputStream();
+        int clear = 1 << dataSize;
+        int codeSize = dataSize + 1;
+        int available = clear + 2;
+        int next = clear + 2;
+        Map<Integer, Integer> table = new HashMap<>();
+        int[] bits = {0, 0};
+        writeCode(codes, bits, clear, codeSize);
+        int prefix = indices[0] & 0xFF;
+        boolean first = true;
+        for (int i = 1; i < indices.length; i++) {
+            int suffix = indices[i] & 0xFF;
+            Integer known = table.get(prefix << 8 | suffix);
+            if (known != null) {
+                prefix = known;
+                continue;
+            }
+            writeCode(codes, bits, prefix, codeSize);
+            if (next < MAX_CODES) table.put(prefix << 8 | suffix, next++);
+            // The decoder adds its entry only on reading the code after the first.
+            if (!first && available < MAX_CODES) {
+                available++;
+                if (available == 1 << codeSize && available < MAX_CODES) codeSize++;
+            }
+            first = false;
+            prefix = suffix;
+        }
+        writeCode(codes, bits, prefix, codeSize);
+        if (!first && available < MAX_CODES) {
+            available++;
+            if (available == 1 << codeSize && available < MAX_CODES) codeSize++;
+        }
+        writeCode(codes, bits, clear + 1, codeSize);
+        if (bits[1] > 0) codes.write(bits[0]);
+        return codes.toByteArray();
+    }
+
+    // bits holds the pending byte and how many of its bits are used.
+    private static void writeCode(ByteArrayOutputStream codes, int[] bits, int code, int codeSize) {
+        for (int i = 0; i < codeSize; i++) {
+            bits[0] |= ((code >> i) & 1) << bits[1];
+            if (++bits[1] == 8) {
+                codes.write(bits[0]);
+                bits[0] = 0;
+                bits[1] = 0;
+            }
+        }
+    }
+
+    private void writeBlocks(byte[] bytes) {
+        for (int from = 0; from < bytes.length; from += 255) {
+            int size = Math.min(255, bytes.length - from);
+            out.write(size);
+            out.write(bytes, from, size);
+        }
+        out.write(0);
+    }
+
+    private void writeColors(int[] colors) {
+        for (int color : colors) {
+            out.write(color >> 16);
+            out.write(color >> 8);
+            out.write(color);
+        }
+    }
+
+    private void writeShort(int value) {
+        out.write(value);
+        out.write(value >> 8);
+    }
+}
@@ -0,0 +1,171 @@
+package io.mionick.imageviewer.image;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static io.mionick.imageviewer.image.GifBuilder.DISPOSE_BACKGROUND;
+import static io.mionick.imageviewer.image.GifBuilder.DISPOSE_NONE;
+import static io.mionick.imageviewer.image.GifBuilder.DISPOSE_PREVIOUS;
+import static io.mionick.imageviewer.image.GifBuilder.fill;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GifDecoderTest {
+    private static final int RED = 0xFF0000, GREEN = 0x00FF00, BLUE = 0x0000FF, WHITE = 0xFFFFFF;
+    private static final int OPAQUE = 0xFF000000;
+
+    @Test
+    public void interlacedRowsLandInImageOrder() throws IOException {
+        // Ten rows reach every pass, each row a colour of its own.
+        int width = 3, height = 10;
+        int[] colors = new int[16];
+        byte[] indices = new byte[width * height];
+        for (int row = 0; row < height; row++) {
+            colors[row] = row * 0x111111;
+            Arrays.fill(indices, row * width, (row + 1) * width, (byte) row);
+        }
+        GifDecoder decoder = new GifDecoder(new GifBuilder(width, height, colors)
+                .interlaced().frame(0, 0, width, height, indices)
+                .build());
+
+        decoder.nextFrame();
+
+        for (int row = 0; row < height; row++) {
+            assertEquals("row " + row, OPAQUE | row * 0x111111, decoder.getPixels()[row * width]);
+        }
+    }
+
+    @Test
+    public void disposeBackgroundClearsTheFrameArea() throws IOException {
+        GifDecoder decoder = new GifDecoder(new GifBuilder(4, 4, RED, BLUE, GREEN, WHITE)
+                .disposal(DISPOSE_NONE).frame(0, 0, 4, 4, fill(16, 0))
+                .disposal(DISPOSE_BACKGROUND).frame(1, 1, 2, 2, fill(4, 1))
+                .frame(0, 0, 1, 1, fill(1, 2))
+                .build());
+
+        decoder.nextFrame();
+        decoder.nextFrame();
+        assertEquals(OPAQUE | BLUE, pixel(decoder, 1, 1));
+        decoder.nextFrame();
+
+        assertEquals(OPAQUE | GREEN, pixel(decoder, 0, 0));
+        for (int y = 1; y < 3; y++) {
+            for (int x = 1; x < 3; x++) {
+                assertEquals(0, pixel(decoder, x, y));
+            }
+        }
+        assertEquals(OPAQUE | RED, pixel(decoder, 3, 3));
+        assertEquals(OPAQUE | RED, pixel(decoder, 0, 1));
+    }
+
+    @Test
+    public void disposePreviousRestoresWhatWasUnderTheFrame() throws IOException {
+        GifDecoder decoder = new GifDecoder(new GifBuilder(4, 4, RED, BLUE, GREEN, WHITE)
+                .frame(0, 0, 4, 4, fill(16, 0))
+                .frame(2, 2, 2, 2, fill(4, 3))
+                .disposal(DISPOSE_PREVIOUS).frame(1, 1, 2, 2, fill(4, 1))
+                .frame(0, 0, 1, 1, fill(1, 2))
+                .build());
+
+        for (int i = 0; i < 3; i++) {
+            decoder.nextFrame();
+        }
+        assertEquals(OPAQUE | BLUE, pixel(decoder, 2, 2));
+        decoder.nextFrame();
+
+        assertEquals(OPAQUE | GREEN, pixel(decoder, 0, 0));
+        assertEquals(OPAQUE | RED, pixel(decoder, 1, 1));
+        assertEquals(OPAQUE | RED, pixel(decoder, 2, 1));
+        assertEquals(OPAQUE | WHITE, pixel(decoder, 2, 2));
+        assertEquals(OPAQUE | WHITE, pixel(decoder, 3, 3));
+    }
+
+    @Test
+    public void localColorTableAppliesToItsFrameOnly() throws IOException {
+        GifDecoder decoder = new GifDecoder(new GifBuilder(2, 1, WHITE, BLUE)
+                .localColors(RED, GREEN, BLUE, WHITE).frame(0, 0, 2, 1, new byte[]{1, 3})
+                .frame(1, 0, 1, 1, fill(1, 1))
+                .build());
+
+        decoder.nextFrame();
+        assertArrayEquals(new int[]{OPAQUE | GREEN, OPAQUE | WHITE}, decoder.getPixels());
+        decoder.nextFrame();
+        assertArrayEquals(new int[]{OPAQUE | GREEN, OPAQUE | BLUE}, decoder.getPixels());
+    }
+
+    @Test
+    public void truncatedFrameIsLeftOutAndTheRestLoop() throws IOException {
+        byte[] whole = new GifBuilder(2, 2, RED, BLUE)
+                .frame(0, 0, 2, 2, fill(4, 0))
+                .frame(0, 0, 2, 2, fill(4, 1))
+                .build();
+        // Cut inside the data of the second frame.
+        GifDecoder decoder = new GifDecoder(Arrays.copyOf(whole, whole.length - 4));
+
+        assertEquals(1, decoder.getFrameCount());
+        decoder.nextFrame();
+        decoder.nextFrame();
+        assertArrayEquals(new int[]{OPAQUE | RED, OPAQUE | RED, OPAQUE | RED, OPAQUE | RED}, decoder.getPixels());
+    }
+
+    @Test
+    public void truncatedFirstFrameIsRejected() {
+        byte[] whole = new GifBuilder(2, 2, RED, BLUE).frame(0, 0, 2, 2, fill(4, 1)).build();
+        try {
+            new GifDecoder(Arrays.copyOf(whole, whole.length - 4));
+            fail("Decoded a GIF without a whole frame");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("without frames"));
+        }
+    }
+
+    @Test
+    public void frameWithTooLittleDataKeepsWhatWasUnderTheRest() throws IOException {
+        // The first byte of the second frame's data holds the clear code and one pixel.
+        GifDecoder decoder = new GifDecoder(new GifBuilder(4, 4, RED, BLUE)
+                .frame(0, 0, 4, 4, fill(16, 0))
+                .cutFrame(0, 0, 4, 4, fill(16, 1), 1)
+                .build());
+
+        assertEquals(2, decoder.getFrameCount());
+        decoder.nextFrame();
+        decoder.nextFrame();
+
+        assertEquals(OPAQUE | BLUE, pixel(decoder, 0, 0));
+        assertEquals(OPAQUE | RED, pixel(decoder, 1, 0));
+        assertEquals(OPAQUE | RED, pixel(decoder, 3, 3));
+    }
+
+    @Test
+    public void codesGrowToTwelveBitsAndTheFullTableKeepsDecoding() throws IOException {
+        // Noise over 256 colours fills the 4096 entry table partway through, after which the
+        // codes stay 12 bits wide and no more entries are added.
+        int width = 128, height = 128;
+        int[] colors = new int[256];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = i * 0x010101;
+        }
+        byte[] indices = new byte[width * height];
+        new Random(7).nextBytes(indices);
+        GifDecoder decoder = new GifDecoder(new GifBuilder(width, height, colors)
+                .frame(0, 0, width, height, indices)
+                .build());
+
+        decoder.nextFrame();
+
+        int[] expected = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            expected[i] = OPAQUE | colors[indices[i] & 0xFF];
+        }
+        assertArrayEquals(expected, decoder.getPixels());
+    }
+
+    private static int pixel(GifDecoder decoder, int x, int y) {
+        return decoder.getPixels()[y * decoder.getWidth() + x];
+    }
+}
@@ -0,0 +1,79 @@
+package io.mionick.imageviewer.metrics;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StartupTimerTest {
+    private static final long START = 1000;
+
+    private long now;
+    private StartupTimer timer;
+
+    @Before
+    public void setUp() {
+        now = START;
+        timer = new StartupTimer(START, () -> now);
+    }
+
+    @Test
+    public void phasesNotReachedAreMinusOne() {
+        for (StartupTimer.Phase phase : StartupTimer.Phase.values()) {
+            assertEquals(-1, timer.getMillis(phase));
+        }
+        assertEquals(-1, timer.getTimeToFirstFrame());
+        assertEquals(-1, timer.getTimeToInteractive());
+        assertFalse(timer.isInteractive());
+    }
+
+    @Test
+    public void firstFrameComesBeforeInteractive() {
+        markAt(10, StartupTimer.Phase.CREATE);
+        markAt(40, StartupTimer.Phase.CONTENT_VIEW);
+        assertFalse(markAt(90, StartupTimer.Phase.FIRST_FRAME));
+        assertEquals(90, timer.getTimeToFirstFrame());
+        assertEquals(-1, timer.getTimeToInteractive());
+
+        assertFalse(markAt(200, StartupTimer.Phase.MENU_BUILT));
+        assertFalse(timer.isInteractive());
+        assertTrue(markAt(350, StartupTimer.Phase.FIRST_IMAGE));
+
+        assertTrue(timer.isInteractive());
+        assertEquals(350, timer.getTimeToInteractive());
+        assertTrue(timer.getTimeToFirstFrame() < timer.getTimeToInteractive());
+    }
+
+    @Test
+    public void interactiveWaitsForTheLaterOfImageAndMenu() {
+        markAt(90, StartupTimer.Phase.FIRST_FRAME);
+        assertFalse(markAt(150, StartupTimer.Phase.FIRST_IMAGE));
+        assertTrue(markAt(400, StartupTimer.Phase.MENU_BUILT));
+        assertEquals(150, timer.getMillis(StartupTimer.Phase.FIRST_IMAGE));
+        assertEquals(400, timer.getTimeToInteractive());
+    }
+
+    @Test
+    public void reportsOnlyOnce() {
+        markAt(100, StartupTimer.Phase.MENU_BUILT);
+        assertTrue(markAt(200, StartupTimer.Phase.FIRST_IMAGE));
+        assertFalse(markAt(300, StartupTimer.Phase.FIRST_IMAGE));
+        assertFalse(markAt(400, StartupTimer.Phase.MENU_BUILT));
+        assertFalse(markAt(500, StartupTimer.Phase.FIRST_FRAME));
+        assertEquals(200, timer.getTimeToInteractive());
+    }
+
+    @Test
+    public void laterMarksKeepTheFirstTime() {
+        markAt(90, StartupTimer.Phase.FIRST_FRAME);
+        markAt(120, StartupTimer.Phase.FIRST_FRAME);
+        assertEquals(90, timer.getTimeToFirstFrame());
+    }
+
+    private boolean markAt(long sinceStart, StartupTimer.Phase phase) {
+        now = START + sinceStart;
+        return timer.mark(phase);
+    }
+}
@@ -0,0 +1,111 @@
+package io.mionick.imageviewer.trace;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+import io.mionick.imageviewer.geometry.Homography;
+import io.mionick.imageviewer.gestures.ImageTransform;
+import io.mionick.imageviewer.gestures.PointerSamples;
+import io.mionick.imageviewer.gestures.TransformApplier;
+import io.mionick.imageviewer.gestures.TransformGestureDetector;
+
+/**
+ * Plays a touch trace through the gesture pipeline and the image transform and reports how long
+ * each event took and how much it allocated.
+ */
+public class TouchReplay {
+
+    public interface Target {
+        void onEvent(PointerSamples event);
+    }
+
+    public static class Report {
+        public final int events;
+        public final long p50Nanos, p90Nanos, p99Nanos, maxNanos;
+        // -1 when the runtime cannot count allocations
+        public final long allocatedBytes;
+        public final int allocatingEvents;
+
+        Report(long[] nanos, int events, long allocatedBytes, int allocatingEvents) {
+            Arrays.sort(nanos, 0, events);
+            this.events = events;
+            this.p50Nanos = percentile(nanos, events, 0.50);
+            this.p90Nanos = percentile(nanos, events, 0.90);
+            this.p99Nanos = percentile(nanos, events, 0.99);
+            this.maxNanos = events == 0 ? 0 : nanos[events - 1];
+            this.allocatedBytes = allocatedBytes;
+            this.allocatingEvents = allocatingEvents;
+        }
+
+        private static long percentile(long[] sorted, int count, double fraction) {
+            if (count == 0) return 0;
+            return sorted[Math.min(count - 1, (int) Math.ceil(fraction * count) - 1)];
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d events, p50 %.1fus, p90 %.1fus, p99 %.1fus, max %.1fus, %d bytes allocated by %d events",
+                    events, p50Nanos / 1000.0, p90Nanos / 1000.0, p99Nanos / 1000.0, maxNanos / 1000.0,
+                    allocatedBytes, allocatingEvents);
+        }
+    }
+
+    /**
+     * The same detector and applier the activity uses, driving {@code transform}. Like a frame
+     * of the canvas, every event then composes the image to screen matrix into {@code imageToScreen}.
+     */
+    public static Target gesturePipeline(ImageTransform transform, Homography imageToScreen) {
+        TransformGestureDetector detector = new TransformGestureDetector(new TransformApplier(transform));
+        return event -> {
+            detector.onTouchEvent(event);
+            transform.compose(imageToScreen);
+        };
+    }
+
+    /**
+     * @param allocatedBytes running count of bytes allocated by the calling thread, or null
+     */
+    public static Report run(TouchTraceReader reader, Target target, LongSupplier allocatedBytes) throws IOException {
+        long[] nanos = new long[1024];
+        int events = 0;
+        long allocated = 0;
+        int allocatingEvents = 0;
+        // What reading the counter itself costs, so only the target's allocations are reported.
+        long counterOverhead = 0;
+        if (allocatedBytes != null) {
+            long first = allocatedBytes.getAsLong();
+            counterOverhead = allocatedBytes.getAsLong() - first;
+        }
+        RecordedEvent event;
+        while ((event = reader.next()) != null) {
+            if (events == nanos.length) nanos = Arrays.copyOf(nanos, events * 2);
+            long bytesBefore = allocatedBytes != null ? allocatedBytes.getAsLong() : 0;
+            long start = System.nanoTime();
+            target.onEvent(event);
+            nanos[events++] = System.nanoTime() - start;
+            if (allocatedBytes != null) {
+                long bytes = allocatedBytes.getAsLong() - bytesBefore - counterOverhead;
+                allocated += bytes;
+                if (bytes > 0) allocatingEvents++;
+            }
+        }
+        return new Report(nanos, events, allocatedBytes != null ? allocated : -1, allocatingEvents);
+    }
+
+    /**
+     * Per-thread allocation counter of the calling thread on a HotSpot JVM, or null where there
+     * is none.
+     */
+    public static LongSupplier jvmThreadAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return null;
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+        long threadId = Thread.currentThread().getId();
+        return () -> counter.getThreadAllocatedBytes(threadId);
+    }
+}
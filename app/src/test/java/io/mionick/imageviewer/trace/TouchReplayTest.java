@@ -0,0 +1,88 @@
+package io.mionick.imageviewer.trace;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import io.mionick.imageviewer.geometry.Homography;
+import io.mionick.imageviewer.gestures.ImageTransform;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TouchReplayTest {
+    private static final float EPSILON = 0.05f;
+
+    private final ImageTransform transform = new ImageTransform();
+    private final Homography imageToScreen = new Homography();
+
+    @Before
+    public void setUp() {
+        // A 400 x 300 image drawn unscaled at the top left of the screen.
+        transform.setImageSize(400, 300);
+        transform.resetDeformation();
+    }
+
+    @Test
+    public void dragPansTheImage() throws IOException {
+        TouchReplay.Report report = replay(new TraceBuilder().drag(100, 100, 160, 140, 10, 3));
+
+        assertEquals(12, report.events);
+        assertEquals(60, transform.getX(), EPSILON);
+        assertEquals(40, transform.getY(), EPSILON);
+        assertMapsTo(0, 0, 60, 40);
+        assertMapsTo(400, 300, 460, 340);
+    }
+
+    @Test
+    public void pinchScalesAndRotatesAboutTheImageCentre() throws IOException {
+        replay(new TraceBuilder().pinch(200, 150, 100, 200, 90, 30));
+
+        assertEquals(2, transform.getMScaleFactor(), 1e-3f);
+        assertEquals(90, transform.getRotation(), 0.1f);
+        // The fingers turned about the image centre, so it stays put and the top left corner
+        // swings round to the top right, twice as far out.
+        assertMapsTo(200, 150, 200, 150);
+        assertMapsTo(0, 0, 500, -250);
+    }
+
+    @Test
+    public void pinchThenDragComposes() throws IOException {
+        replay(new TraceBuilder()
+                .pinch(200, 150, 100, 50, 0, 10)
+                .drag(300, 300, 250, 320, 5, 2));
+
+        assertEquals(0.5f, transform.getMScaleFactor(), 1e-3f);
+        assertMapsTo(200, 150, 150, 170);
+        assertMapsTo(0, 0, 50, 95);
+    }
+
+    @Test
+    public void deformedCornersSurviveGestures() throws IOException {
+        float[] quad = {20, 10, 380, 40, 0, 280, 420, 300};
+        transform.setDeformation(quad);
+        replay(new TraceBuilder().drag(0, 0, 10, -5, 4, 1));
+
+        float[] corners = new float[8];
+        imageToScreen.mapPoints(corners, transform.getUntransformedCorners());
+        float[] expected = quad.clone();
+        for (int i = 0; i < 8; i += 2) {
+            expected[i] += 10;
+            expected[i + 1] -= 5;
+        }
+        assertArrayEquals(expected, corners, EPSILON);
+    }
+
+    private TouchReplay.Report replay(TraceBuilder trace) throws IOException {
+        try (TouchTraceReader reader = trace.reader()) {
+            return TouchReplay.run(reader, TouchReplay.gesturePipeline(transform, imageToScreen), null);
+        }
+    }
+
+    private void assertMapsTo(float imageX, float imageY, float screenX, float screenY) {
+        float[] point = {imageX, imageY};
+        imageToScreen.mapPoints(point, point);
+        assertArrayEquals(new float[]{screenX, screenY}, point, EPSILON);
+    }
+}
@@ -0,0 +1,101 @@
+package io.mionick.imageviewer.trace;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes synthetic touch traces in the format {@link TouchRecorder} records, for replaying
+ * gestures with known geometry.
+ */
+public class TraceBuilder {
+    // The MotionEvent action codes, which the trace stores as they are.
+    static final int ACTION_DOWN = 0, ACTION_UP = 1, ACTION_MOVE = 2;
+    static final int ACTION_POINTER_DOWN = 5, ACTION_POINTER_UP = 6;
+    private static final int POINTER_INDEX_SHIFT = 8;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private long time;
+
+    public TraceBuilder() {
+        try {
+            out.writeInt(TouchTraceFormat.MAGIC);
+            out.writeInt(TouchTraceFormat.VERSION);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * One finger dragged from (fromX, fromY) to (toX, toY) in {@code moves} move events, each
+     * batching {@code samplesPerMove} samples.
+     */
+    public TraceBuilder drag(float fromX, float fromY, float toX, float toY, int moves, int samplesPerMove) {
+        event(ACTION_DOWN, 1, new float[]{fromX, fromY});
+        int steps = moves * samplesPerMove;
+        float[][] samples = new float[samplesPerMove][];
+        for (int move = 0; move < moves; move++) {
+            for (int s = 0; s < samplesPerMove; s++) {
+                float t = (float) (move * samplesPerMove + s + 1) / steps;
+                samples[s] = new float[]{fromX + (toX - fromX) * t, fromY + (toY - fromY) * t};
+            }
+            event(ACTION_MOVE, 1, samples);
+        }
+        event(ACTION_UP, 1, new float[]{toX, toY});
+        return this;
+    }
+
+    /**
+     * Two fingers on either side of (centreX, centreY), starting {@code fromSpan} apart along x
+     * and ending {@code toSpan} apart after turning {@code degrees} clockwise, in {@code moves}
+     * move events.
+     */
+    public TraceBuilder pinch(float centreX, float centreY, float fromSpan, float toSpan, float degrees, int moves) {
+        float[] start = pair(centreX, centreY, fromSpan, 0);
+        event(ACTION_DOWN, 1, new float[]{start[0], start[2]});
+        event(ACTION_POINTER_DOWN | 1 << POINTER_INDEX_SHIFT, 2, start);
+        float[] end = start;
+        for (int move = 1; move <= moves; move++) {
+            float t = (float) move / moves;
+            end = pair(centreX, centreY, fromSpan + (toSpan - fromSpan) * t, degrees * t);
+            event(ACTION_MOVE, 2, end);
+        }
+        event(ACTION_POINTER_UP | 1 << POINTER_INDEX_SHIFT, 2, end);
+        event(ACTION_UP, 1, new float[]{end[0], end[2]});
+        return this;
+    }
+
+    public TouchTraceReader reader() throws IOException {
+        return new TouchTraceReader(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    // x0, x1, y0, y1: two points span apart through the centre, the line between them turned.
+    private static float[] pair(float centreX, float centreY, float span, float degrees) {
+        double radians = Math.toRadians(degrees);
+        float dx = (float) (Math.cos(radians) * span / 2);
+        float dy = (float) (Math.sin(radians) * span / 2);
+        return new float[]{centreX - dx, centreX + dx, centreY - dy, centreY + dy};
+    }
+
+    // Each sample holds the x of every pointer, then the y of every pointer; the last is current.
+    private void event(int action, int pointerCount, float[]... samples) {
+        try {
+            out.writeInt(action);
+            out.writeInt(pointerCount);
+            out.writeInt(samples.length - 1);
+            for (int p = 0; p < pointerCount; p++) {
+                out.writeInt(p);
+            }
+            for (float[] sample : samples) {
+                out.writeLong(time += 4);
+                for (float value : sample) {
+                    out.writeFloat(value);
+                }
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package io.mionick.imageviewer.geometry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The angle math of a rotation step, which TransformGestureDetector does for every batched sample
+ * of a two-finger move: atan2 of the line through the fingers and the change wrapped to
+ * [-180, 180]. angleBetweenLines does the same for both lines at once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AnglesBenchmark {
+    private float startX1 = 120, startY1 = 400, startX2 = 620, startY2 = 380;
+    private float x1 = 130, y1 = 420, x2 = 600, y2 = 300;
+
+    @Benchmark
+    public float angleBetweenLines() {
+        return Angles.angleBetweenLines(startX2, startY2, startX1, startY1, x2, y2, x1, y1);
+    }
+}
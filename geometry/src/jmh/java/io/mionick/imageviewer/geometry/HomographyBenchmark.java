@@ -0,0 +1,45 @@
+package io.mionick.imageviewer.geometry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HomographyBenchmark {
+    private final float[] corners = {0, 0, 4000, 0, 0, 3000, 4000, 3000};
+    private final float[] deformed = {120, 40, 980, 110, 60, 760, 1010, 820};
+    private final Homography homography = new Homography();
+    private final Homography inverse = new Homography();
+
+    @Benchmark
+    public Homography solvePolyToPoly() {
+        homography.setPolyToPoly(corners, 0, deformed, 0);
+        return homography;
+    }
+
+    /**
+     * The full rebuild CustomCanvas does for every frame with a pending transform change.
+     */
+    @Benchmark
+    public Homography canvasTransform() {
+        homography.setPolyToPoly(corners, 0, deformed, 0);
+        homography.postRotate(17, 2000, 1500);
+        homography.postScale(0.3f, 0.3f, 2000, 1500);
+        homography.postTranslate(-40, 25);
+        return homography;
+    }
+
+    @Benchmark
+    public Homography invert() {
+        homography.setPolyToPoly(corners, 0, deformed, 0);
+        homography.invert(inverse);
+        return inverse;
+    }
+}
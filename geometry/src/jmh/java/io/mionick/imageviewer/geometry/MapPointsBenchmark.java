@@ -0,0 +1,53 @@
+package io.mionick.imageviewer.geometry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping a square grid of points, as the grid overlay does every frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MapPointsBenchmark {
+    @Param({"10", "100", "1000"})
+    public int pointsPerLine;
+
+    @Param({"true", "false"})
+    public boolean perspective;
+
+    private final Homography homography = new Homography();
+    private float[] grid;
+    private float[] mapped;
+
+    @Setup
+    public void setUp() {
+        grid = new float[2 * pointsPerLine * pointsPerLine];
+        mapped = new float[grid.length];
+        for (int i = 0; i < pointsPerLine * pointsPerLine; i++) {
+            grid[2 * i] = i % pointsPerLine * 10f;
+            grid[2 * i + 1] = i / pointsPerLine * 10f;
+        }
+        float side = pointsPerLine * 10f;
+        float[] corners = {0, 0, side, 0, 0, side, side, side};
+        float[] target = perspective
+                ? new float[]{20, 10, side * 0.9f, 30, 5, side * 0.8f, side, side}
+                : new float[]{20, 10, side + 20, 10, 20, side + 10, side + 20, side + 10};
+        homography.setPolyToPoly(corners, 0, target, 0);
+        homography.postRotate(12, side / 2, side / 2);
+    }
+
+    @Benchmark
+    public float[] mapGrid() {
+        homography.mapPoints(mapped, 0, grid, 0, grid.length / 2);
+        return mapped;
+    }
+}
@@ -0,0 +1,20 @@
+package io.mionick.imageviewer.geometry;
+
+public final class Angles {
+    private Angles() {
+    }
+
+    /**
+     * Signed angle in degrees, within [-180, 180], from the line through (nsX, nsY) and
+     * (nfX, nfY) back to the line through (sX, sY) and (fX, fY).
+     */
+    public static float angleBetweenLines(float fX, float fY, float sX, float sY, float nfX, float nfY, float nsX, float nsY) {
+        float angle1 = (float) Math.atan2((fY - sY), (fX - sX));
+        float angle2 = (float) Math.atan2((nfY - nsY), (nfX - nsX));
+
+        float angle = ((float) Math.toDegrees(angle1 - angle2)) % 360;
+        if (angle < -180.f) angle += 360.0f;
+        if (angle > 180.f) angle -= 360.0f;
+        return angle;
+    }
+}
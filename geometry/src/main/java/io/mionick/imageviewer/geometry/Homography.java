@@ -0,0 +1,248 @@
+package io.mionick.imageviewer.geometry;
+
+/**
+ * A 3x3 projective transform of the plane, stored as nine floats in row-major order, the same
+ * layout as {@code android.graphics.Matrix#getValues}. Nothing here allocates after construction,
+ * so it can sit on a per-frame or per-touch-event path.
+ */
+public class Homography {
+    public static final int SIZE = 9;
+
+    private final float[] values = new float[SIZE];
+    // Scratch space for solving and composing, kept in double to hold precision through division.
+    private final double[] squareToSrc = new double[SIZE];
+    private final double[] squareToDst = new double[SIZE];
+    private final double[] scratch = new double[SIZE];
+
+    public Homography() {
+        reset();
+    }
+
+    public void reset() {
+        values[0] = 1; values[1] = 0; values[2] = 0;
+        values[3] = 0; values[4] = 1; values[5] = 0;
+        values[6] = 0; values[7] = 0; values[8] = 1;
+    }
+
+    public void set(Homography other) {
+        System.arraycopy(other.values, 0, values, 0, SIZE);
+    }
+
+    public void setValues(float[] in) {
+        System.arraycopy(in, 0, values, 0, SIZE);
+    }
+
+    public void getValues(float[] out) {
+        System.arraycopy(values, 0, out, 0, SIZE);
+    }
+
+    public float get(int index) {
+        return values[index];
+    }
+
+    /**
+     * Sets this to the transform taking the four points in {@code src} onto the four points in
+     * {@code dst}, pairing them by index. Returns false, leaving this unchanged, when either set
+     * of points is degenerate (three of them on one line).
+     */
+    public boolean setPolyToPoly(float[] src, int srcOffset, float[] dst, int dstOffset) {
+        if (!squareToQuad(src, srcOffset, squareToSrc) || !squareToQuad(dst, dstOffset, squareToDst)) {
+            return false;
+        }
+        // Three destination points on a line still solve, but into a transform that flattens.
+        if (determinant(squareToDst) == 0) {
+            return false;
+        }
+        if (!invert(squareToSrc, scratch)) {
+            return false;
+        }
+        multiply(squareToDst, scratch, squareToSrc);
+        double scale = squareToSrc[8];
+        if (scale == 0) return false;
+        for (int i = 0; i < SIZE; i++) {
+            values[i] = (float) (squareToSrc[i] / scale);
+        }
+        return true;
+    }
+
+    /**
+     * this = other x this, i.e. {@code other} is applied after the current transform.
+     */
+    public void postConcat(Homography other) {
+        concat(other.values, values);
+    }
+
+    /**
+     * this = this x other, i.e. {@code other} is applied before the current transform.
+     */
+    public void preConcat(Homography other) {
+        concat(values, other.values);
+    }
+
+    public void postTranslate(float dx, float dy) {
+        values[0] += dx * values[6];
+        values[1] += dx * values[7];
+        values[2] += dx * values[8];
+        values[3] += dy * values[6];
+        values[4] += dy * values[7];
+        values[5] += dy * values[8];
+    }
+
+    public void postScale(float sx, float sy, float px, float py) {
+        postTranslate(-px, -py);
+        for (int i = 0; i < 3; i++) {
+            values[i] *= sx;
+            values[3 + i] *= sy;
+        }
+        postTranslate(px, py);
+    }
+
+    /**
+     * Rotates by {@code degrees} clockwise on screen (y pointing down) around (px, py).
+     */
+    public void postRotate(float degrees, float px, float py) {
+        double radians = Math.toRadians(degrees);
+        float cos = (float) Math.cos(radians);
+        float sin = (float) Math.sin(radians);
+        postTranslate(-px, -py);
+        for (int i = 0; i < 3; i++) {
+            float x = values[i];
+            float y = values[3 + i];
+            values[i] = cos * x - sin * y;
+            values[3 + i] = sin * x + cos * y;
+        }
+        postTranslate(px, py);
+    }
+
+    /**
+     * Writes the inverse of this transform into {@code out}, which may be this. Returns false,
+     * leaving {@code out} unchanged, when this is not invertible.
+     */
+    public boolean invert(Homography out) {
+        for (int i = 0; i < SIZE; i++) {
+            squareToSrc[i] = values[i];
+        }
+        if (!invert(squareToSrc, scratch)) {
+            return false;
+        }
+        for (int i = 0; i < SIZE; i++) {
+            out.values[i] = (float) scratch[i];
+        }
+        return true;
+    }
+
+    /**
+     * Maps {@code count} points stored as x, y pairs from {@code src} into {@code dst}. The two
+     * arrays may be the same.
+     */
+    public void mapPoints(float[] dst, int dstOffset, float[] src, int srcOffset, int count) {
+        float a = values[0], b = values[1], c = values[2];
+        float d = values[3], e = values[4], f = values[5];
+        float g = values[6], h = values[7], k = values[8];
+        if (g == 0 && h == 0 && k == 1) {
+            for (int i = 0; i < count; i++) {
+                float x = src[srcOffset + 2 * i];
+                float y = src[srcOffset + 2 * i + 1];
+                dst[dstOffset + 2 * i] = a * x + b * y + c;
+                dst[dstOffset + 2 * i + 1] = d * x + e * y + f;
+            }
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            float x = src[srcOffset + 2 * i];
+            float y = src[srcOffset + 2 * i + 1];
+            float w = g * x + h * y + k;
+            float inverseW = w == 0 ? 0 : 1 / w;
+            dst[dstOffset + 2 * i] = (a * x + b * y + c) * inverseW;
+            dst[dstOffset + 2 * i + 1] = (d * x + e * y + f) * inverseW;
+        }
+    }
+
+    public void mapPoints(float[] dst, float[] src) {
+        mapPoints(dst, 0, src, 0, src.length / 2);
+    }
+
+    // result = left x right, in place into this.values
+    private void concat(float[] left, float[] right) {
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                scratch[3 * row + col] = (double) left[3 * row] * right[col]
+                        + (double) left[3 * row + 1] * right[3 + col]
+                        + (double) left[3 * row + 2] * right[6 + col];
+            }
+        }
+        for (int i = 0; i < SIZE; i++) {
+            values[i] = (float) scratch[i];
+        }
+    }
+
+    /**
+     * The transform taking the unit square corners (0,0), (1,0), (1,1), (0,1) onto the four
+     * points, in that order (Heckbert's closed form).
+     */
+    private static boolean squareToQuad(float[] p, int offset, double[] out) {
+        double x0 = p[offset], y0 = p[offset + 1];
+        double x1 = p[offset + 2], y1 = p[offset + 3];
+        double x2 = p[offset + 4], y2 = p[offset + 5];
+        double x3 = p[offset + 6], y3 = p[offset + 7];
+        double sx = x0 - x1 + x2 - x3;
+        double sy = y0 - y1 + y2 - y3;
+        double g, h;
+        if (sx == 0 && sy == 0) {
+            g = 0;
+            h = 0;
+        } else {
+            double dx1 = x1 - x2, dx2 = x3 - x2;
+            double dy1 = y1 - y2, dy2 = y3 - y2;
+            double denominator = dx1 * dy2 - dx2 * dy1;
+            if (denominator == 0) return false;
+            g = (sx * dy2 - dx2 * sy) / denominator;
+            h = (dx1 * sy - sx * dy1) / denominator;
+        }
+        out[0] = x1 - x0 + g * x1;
+        out[1] = x3 - x0 + h * x3;
+        out[2] = x0;
+        out[3] = y1 - y0 + g * y1;
+        out[4] = y3 - y0 + h * y3;
+        out[5] = y0;
+        out[6] = g;
+        out[7] = h;
+        out[8] = 1;
+        return true;
+    }
+
+    private static double determinant(double[] m) {
+        return m[0] * (m[4] * m[8] - m[5] * m[7])
+                + m[1] * (m[5] * m[6] - m[3] * m[8])
+                + m[2] * (m[3] * m[7] - m[4] * m[6]);
+    }
+
+    private static boolean invert(double[] m, double[] out) {
+        double c00 = m[4] * m[8] - m[5] * m[7];
+        double c01 = m[5] * m[6] - m[3] * m[8];
+        double c02 = m[3] * m[7] - m[4] * m[6];
+        double determinant = determinant(m);
+        if (determinant == 0 || Double.isNaN(determinant)) return false;
+        double inverse = 1 / determinant;
+        out[0] = c00 * inverse;
+        out[1] = (m[2] * m[7] - m[1] * m[8]) * inverse;
+        out[2] = (m[1] * m[5] - m[2] * m[4]) * inverse;
+        out[3] = c01 * inverse;
+        out[4] = (m[0] * m[8] - m[2] * m[6]) * inverse;
+        out[5] = (m[2] * m[3] - m[0] * m[5]) * inverse;
+        out[6] = c02 * inverse;
+        out[7] = (m[1] * m[6] - m[0] * m[7]) * inverse;
+        out[8] = (m[0] * m[4] - m[1] * m[3]) * inverse;
+        return true;
+    }
+
+    private static void multiply(double[] left, double[] right, double[] out) {
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                out[3 * row + col] = left[3 * row] * right[col]
+                        + left[3 * row + 1] * right[3 + col]
+                        + left[3 * row + 2] * right[6 + col];
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package io.mionick.imageviewer.geometry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AnglesTest {
+    private static final float EPSILON = 1e-3f;
+
+    @Test
+    public void sameLineIsZero() {
+        assertEquals(0, Angles.angleBetweenLines(10, 0, 0, 0, 25, 5, 5, 5), EPSILON);
+    }
+
+    @Test
+    public void quarterTurn() {
+        // From a line pointing down the y axis back to one pointing along x.
+        assertEquals(-90, Angles.angleBetweenLines(1, 0, 0, 0, 0, 1, 0, 0), EPSILON);
+        assertEquals(90, Angles.angleBetweenLines(0, 1, 0, 0, 1, 0, 0, 0), EPSILON);
+    }
+
+    @Test
+    public void wrapsIntoHalfTurn() {
+        float from = (float) Math.toRadians(170);
+        float to = (float) Math.toRadians(-170);
+        float angle = Angles.angleBetweenLines((float) Math.cos(from), (float) Math.sin(from), 0, 0,
+                (float) Math.cos(to), (float) Math.sin(to), 0, 0);
+        assertEquals(-20, angle, EPSILON);
+    }
+
+    @Test
+    public void oppositeDirectionsAreHalfTurn() {
+        assertEquals(180, Math.abs(Angles.angleBetweenLines(-1, 0, 0, 0, 1, 0, 0, 0)), EPSILON);
+    }
+}
@@ -0,0 +1,131 @@
+package io.mionick.imageviewer.geometry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HomographyTest {
+    private static final float EPSILON = 1e-3f;
+    private static final float[] IDENTITY = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+    // Image corners in the order CustomCanvas keeps them: top left, top right, bottom left, bottom right.
+    private static final float[] CORNERS = {0, 0, 4000, 0, 0, 3000, 4000, 3000};
+
+    @Test
+    public void newHomographyIsIdentity() {
+        Homography homography = new Homography();
+        float[] values = new float[Homography.SIZE];
+        homography.getValues(values);
+        assertArrayEquals(IDENTITY, values, 0);
+
+        float[] points = {12.5f, -3, 4000, 3000};
+        float[] mapped = new float[points.length];
+        homography.mapPoints(mapped, points);
+        assertArrayEquals(points, mapped, 0);
+    }
+
+    @Test
+    public void polyToPolyOntoItselfIsIdentity() {
+        Homography homography = new Homography();
+        assertTrue(homography.setPolyToPoly(CORNERS, 0, CORNERS, 0));
+        float[] values = new float[Homography.SIZE];
+        homography.getValues(values);
+        assertArrayEquals(IDENTITY, values, EPSILON);
+    }
+
+    @Test
+    public void translation() {
+        Homography translated = new Homography();
+        translated.postTranslate(30, -20);
+        float[] mapped = new float[2];
+        translated.mapPoints(mapped, new float[]{5, 5});
+        assertArrayEquals(new float[]{35, -15}, mapped, 0);
+
+        float[] shifted = new float[CORNERS.length];
+        translated.mapPoints(shifted, CORNERS);
+        Homography solved = new Homography();
+        assertTrue(solved.setPolyToPoly(CORNERS, 0, shifted, 0));
+        float[] values = new float[Homography.SIZE];
+        solved.getValues(values);
+        assertArrayEquals(new float[]{1, 0, 30, 0, 1, -20, 0, 0, 1}, values, EPSILON);
+    }
+
+    @Test
+    public void rotationIsClockwiseOnScreen() {
+        Homography rotated = new Homography();
+        rotated.postRotate(90, 0, 0);
+        float[] mapped = new float[2];
+        rotated.mapPoints(mapped, new float[]{1, 0});
+        assertArrayEquals(new float[]{0, 1}, mapped, EPSILON);
+    }
+
+    @Test
+    public void perspectiveRoundTrip() {
+        float[] deformed = {120, 40, 980, 110, 60, 760, 1010, 820};
+        Homography homography = new Homography();
+        assertTrue(homography.setPolyToPoly(CORNERS, 0, deformed, 0));
+        float[] mapped = new float[CORNERS.length];
+        homography.mapPoints(mapped, CORNERS);
+        assertArrayEquals(deformed, mapped, EPSILON);
+
+        Homography inverse = new Homography();
+        assertTrue(homography.invert(inverse));
+        float[] inside = {2000, 1500, 100, 2900, 3999, 1};
+        float[] there = new float[inside.length];
+        float[] back = new float[inside.length];
+        homography.mapPoints(there, inside);
+        inverse.mapPoints(back, there);
+        assertArrayEquals(inside, back, 0.05f);
+    }
+
+    @Test
+    public void invertInPlace() {
+        Homography homography = new Homography();
+        homography.postScale(2, 4, 10, 10);
+        homography.postTranslate(7, 3);
+        Homography original = new Homography();
+        original.set(homography);
+        assertTrue(homography.invert(homography));
+        homography.postConcat(original);
+        float[] values = new float[Homography.SIZE];
+        homography.getValues(values);
+        assertArrayEquals(IDENTITY, values, EPSILON);
+    }
+
+    @Test
+    public void degenerateQuadsAreRejected() {
+        float[][] degenerate = {
+                // Three corners on one line.
+                {0, 0, 1000, 0, 2000, 0, 0, 1000},
+                // Two corners in one place.
+                {0, 0, 1000, 0, 1000, 0, 0, 1000},
+                // All four on one line.
+                {0, 0, 1, 1, 2, 2, 3, 3},
+                // Collapsed to a point.
+                {5, 5, 5, 5, 5, 5, 5, 5},
+        };
+        for (float[] quad : degenerate) {
+            Homography homography = new Homography();
+            homography.postTranslate(1, 2);
+            assertFalse(homography.setPolyToPoly(CORNERS, 0, quad, 0));
+            assertFalse(homography.setPolyToPoly(quad, 0, CORNERS, 0));
+            // Left unchanged.
+            float[] values = new float[Homography.SIZE];
+            homography.getValues(values);
+            assertArrayEquals(new float[]{1, 0, 1, 0, 1, 2, 0, 0, 1}, values, 0);
+        }
+    }
+
+    @Test
+    public void singularTransformDoesNotInvert() {
+        Homography flat = new Homography();
+        flat.postScale(1, 0, 0, 0);
+        Homography out = new Homography();
+        out.postTranslate(3, 4);
+        assertFalse(flat.invert(out));
+        float[] values = new float[Homography.SIZE];
+        out.getValues(values);
+        assertArrayEquals(new float[]{1, 0, 3, 0, 1, 4, 0, 0, 1}, values, 0);
+    }
+}